@@ -0,0 +1,84 @@
+package njit.smartgrid;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Cost of the server's grant tick.
+//
+// The logger runs in async mode here, so the numbers are the allocator's own and not
+// the file system's; PowerLogBenchmark measures the logger.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dsmartgrid.log.async=true" })
+public class AllocatorBenchmark {
+
+    @Param({ "10", "1000", "100000" })
+    public int clients;
+
+    // Shards of the allocator for tick() and tickFewRequests() (grantPower() runs the
+    // first shard's pass only)
+    @Param({ "1", "4" })
+    public int shards;
+
+    private ClientTable table;
+    private GrantShard shard;
+    private ShardedAllocator allocator;
+    private PowerLog log;
+    private int sequence = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        log = new PowerLog(true);
+        // Capacity for about half of the requests, so every pass both grants and denies
+        int maxLoadWatts = clients * PowerRequest.POWER_HIGH / 2;
+        table = BenchmarkClients.table(clients);
+        allocator = new ShardedAllocator(table, maxLoadWatts, shards, log);
+        for (int client = 0; client < clients; client++) {
+            allocator.addClient(client);
+            allocator.requestArrived(client);
+        }
+        shard = allocator.shard(0);
+    }
+
+    // The grant pass on its own. Every client keeps its request pending, so each call
+    // re-grants the whole table.
+    @Benchmark
+    public int grantPower() {
+        shard.grantPower();
+        return shard.loadWatts();
+    }
+
+    // A whole tick (all three passes), with every client renewing its request first as
+    // PowerServer.addRequest would
+    @Benchmark
+    public int tick() {
+        for (int client = 0; client < clients; client++) {
+            request(client);
+        }
+        allocator.tick();
+        return allocator.getLoadWatts();
+    }
+
+    // A whole tick when only one client in a hundred sends a request each tick, so most
+    // of the table is idle
+    @Benchmark
+    public int tickFewRequests() {
+        for (int client = sequence++ % 100; client < clients; client += 100) {
+            request(client);
+        }
+        allocator.tick();
+        return allocator.getLoadWatts();
+    }
+
+    private void request(int client) {
+        if (table.pending(client) > 0) {
+            table.setPending(client, table.pending(client) + 1);
+        } else {
+            table.setPending(client, 1);
+            table.setGranted(client, 0);
+        }
+        allocator.requestArrived(client);
+    }
+}
@@ -0,0 +1,27 @@
+package njit.smartgrid;
+
+// Client tables for the benchmarks
+final class BenchmarkClients {
+
+    private BenchmarkClients() {
+    }
+
+    // Address of the i-th fake client, in 10.0.0.0/8
+    static int address(int i) {
+        return (10 << 24) | (i + 1);
+    }
+
+    // Fake clients that all have a request pending, every third one holding a grant
+    static ClientTable table(int numClients) {
+        ClientTable clients = new ClientTable(numClients);
+        for (int i = 0; i < numClients; i++) {
+            int client = clients.add(ClientTable.key(address(i), 0));
+            clients.setRequested(client, PowerRequest.POWER_HIGH);
+            clients.setPending(client, 1);
+            if (i % 3 == 0) {
+                clients.setGranted(client, PowerRequest.POWER_HIGH);
+            }
+        }
+        return clients;
+    }
+}
@@ -0,0 +1,39 @@
+package njit.smartgrid;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Entry point of benchmarks.jar. Runs JMH with allocation profiling (-prof gc) and JSON
+// results (jmh-result.json) unless told otherwise, so every run leaves a file that can
+// be compared with the same run on another revision.
+//
+// Usage: java -jar benchmarks/target/benchmarks.jar [JMH options] [benchmark regex]
+//   e.g. java -jar benchmarks/target/benchmarks.jar -rff before.json GrantPacket
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!hasProfiler(options, "gc")) {
+            options.add(0, "-prof");
+            options.add(1, "gc");
+        }
+        if (!options.contains("-rf")) {
+            options.add(0, "-rf");
+            options.add(1, "json");
+        }
+        if (!options.contains("-rff")) {
+            options.add(0, "-rff");
+            options.add(1, "jmh-result.json");
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+
+    private static boolean hasProfiler(List<String> options, String name) {
+        for (int i = 0; i < options.size() - 1; i++) {
+            if (options.get(i).equals("-prof") && options.get(i + 1).split(":")[0].equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,57 @@
+package njit.smartgrid;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Latency distribution (p50/p99/...) of sending one client request to a loopback
+// "server" that never reads: on the client's long-lived ClientChannel, and the way
+// PowerClient used to do it, with a new socket and buffers per request.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientSendBenchmark {
+
+    private DatagramChannel server;
+    private InetSocketAddress serverAddr;
+    private ClientChannel channel;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = DatagramChannel.open(StandardProtocolFamily.INET);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        serverAddr = (InetSocketAddress) server.getLocalAddress();
+        channel = new ClientChannel(serverAddr, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void sendOnChannel() throws IOException {
+        channel.send(PowerRequest.POWER_HIGH);
+    }
+
+    @Benchmark
+    public void sendOnNewSocket() throws IOException {
+        try (DatagramSocket sendSocket = new DatagramSocket()) {
+            ByteBuffer requestBuffer = ByteBuffer.allocate(PowerClient.REQUEST_PACKET_LENGTH);
+            requestBuffer.putLong(System.currentTimeMillis());
+            requestBuffer.putInt(PowerRequest.POWER_HIGH);
+            sendSocket.send(new DatagramPacket(requestBuffer.array(), PowerClient.REQUEST_PACKET_LENGTH,
+                    serverAddr.getAddress(), serverAddr.getPort()));
+        }
+    }
+}
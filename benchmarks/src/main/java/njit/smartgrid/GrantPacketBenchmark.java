@@ -0,0 +1,92 @@
+package njit.smartgrid;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Cost of encoding a grant tick on the server and of picking it apart on the client.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GrantPacketBenchmark {
+
+    @Param({ "10", "1000", "100000" })
+    public int clients;
+
+    // Fraction of the clients whose grant changes between two delta ticks
+    private static final int DELTA_CHANGE_EVERY = 100;
+
+    private ClientTable table;
+    private PowerGrantPacket encoder;
+    private PowerGrantPacket[] received;    // One keyframe tick, as the client receives it
+    private int myAddr;
+    private int sequence = 0;
+    private int lastSequence;          // Read by clientParse, as the client tracks the tick it is in
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        table = BenchmarkClients.table(clients);
+        encoder = new PowerGrantPacket(InetAddress.getLoopbackAddress());
+        encoder.encode(sequence++, table);
+        received = new PowerGrantPacket[encoder.getPacketCount()];
+        for (int segment = 0; segment < received.length; segment++) {
+            received[segment] = new PowerGrantPacket();
+            int length = encoder.getPacket(segment).getLength();
+            System.arraycopy(encoder.getPacket(segment).getData(), 0, received[segment].getData(), 0, length);
+            received[segment].getPacket().setLength(length);
+        }
+        // Someone in the middle of the tick, so the client has to look for its segment
+        myAddr = BenchmarkClients.address(clients / 2);
+    }
+
+    @Benchmark
+    public int encodeKeyframe() {
+        encoder.encode(sequence++, table, true);
+        return encoder.getPacketCount();
+    }
+
+    // A delta tick after one in a hundred clients had their grant changed
+    @Benchmark
+    public int encodeDelta() {
+        for (int client = sequence % DELTA_CHANGE_EVERY; client < clients; client += DELTA_CHANGE_EVERY) {
+            table.setGranted(client, table.granted(client) == 0 ? PowerRequest.POWER_LOW : 0);
+        }
+        encoder.encode(sequence++, table, false);
+        return encoder.getPacketCount();
+    }
+
+    // What PowerClient.listenForGrant does with each segment of a tick until it has
+    // found its own entry
+    @Benchmark
+    public int clientParse() {
+        for (PowerGrantPacket packet : received) {
+            if (!packet.isValid()) {
+                continue;
+            }
+            lastSequence = packet.getSequence();
+            int entry = packet.findEntry(myAddr);
+            if (entry >= 0) {
+                return packet.getEntryGrant(entry);
+            }
+            if (packet.coversAddress(myAddr)) {
+                return 0;
+            }
+        }
+        return -1;
+    }
+
+    // Every entry of every segment, as PowerLoadGenerator reads a tick
+    @Benchmark
+    public long decodeAll() {
+        long sum = 0;
+        for (PowerGrantPacket packet : received) {
+            int entryCount = packet.getEntryCount();
+            for (int e = 0; e < entryCount; e++) {
+                sum += packet.getEntryAddress(e) ^ packet.getEntryGrant(e);
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,146 @@
+package njit.smartgrid;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.*;
+
+// Stress test of the server's request ingest: three ingest threads offer requests to a
+// RequestQueue while the tick thread drains it into the client table and allocator the
+// way PowerServer does. The secondary scores count requests queued and dropped by the
+// ingest threads, and requests drained (and applied) by the tick thread.
+//
+// At the end of each trial the queue is checked: every request offered was either
+// drained exactly once or counted as dropped, and each ingest thread's requests were
+// drained in the order it offered them. The trial fails otherwise.
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dsmartgrid.log.async=true" })
+public class IngestBenchmark {
+
+    private static final int INGEST_THREADS = 3;
+    private static final int CLIENTS_PER_THREAD = 1000;
+
+    @Param({ "1024", "65536" })
+    public int queueCapacity;
+
+    private RequestQueue queue;
+    private ClientTable table;
+    private ShardedAllocator allocator;
+    private final AtomicInteger nextThread = new AtomicInteger();
+    private final LongAdder offered = new LongAdder();
+    // Tick thread only
+    private final long[] lastCount = new long[INGEST_THREADS];
+    private long drained = 0;
+    private int tick = 0;
+    private String failure = null;
+
+    private final RequestQueue.Consumer consumer = new RequestQueue.Consumer() {
+        @Override
+        public void request(long key, int powerRequested, int powerGranted, long clientTime, long arrivalNanos) {
+            int thread = (int) (clientTime >>> 40);
+            long count = clientTime & ((1L << 40) - 1);
+            if (count <= lastCount[thread] && failure == null) {
+                failure = "Thread " + thread + ": request " + count + " drained after " + lastCount[thread];
+            }
+            lastCount[thread] = count;
+            drained++;
+            int numClients = table.size();
+            int client = table.add(key);
+            if (table.size() > numClients) {
+                allocator.addClient(client);
+            }
+            if (allocator.queueRequest(client, powerRequested, tick)) {
+                table.setRequestTime(client, arrivalNanos, clientTime);
+            }
+        }
+
+        @Override
+        public void slotQuery(int address) {
+        }
+    };
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class IngestThread {
+        public long queued, dropped;
+        int id = -1;
+        long count = 0;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            queued = 0;
+            dropped = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class TickThread {
+        public long drained;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            drained = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        queue = new RequestQueue(queueCapacity);
+        table = new ClientTable(INGEST_THREADS * CLIENTS_PER_THREAD);
+        // Room for about half of the clients
+        allocator = new ShardedAllocator(table, INGEST_THREADS * CLIENTS_PER_THREAD * PowerRequest.POWER_HIGH / 2, 1,
+                new PowerLog(true));
+    }
+
+    @TearDown(Level.Trial)
+    public void check() {
+        while (queue.drain(consumer) > 0) {
+            // Whatever the ingest threads left behind
+        }
+        if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+        long lost = offered.sum() - drained - queue.dropped();
+        if (lost != 0) {
+            throw new IllegalStateException(offered.sum() + " offered, " + drained + " drained, " + queue.dropped()
+                    + " dropped");
+        }
+    }
+
+    @Benchmark
+    @Group("ingest")
+    @GroupThreads(INGEST_THREADS)
+    public boolean offer(IngestThread thread) {
+        if (thread.id < 0) {
+            thread.id = nextThread.getAndIncrement();
+        }
+        long count = ++thread.count;
+        int address = BenchmarkClients.address(thread.id * CLIENTS_PER_THREAD + (int) (count % CLIENTS_PER_THREAD));
+        offered.increment();
+        if (queue.offerRequest(ClientTable.key(address, 0), PowerRequest.POWER_HIGH, (long) thread.id << 40 | count,
+                System.nanoTime()) >= 0) {
+            thread.queued++;
+            return true;
+        }
+        thread.dropped++;
+        return false;
+    }
+
+    // One tick's worth of draining, followed by the tick itself every so often
+    @Benchmark
+    @Group("ingest")
+    @GroupThreads(1)
+    public int drain(TickThread thread) {
+        int count = queue.drain(consumer);
+        thread.drained += count;
+        if (count == 0) {
+            tick++;
+            allocator.tick();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,57 @@
+package njit.smartgrid;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Cost of PowerLog.logRequest on the caller's thread, in each of the log's modes. The
+// mode is picked by system properties when PowerLog is loaded, so every mode gets its
+// own fork. Log files are written to the working directory.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PowerLogBenchmark {
+
+    // Number of distinct client addresses the requests come from
+    @Param({ "10", "1000", "100000" })
+    public int clients;
+
+    private PowerLog log;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        log = new PowerLog(true);
+    }
+
+    private int nextAddress() {
+        if (++next == clients) {
+            next = 0;
+        }
+        return BenchmarkClients.address(next);
+    }
+
+    @Benchmark
+    @Fork(1)
+    public void logRequestSync() {
+        log.logRequest(nextAddress(), PowerRequest.POWER_HIGH, 1_500_000_000_000L);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = { "-Dsmartgrid.log.async=true" })
+    public void logRequestAsync() {
+        log.logRequest(nextAddress(), PowerRequest.POWER_HIGH, 1_500_000_000_000L);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = { "-Dsmartgrid.log.format=binary" })
+    public void logRequestBinary() {
+        log.logRequest(nextAddress(), PowerRequest.POWER_HIGH, 1_500_000_000_000L);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = { "-Dsmartgrid.log.async=true", "-Dsmartgrid.log.format=binary" })
+    public void logRequestAsyncBinary() {
+        log.logRequest(nextAddress(), PowerRequest.POWER_HIGH, 1_500_000_000_000L);
+    }
+}
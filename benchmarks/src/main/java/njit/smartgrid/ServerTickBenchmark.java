@@ -0,0 +1,48 @@
+package njit.smartgrid;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Cost of a whole server tick (PowerServer.computeGrants): draining the request queue
+// into the client table, the allocation, a delta grant tick, and the request-to-grant
+// stats, when some of the clients send a request each tick. AllocatorBenchmark measures
+// the allocation on its own.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dsmartgrid.log.async=true", "-Dsmartgrid.log.format=binary",
+        "-Dsmartgrid.quiet=true", "-Dsmartgrid.keyframeInterval=1000", "-Dsmartgrid.ingress.clientRate=0", "-Dsmartgrid.ingestQueue=262144" })
+public class ServerTickBenchmark {
+
+    @Param({ "1000", "100000" })
+    public int clients;
+
+    // Percentage of the clients sending a request each tick
+    @Param({ "1", "100" })
+    public int requesting;
+
+    private PowerServer server;
+    private int tick = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        // Capacity for about half of the clients
+        server = new PowerServer(loopback, loopback, 100, clients * PowerRequest.POWER_HIGH / 2);
+        for (int i = 0; i < clients; i++) {
+            server.receiveRequest(BenchmarkClients.address(i), 0, PowerRequest.POWER_HIGH, 0);
+        }
+        server.computeTick();
+    }
+
+    @Benchmark
+    public void computeGrants() {
+        int step = 100 / requesting;
+        for (int i = tick++ % step; i < clients; i += step) {
+            server.receiveRequest(BenchmarkClients.address(i), 0, PowerRequest.POWER_HIGH, 0);
+        }
+        server.computeTick();
+    }
+}
@@ -0,0 +1,133 @@
+package njit.smartgrid;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientTableTest {
+
+    @Test
+    void addressOrderFollowsAdds() {
+        ClientTable clients = new ClientTable();
+        Random random = new Random(1);
+        for (int round = 0; round < 50; round++) {
+            // Some rounds add one client, some a batch, and the order is read in between
+            int adds = round % 5 == 0 ? 500 : 1 + random.nextInt(3);
+            for (int i = 0; i < adds; i++) {
+                int client = clients.add(ClientTable.key(random.nextInt(), random.nextInt(4)));
+                assertEquals(client, clients.indexOf(clients.key(client)));
+            }
+            assertSorted(clients);
+        }
+    }
+
+    @Test
+    void readdingKeepsClientNumber() {
+        ClientTable clients = new ClientTable();
+        int first = clients.add(ClientTable.key(0x0A000002, 0));
+        clients.add(ClientTable.key(0x0A000001, 0));
+        assertEquals(first, clients.add(ClientTable.key(0x0A000002, 0)));
+        assertEquals(2, clients.size());
+        assertEquals(1, clients.rankOf(ClientTable.key(0x0A000002, 0)));
+        assertEquals(2, clients.rankOf(ClientTable.key(0x0A000003, 0)));
+        // Unsigned address order: 255.x sorts after 10.x
+        clients.add(ClientTable.key(0xFF000001, 0));
+        assertEquals(2, clients.rankOf(ClientTable.key(0xFF000001, 0)));
+        assertSorted(clients);
+    }
+
+    @Test
+    void deltaTicksCarryTheChangedGrants() throws Exception {
+        ClientTable clients = new ClientTable();
+        Random random = new Random(2);
+        PowerGrantPacket tick = new PowerGrantPacket(InetAddress.getByName("127.0.0.1"));
+        int[] sent = new int[0];
+        for (int round = 0; round < 30; round++) {
+            for (int i = 0; i < 100; i++) {
+                clients.add(ClientTable.key(random.nextInt(), random.nextInt(2)));
+            }
+            sent = Arrays.copyOf(sent, clients.size());
+            // Change some grants, some back to what was sent
+            for (int i = 0; i < 300; i++) {
+                int client = random.nextInt(clients.size());
+                clients.setGranted(client, random.nextBoolean() ? sent[client] : random.nextInt(3) * PowerRequest.POWER_LOW);
+            }
+            boolean keyframe = round % 10 == 0;
+            tick.encode(round, clients, keyframe);
+            long previous = -1;
+            int entries = 0;
+            PowerGrantPacket received = new PowerGrantPacket();
+            for (int segment = 0; segment < tick.getPacketCount(); segment++) {
+                DatagramPacket packet = tick.getPacket(segment);
+                System.arraycopy(packet.getData(), 0, received.getData(), 0, packet.getLength());
+                received.getPacket().setLength(packet.getLength());
+                for (int i = 0; i < received.getEntryCount(); i++, entries++) {
+                    long key = received.getEntryKey(i);
+                    assertTrue(key > previous, "entries in address order");
+                    previous = key;
+                    int client = clients.indexOf(key);
+                    assertEquals(clients.granted(client), received.getEntryGrant(i));
+                    assertTrue(keyframe || clients.granted(client) != sent[client], "unchanged grant sent");
+                    sent[client] = -1;
+                }
+            }
+            for (int client = 0; client < clients.size(); client++) {
+                if (sent[client] >= 0) {
+                    assertEquals(clients.granted(client), sent[client], "changed grant not sent");
+                }
+                sent[client] = clients.granted(client);
+            }
+            if (keyframe) {
+                assertEquals(clients.size(), entries);
+            }
+        }
+    }
+
+    @Test
+    void checkpointCopiesKeepUpWithTheTable() {
+        ClientTable clients = new ClientTable();
+        Random random = new Random(3);
+        long[] keys = new long[0];
+        int[] requested = new int[0], granted = new int[0], pending = new int[0], lastSeen = new int[0];
+        for (int round = 0; round < 30; round++) {
+            for (int i = 0; i < 50; i++) {
+                int client = clients.add(ClientTable.key(random.nextInt(), 0));
+                switch (random.nextInt(4)) {
+                    case 0: clients.setRequested(client, random.nextInt(200)); break;
+                    case 1: clients.setGranted(client, random.nextInt(200)); break;
+                    case 2: clients.setPending(client, random.nextInt(5)); break;
+                    default: clients.setLastSeen(client, round); break;
+                }
+            }
+            if (round % 3 == 2) {
+                continue;   // A checkpoint the writer had no time for
+            }
+            keys = Arrays.copyOf(keys, clients.size());
+            requested = Arrays.copyOf(requested, clients.size());
+            granted = Arrays.copyOf(granted, clients.size());
+            pending = Arrays.copyOf(pending, clients.size());
+            lastSeen = Arrays.copyOf(lastSeen, clients.size());
+            clients.copyChangedState(keys, requested, granted, pending, lastSeen);
+            for (int client = 0; client < clients.size(); client++) {
+                assertEquals(clients.key(client), keys[client]);
+                assertEquals(clients.requested(client), requested[client]);
+                assertEquals(clients.granted(client), granted[client]);
+                assertEquals(clients.pending(client), pending[client]);
+                assertEquals(clients.lastSeen(client), lastSeen[client]);
+            }
+        }
+    }
+
+    private static void assertSorted(ClientTable clients) {
+        for (int rank = 0; rank < clients.size(); rank++) {
+            int client = clients.byAddress(rank);
+            if (rank > 0) {
+                assertTrue(clients.key(clients.byAddress(rank - 1)) < clients.key(client));
+            }
+            assertEquals(rank, clients.rankOf(clients.key(client)));
+        }
+    }
+}
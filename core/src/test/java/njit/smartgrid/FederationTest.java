@@ -0,0 +1,135 @@
+package njit.smartgrid;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A parent and two leaves on loopback. Each leaf is a FederationLink and an allocator,
+// ticked here the way PowerServer ticks them: pick up the assigned capacity, queue the
+// requests, tick, report.
+class FederationTest {
+
+    private static final int SITE_WATTS = 400;
+    private static final int PERIOD_MILLIS = 200;
+    private static final int TICK_MILLIS = 5;
+    private static final int TIMEOUT_PERIODS = 10;     // FederationServer's default
+
+    static final class Leaf {
+        final ShardedAllocatorTest.Allocation allocation;
+        final AtomicInteger assigned = new AtomicInteger(-1);
+        final FederationLink link;
+        final int firstAddress;
+        int sequence = 0;
+
+        Leaf(int capacityWatts, int firstAddress) throws Exception {
+            this(capacityWatts, firstAddress, FederationServer.PARENT_PORT);
+        }
+
+        Leaf(int capacityWatts, int firstAddress, int parentPort) throws Exception {
+            allocation = new ShardedAllocatorTest.Allocation(capacityWatts, 1);
+            link = new FederationLink(new InetSocketAddress("127.0.0.1", parentPort), assigned::set);
+            link.start();
+            this.firstAddress = firstAddress;
+        }
+
+        void tick(int clients) {
+            int watts = assigned.get();
+            if (watts >= 0 && watts != allocation.allocator.getMaxLoadWatts()) {
+                allocation.allocator.setMaxLoadWatts(watts);
+            }
+            for (int c = 0; c < clients; c++) {
+                allocation.request(firstAddress + c, PowerRequest.POWER_BOTH);
+            }
+            allocation.tick();
+            assertTrue(allocation.grantedWatts() <= allocation.allocator.getMaxLoadWatts());
+            assertEquals(allocation.grantedWatts(), allocation.allocator.getLoadWatts());
+        }
+
+        void report() {
+            ShardedAllocator allocator = allocation.allocator;
+            link.report(sequence++, allocator.getLoadWatts() + allocator.getUnmetWatts(), allocator.getLoadWatts(),
+                    allocator.getMaxLoadWatts());
+        }
+    }
+
+    @Test
+    void capacityFollowsDemandWithinTheSiteCapacity() throws Exception {
+        Thread parent = new Thread(new FederationServer(InetAddress.getByName("127.0.0.1"), PERIOD_MILLIS, SITE_WATTS)::run,
+                "Federation parent");
+        parent.setDaemon(true);
+        parent.start();
+        Leaf a = new Leaf(SITE_WATTS / 2, 0x0A000100);
+        Leaf b = new Leaf(SITE_WATTS / 2, 0x0A000200);
+
+        // a reports that it is idle, then grants 200W to new requests and goes quiet, so
+        // the parent splits the capacity on a report that no longer holds. b wants 400W.
+        a.tick(0);
+        a.report();
+        a.tick(2);
+        assertEquals(200, a.allocation.grantedWatts(), "a grants after reporting");
+        boolean cut = false;
+        long deadline = System.nanoTime() + 20L * PERIOD_MILLIS * 1_000_000L;
+        while (b.allocation.grantedWatts() < SITE_WATTS) {
+            assertTrue(System.nanoTime() < deadline, "b never got the whole site: a "
+                    + a.allocation.allocator.getMaxLoadWatts() + "W, b " + b.allocation.allocator.getMaxLoadWatts() + "W");
+            a.tick(cut ? 0 : 2);
+            if (a.allocation.allocator.getMaxLoadWatts() == 0) {
+                // a was cut below the load it granted, and took its grants back
+                assertEquals(0, a.allocation.grantedWatts());
+                cut = true;
+            }
+            if (cut) {
+                a.report();
+            }
+            b.tick(4);
+            b.report();
+            assertTrue(a.allocation.grantedWatts() + b.allocation.grantedWatts() <= SITE_WATTS);
+            Thread.sleep(TICK_MILLIS);
+        }
+        assertTrue(cut);
+        assertEquals(0, a.allocation.allocator.getMaxLoadWatts());
+        assertEquals(SITE_WATTS, b.allocation.allocator.getMaxLoadWatts());
+    }
+
+    @Test
+    void leafWhoseReportsAreLostStopsGrantingBeforeItsShareIsReclaimed() throws Exception {
+        final int period = 50;
+        final int port = FederationServer.PARENT_PORT + 1;
+        Thread parent = new Thread(new FederationServer(InetAddress.getByName("127.0.0.1"), port, period, SITE_WATTS)::run,
+                "Federation parent");
+        parent.setDaemon(true);
+        parent.start();
+        Leaf a = new Leaf(SITE_WATTS / 2, 0x0A000100, port);
+        Leaf b = new Leaf(SITE_WATTS / 2, 0x0A000200, port);
+
+        // Both report until the parent has split the site: a grants 200W, b wants 400W
+        long deadline = System.nanoTime() + 20L * period * 1_000_000L;
+        while (a.assigned.get() < 0 || b.assigned.get() < 0) {
+            assertTrue(System.nanoTime() < deadline, "no capacity assigned");
+            a.tick(2);
+            a.report();
+            b.tick(4);
+            b.report();
+            Thread.sleep(TICK_MILLIS);
+        }
+        assertEquals(200, a.allocation.grantedWatts());
+
+        // Then a's reports are lost, but it still hears from the parent until the parent
+        // times it out. It must have stopped granting by the time b is given its share.
+        deadline = System.nanoTime() + 4L * TIMEOUT_PERIODS * period * 1_000_000L;
+        while (b.allocation.grantedWatts() < SITE_WATTS) {
+            assertTrue(System.nanoTime() < deadline, "b never got the whole site: a "
+                    + a.allocation.allocator.getMaxLoadWatts() + "W, b " + b.allocation.allocator.getMaxLoadWatts() + "W");
+            a.tick(2);
+            b.tick(4);
+            b.report();
+            assertTrue(a.allocation.grantedWatts() + b.allocation.grantedWatts() <= SITE_WATTS, "a "
+                    + a.allocation.grantedWatts() + "W, b " + b.allocation.grantedWatts() + "W granted");
+            Thread.sleep(TICK_MILLIS);
+        }
+        assertEquals(0, a.allocation.allocator.getMaxLoadWatts());
+        assertEquals(0, a.allocation.grantedWatts());
+    }
+}
@@ -0,0 +1,121 @@
+package njit.smartgrid;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GrantReserveTest {
+
+    private static final int THREADS = 4;
+    // Enough for every thread's requests
+    private static final int WATTS = PowerRequest.POWER_BOTH + THREADS * PowerRequest.POWER_HIGH;
+
+    @Test
+    void clientsWithRequestsInProgressWait() {
+        ShardedAllocatorTest.Allocation allocation = new ShardedAllocatorTest.Allocation(1000, 2);
+        int busy = allocation.request(1, PowerRequest.POWER_LOW);
+        allocation.tick();
+        GrantReserve reserve = new GrantReserve();
+        reserve.open(500, allocation.clients, allocation.allocator, 7);
+        reserve.sent(7);
+        assertEquals(0, reserve.take(allocation.clients.key(busy), PowerRequest.POWER_BOTH));
+        assertEquals(PowerRequest.POWER_BOTH, reserve.take(ClientTable.key(2, 0), PowerRequest.POWER_BOTH));
+        reserve.done(0);
+        // One grant per client until the next tick
+        assertEquals(0, reserve.take(ClientTable.key(2, 0), PowerRequest.POWER_BOTH));
+        assertEquals(PowerRequest.POWER_BOTH, reserve.take(ClientTable.key(3, 0), PowerRequest.POWER_BOTH));
+        reserve.done(0);
+        // 300W left for three more
+        assertEquals(PowerRequest.POWER_BOTH, reserve.take(ClientTable.key(4, 0), PowerRequest.POWER_BOTH));
+        reserve.done(0);
+        assertEquals(PowerRequest.POWER_BOTH, reserve.take(ClientTable.key(5, 0), PowerRequest.POWER_BOTH));
+        reserve.done(0);
+        assertEquals(PowerRequest.POWER_BOTH, reserve.take(ClientTable.key(6, 0), PowerRequest.POWER_BOTH));
+        reserve.done(0);
+        assertEquals(0, reserve.take(ClientTable.key(7, 0), PowerRequest.POWER_LOW));
+        // Not before the tick it was opened after is sent
+        reserve.close();
+        reserve.open(500, allocation.clients, allocation.allocator, 8);
+        assertEquals(0, reserve.take(ClientTable.key(8, 0), PowerRequest.POWER_LOW));
+        reserve.sent(8);
+        assertEquals(PowerRequest.POWER_LOW, reserve.take(ClientTable.key(8, 0), PowerRequest.POWER_LOW));
+        reserve.done(0);
+    }
+
+    @Test
+    void grantOnArrivalOverAnUngrantedRequestIsKept() {
+        ShardedAllocatorTest.Allocation allocation = new ShardedAllocatorTest.Allocation(1000, 2);
+        allocation.tick();
+        GrantReserve reserve = new GrantReserve();
+        reserve.open(500, allocation.clients, allocation.allocator, 1);
+        long key = ClientTable.key(1, 0);
+        // The first request arrives before the tick is sent, and is queued without a grant
+        assertEquals(0, reserve.take(key, PowerRequest.POWER_LOW));
+        allocation.request(1, PowerRequest.POWER_LOW);
+        // The next one from the same client in this tick is granted on arrival
+        reserve.sent(1);
+        assertEquals(PowerRequest.POWER_BOTH, reserve.take(key, PowerRequest.POWER_BOTH));
+        reserve.done(0);
+        int client = allocation.request(1, PowerRequest.POWER_BOTH);
+        allocation.allocator.grantNow(client, PowerRequest.POWER_BOTH);
+        // The tick confirms the grant just sent
+        allocation.tick();
+        assertEquals(PowerRequest.POWER_BOTH, allocation.granted(1));
+        assertEquals(PowerRequest.POWER_BOTH, allocation.allocator.getLoadWatts());
+    }
+
+    @Test
+    void simultaneousFirstRequestsGetOneGrant() throws Exception {
+        ShardedAllocatorTest.Allocation allocation = new ShardedAllocatorTest.Allocation(100_000, 1);
+        GrantReserve reserve = new GrantReserve();
+        CyclicBarrier barrier = new CyclicBarrier(THREADS + 1);
+        AtomicInteger granted = new AtomicInteger();
+        AtomicInteger wattsTaken = new AtomicInteger();
+        final int rounds = 500;
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int round = 0; round < rounds; round++) {
+                        barrier.await();
+                        // Every thread asks for the same new client, and for one of its own
+                        int watts = reserve.take(ClientTable.key(round, 0), PowerRequest.POWER_BOTH);
+                        if (watts > 0) {
+                            granted.incrementAndGet();
+                            wattsTaken.addAndGet(watts);
+                            reserve.done(0);
+                        }
+                        watts = reserve.take(ClientTable.key(round, 1 + (int) Thread.currentThread().getId() % 1000),
+                                PowerRequest.POWER_HIGH);
+                        if (watts > 0) {
+                            wattsTaken.addAndGet(watts);
+                            reserve.done(0);
+                        }
+                        barrier.await();
+                    }
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            threads[t].start();
+        }
+        for (int round = 0; round < rounds; round++) {
+            reserve.open(WATTS, allocation.clients, allocation.allocator, round);
+            reserve.sent(round);
+            granted.set(0);
+            wattsTaken.set(0);
+            barrier.await();
+            barrier.await();
+            reserve.close();
+            assertEquals(1, granted.get(), "round " + round);
+            assertTrue(wattsTaken.get() <= WATTS, "round " + round);
+            while (!reserve.settled()) {
+                reserve.applied();
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package njit.smartgrid;
+import java.net.InetAddress;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Ipv4Test {
+
+    @Test
+    void noCopyMatchesCopy() throws Exception {
+        for (String host : new String[] { "127.0.0.1", "10.0.0.255", "192.168.1.10", "255.255.255.255", "0.0.0.0" }) {
+            InetAddress addr = InetAddress.getByName(host);
+            assertEquals(Ipv4.toInt(addr), Ipv4.toIntNoCopy(addr), host);
+            assertEquals(addr, Ipv4.toInetAddress(Ipv4.toInt(addr)), host);
+        }
+    }
+
+    @Test
+    void rejectsIpv6() throws Exception {
+        InetAddress addr = InetAddress.getByName("fe80::1");
+        assertThrows(IllegalArgumentException.class, () -> Ipv4.toIntNoCopy(addr));
+        assertThrows(IllegalArgumentException.class, () -> Ipv4.toInt(addr));
+    }
+}
@@ -0,0 +1,83 @@
+package njit.smartgrid;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A PowerClient on loopback with mock GPIO, sent grant ticks as the server sends them
+class PowerClientTest {
+
+    private static final long TIMEOUT_NANOS = 5_000_000_000L;
+
+    @Test
+    void defaultDriverRunsOffThePi() throws Exception {
+        boolean pi = Files.isDirectory(Paths.get(SysfsGpioDriver.GPIO_DIR));
+        assertEquals(pi ? "sysfs" : "mock", GpioDriver.defaultName());
+        if (!pi) {
+            try (GpioDriver driver = GpioDriver.open(GpioDriver.defaultName())) {
+                driver.write(true, false);
+            }
+        }
+    }
+
+    @Test
+    void grantsDriveTheOutputs() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        PowerClient client = new PowerClient(loopback, loopback);
+        MockGpioDriver gpio = new MockGpioDriver();
+        client.openGpio(gpio);
+        assertEquals(1, gpio.writes());     // Both outputs off to start with
+        Thread thread = new Thread(() -> client.run(0.5, 5), "PowerClient");
+        thread.setDaemon(true);
+        thread.start();
+
+        ClientTable clients = new ClientTable();
+        int me = clients.add(ClientTable.key(Ipv4.toInt(loopback), 0));
+        clients.add(ClientTable.key(Ipv4.toInt(loopback) + 1, 0));
+        PowerGrantPacket tick = new PowerGrantPacket(loopback);
+        try (DatagramSocket socket = new DatagramSocket();
+             DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            int sequence = 0;
+            sendTick(socket, tick, clients, me, PowerRequest.POWER_BOTH, sequence++);
+            awaitOutputs(gpio, true, true);
+            sendTick(socket, tick, clients, me, PowerRequest.POWER_HIGH, sequence++);
+            awaitOutputs(gpio, true, false);
+            // The same grant again doesn't touch the outputs
+            long writes = gpio.writes();
+            sendTick(socket, tick, clients, me, PowerRequest.POWER_HIGH, sequence++);
+            sendTick(socket, tick, clients, me, PowerRequest.POWER_LOW, sequence++);
+            awaitOutputs(gpio, false, true);
+            assertEquals(writes + 1, gpio.writes());
+            sendTick(socket, tick, clients, me, 0, sequence++);
+            awaitOutputs(gpio, false, false);
+
+            // A grant on arrival, between two ticks
+            ImmediateGrant immediate = new ImmediateGrant(channel);
+            immediate.add(Ipv4.toInt(loopback), 0, PowerRequest.POWER_BOTH);
+            immediate.flush();
+            awaitOutputs(gpio, true, true);
+        }
+    }
+
+    private static void sendTick(DatagramSocket socket, PowerGrantPacket tick, ClientTable clients, int me, int watts,
+                                 int sequence) throws Exception {
+        clients.setGranted(me, watts);
+        tick.encode(sequence, clients, true);
+        for (int segment = 0; segment < tick.getPacketCount(); segment++) {
+            socket.send(tick.getPacket(segment));
+        }
+    }
+
+    private static void awaitOutputs(MockGpioDriver gpio, boolean high, boolean low) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (gpio.highPower() != high || gpio.lowPower() != low) {
+            assertTrue(System.nanoTime() < deadline, "outputs never went to " + high + "/" + low);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package njit.smartgrid;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PowerLogReaderTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void loadIdsSurviveTheBinaryLog() throws Exception {
+        String base = dir.resolve("server").toString();
+        int addr = 0x0A000001;      // 10.0.0.1
+        BinaryLogWriter writer = new BinaryLogWriter(base, true, 1 << 16);
+        long now = System.currentTimeMillis();      // Not before the segment's base time
+        writer.append(PowerLog.TYPE_REQUEST, now, now, addr, 0, PowerRequest.POWER_LOW, null);
+        writer.append(PowerLog.TYPE_REQUEST, now, now, addr, 3, PowerRequest.POWER_HIGH, null);
+        // A peer time too far off for the record, as well as a load ID
+        writer.append(PowerLog.TYPE_REQUEST, now, now - (1L << 40), addr, 7, PowerRequest.POWER_BOTH, null);
+        writer.append(PowerLog.TYPE_GRANT, now, 0, addr, 65535, PowerRequest.POWER_HIGH, null);
+        writer.close();
+
+        StringWriter out = new StringWriter();
+        new PowerLogReader().toCsv(BinaryLogWriter.segmentName(base, 0), out);
+        String[] lines = out.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].endsWith(",10.0.0.1,0," + PowerRequest.POWER_LOW), lines[0]);
+        assertTrue(lines[1].endsWith(",10.0.0.1,3," + PowerRequest.POWER_HIGH), lines[1]);
+        assertTrue(lines[2].endsWith(",10.0.0.1,7," + PowerRequest.POWER_BOTH), lines[2]);
+        assertTrue(lines[3].startsWith("GRA,"), lines[3]);
+        assertTrue(lines[3].endsWith(",10.0.0.1,65535," + PowerRequest.POWER_HIGH), lines[3]);
+        StringBuilder expected = new StringBuilder();
+        new CsvLogFormat(true).format(expected, PowerLog.TYPE_REQUEST, now, now - (1L << 40), addr, 7,
+                PowerRequest.POWER_BOTH, null);
+        assertEquals(expected.toString(), lines[2]);
+    }
+}
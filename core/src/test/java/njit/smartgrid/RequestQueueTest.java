@@ -0,0 +1,190 @@
+package njit.smartgrid;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Ingest threads offer requests, some of which are granted on arrival, while the tick
+// thread drains them, ticks and reopens the reserve the way PowerServer does
+class RequestQueueTest {
+
+    private static final int THREADS = 3;
+    private static final int ADDRESSES = 2000;      // Shared by all the threads
+    private static final int TICKS = 5000;
+    private static final int CAPACITY_WATTS = 30000;
+    private static final int[] LEVELS = { PowerRequest.POWER_LOW, PowerRequest.POWER_HIGH, PowerRequest.POWER_BOTH };
+
+    static final class IngestThread extends Thread {
+        final int id;
+        final RequestQueue queue;
+        final AtomicBoolean stop;
+        long offered = 0;
+        long accepted = 0;
+        long grantedWatts = 0;
+
+        IngestThread(int id, RequestQueue queue, AtomicBoolean stop) {
+            super("Request ingest " + id);
+            this.id = id;
+            this.queue = queue;
+            this.stop = stop;
+        }
+
+        @Override
+        public void run() {
+            Random random = new Random(id);
+            while (!stop.get()) {
+                long key = ClientTable.key(0x0A000000 + random.nextInt(ADDRESSES), 0);
+                // The client time carries the thread and a count, so the tick thread can
+                // tell each request apart
+                int watts = queue.offerRequest(key, LEVELS[random.nextInt(LEVELS.length)], (long) id << 40 | ++offered,
+                        System.nanoTime());
+                if (watts >= 0) {
+                    accepted++;
+                    grantedWatts += watts;
+                }
+                if (offered % 64 == 0) {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    // The tick thread's side: applies each request as PowerServer.addRequest does, and
+    // checks the order of each thread's requests and the grants they carry
+    static final class Drain implements RequestQueue.Consumer {
+        final ShardedAllocatorTest.Allocation allocation;
+        final long[] last = new long[THREADS];
+        final long[] drained = new long[THREADS];
+        final long[] grantedWatts = new long[THREADS];
+        boolean[] busyAtOpen = new boolean[0];
+        int[] grantedInDrain = new int[0];
+        int drainNumber = 0;
+        int immediateWatts;
+        String failure = null;
+
+        Drain(ShardedAllocatorTest.Allocation allocation) {
+            this.allocation = allocation;
+        }
+
+        @Override
+        public void request(long key, int powerRequested, int powerGranted, long clientTime, long arrivalNanos) {
+            int thread = (int) (clientTime >>> 40);
+            long count = clientTime & ((1L << 40) - 1);
+            if (count <= last[thread]) {
+                fail("thread " + thread + ": request " + count + " drained after " + last[thread]);
+            }
+            last[thread] = count;
+            drained[thread]++;
+            grantedWatts[thread] += powerGranted;
+            ClientTable clients = allocation.clients;
+            int numClients = clients.size();
+            int client = clients.add(key);
+            if (clients.size() > numClients) {
+                allocation.allocator.addClient(client);
+            }
+            if (powerGranted > 0) {
+                immediateWatts += powerGranted;
+                if (client < busyAtOpen.length && busyAtOpen[client]) {
+                    fail("client " + client + " granted on arrival with a request in progress");
+                }
+                if (client >= grantedInDrain.length) {
+                    grantedInDrain = Arrays.copyOf(grantedInDrain, Math.max(client + 1, grantedInDrain.length * 2));
+                }
+                if (grantedInDrain[client] == drainNumber) {
+                    fail("client " + client + " granted on arrival twice in one tick");
+                }
+                grantedInDrain[client] = drainNumber;
+            }
+            allocation.allocator.queueRequest(client, powerRequested, allocation.tick);
+            if (powerGranted > 0) {
+                allocation.allocator.grantNow(client, powerGranted);
+            }
+        }
+
+        @Override
+        public void slotQuery(int address) {
+        }
+
+        int drain(RequestQueue queue) {
+            drainNumber++;
+            immediateWatts = 0;
+            return queue.drain(this);
+        }
+
+        // Note the clients the reserve is about to be opened with a request in progress
+        void open() {
+            ClientTable clients = allocation.clients;
+            busyAtOpen = new boolean[clients.size()];
+            for (int client = 0; client < clients.size(); client++) {
+                busyAtOpen[client] = clients.pending(client) > 0;
+            }
+        }
+
+        private void fail(String message) {
+            if (failure == null) {
+                failure = message;
+            }
+        }
+    }
+
+    @Test
+    void requestsAreAppliedOnceAndGrantsStayWithinCapacity() throws Exception {
+        GrantReserve reserve = new GrantReserve();
+        RequestQueue queue = new RequestQueue(1024, reserve);
+        ShardedAllocatorTest.Allocation allocation = new ShardedAllocatorTest.Allocation(CAPACITY_WATTS, 2);
+        ShardedAllocator allocator = allocation.allocator;
+        Drain drain = new Drain(allocation);
+        AtomicBoolean stop = new AtomicBoolean();
+        IngestThread[] threads = new IngestThread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new IngestThread(i, queue, stop);
+            threads[i].start();
+        }
+        int opened = 0;
+        long immediateWatts = 0;
+        try {
+            for (int sequence = 0; sequence < TICKS; sequence++) {
+                // Every so often the capacity is cut below the load, as a federation parent may
+                if (sequence % 100 == 50) {
+                    allocator.setMaxLoadWatts(CAPACITY_WATTS / 2);
+                } else if (sequence % 100 == 0) {
+                    allocator.setMaxLoadWatts(CAPACITY_WATTS);
+                }
+                drain.drain(queue);
+                String where = "tick " + sequence;
+                assertNull(drain.failure, where);
+                assertTrue(drain.immediateWatts <= opened, where + ": " + drain.immediateWatts + "W granted on arrival, "
+                        + opened + "W in the reserve");
+                immediateWatts += drain.immediateWatts;
+                allocation.tick();
+                assertTrue(allocation.grantedWatts() <= allocator.getMaxLoadWatts(), where + ": "
+                        + allocation.grantedWatts() + "W granted");
+                assertEquals(allocation.grantedWatts(), allocator.getLoadWatts(), where);
+                opened = allocator.getUnmetWatts() > 0 ? 0 : allocator.getSpareWatts();
+                drain.open();
+                reserve.open(opened, allocation.clients, allocator, sequence);
+                reserve.sent(sequence);
+                Thread.yield();
+            }
+        } finally {
+            stop.set(true);
+            for (IngestThread thread : threads) {
+                thread.join();
+            }
+        }
+        drain.drain(queue);
+        assertNull(drain.failure);
+        long offered = 0;
+        long drained = 0;
+        for (IngestThread thread : threads) {
+            assertEquals(thread.accepted, drain.drained[thread.id], "requests of thread " + thread.id);
+            assertEquals(thread.grantedWatts, drain.grantedWatts[thread.id], "grants on arrival of thread " + thread.id);
+            offered += thread.offered;
+            drained += drain.drained[thread.id];
+        }
+        assertEquals(offered, drained + queue.dropped());
+        assertTrue(immediateWatts > 0, "nothing granted on arrival");
+    }
+}
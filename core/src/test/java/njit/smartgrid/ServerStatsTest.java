@@ -0,0 +1,48 @@
+package njit.smartgrid;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerStatsTest {
+
+    private static final long MILLIS = 1_000_000L;
+
+    @Test
+    void grantsAreCountedEveryTickAndPercentilesPublished() {
+        ServerStats stats = new ServerStats(PowerLog.discarding(), 20 * MILLIS);
+        ClientTable clients = new ClientTable();
+        int granted = clients.add(ClientTable.key(1, 0));
+        int denied = clients.add(ClientTable.key(2, 0));
+        long now = System.nanoTime();
+        clients.setRequestTime(granted, now - 5 * MILLIS, 0);
+        clients.setRequestTime(denied, now - 5 * MILLIS, 0);
+        clients.setPending(denied, 1);
+        clients.setGranted(granted, PowerRequest.POWER_LOW);
+        stats.grantsSent(clients, now, 0);
+        stats.tick(0, 2, 1, PowerRequest.POWER_LOW, 100, now, now + MILLIS, 0);
+        assertEquals(1, stats.getTicks());
+        assertEquals(1, stats.getGrants());
+        assertEquals(5, stats.getRequestToGrantMaxMillis(), 0.1);
+        // Only the denied request, still pending, is left waiting
+        assertEquals(denied, clients.nextWaiting(0));
+        assertEquals(-1, clients.nextWaiting(denied + 1));
+
+        // The next grant is counted at once, but the percentiles wait for the next snapshot
+        clients.setGranted(denied, PowerRequest.POWER_LOW);
+        stats.grantsSent(clients, now + 50 * MILLIS, 0);
+        stats.tick(1, 2, 1, 2 * PowerRequest.POWER_LOW, 100, now + 50 * MILLIS, now + 51 * MILLIS, 0);
+        assertEquals(2, stats.getGrants());
+        assertEquals(1, stats.getSlaBreaches());
+        assertEquals(5, stats.getRequestToGrantMaxMillis(), 0.1);
+        stats.tick(2, 2, 1, 2 * PowerRequest.POWER_LOW, 100, now, now + MILLIS + ServerStats.SNAPSHOT_NANOS, 0);
+        assertEquals(55, stats.getRequestToGrantMaxMillis(), 1);
+
+        stats.reset();
+        assertEquals(0, stats.getRequestToGrantMaxMillis());
+        stats.tick(3, 2, 1, 0, 100, now, now + 2 * MILLIS + ServerStats.SNAPSHOT_NANOS, 0);
+        assertEquals(1, stats.getTicks());
+        assertEquals(0, stats.getGrants());
+        assertEquals(0, stats.getSlaBreaches());
+        assertEquals(0, stats.getRequestToGrantMaxMillis());
+    }
+}
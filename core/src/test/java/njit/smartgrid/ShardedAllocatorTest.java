@@ -0,0 +1,131 @@
+package njit.smartgrid;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedAllocatorTest {
+
+    private static final int[] LEVELS = { PowerRequest.POWER_LOW, PowerRequest.POWER_HIGH, PowerRequest.POWER_BOTH };
+
+    // The tick thread's side of a server: requests are queued as PowerServer.addRequest
+    // queues them, then the tick runs
+    static final class Allocation {
+        final ClientTable clients = new ClientTable();
+        final ShardedAllocator allocator;
+        int tick = 0;
+
+        Allocation(int capacityWatts, int shards) {
+            allocator = new ShardedAllocator(clients, capacityWatts, shards, PowerLog.discarding());
+        }
+
+        int request(int address, int watts) {
+            int numClients = clients.size();
+            int client = clients.add(ClientTable.key(address, 0));
+            if (clients.size() > numClients) {
+                allocator.addClient(client);
+            }
+            allocator.queueRequest(client, watts, tick);
+            return client;
+        }
+
+        void tick() {
+            tick++;
+            allocator.tick();
+        }
+
+        int granted(int address) {
+            int client = clients.indexOf(ClientTable.key(address, 0));
+            return client < 0 ? 0 : clients.granted(client);
+        }
+
+        int grantedWatts() {
+            int watts = 0;
+            for (int client = 0; client < clients.size(); client++) {
+                watts += clients.granted(client);
+            }
+            return watts;
+        }
+    }
+
+    @Test
+    void spareCapacityOfOtherShardsIsUsedInTheSameTick() {
+        // 50W per shard: no shard can grant 100W on its own
+        Allocation sharded = new Allocation(200, 4);
+        sharded.request(1, PowerRequest.POWER_BOTH);
+        sharded.tick();
+        assertEquals(PowerRequest.POWER_BOTH, sharded.granted(1));
+        assertEquals(0, sharded.allocator.getUnmetWatts());
+        sharded.request(1, PowerRequest.POWER_BOTH);
+        sharded.request(2, PowerRequest.POWER_BOTH);
+        sharded.tick();
+        assertEquals(PowerRequest.POWER_BOTH, sharded.granted(1));
+        assertEquals(PowerRequest.POWER_BOTH, sharded.granted(2));
+        assertEquals(200, sharded.allocator.getLoadWatts());
+    }
+
+    @Test
+    void capacityCutRevokesGrants() {
+        for (int shards : new int[] { 1, 4 }) {
+            Allocation allocation = new Allocation(200, shards);
+            allocation.request(1, PowerRequest.POWER_BOTH);
+            allocation.request(2, PowerRequest.POWER_BOTH);
+            allocation.tick();
+            assertEquals(200, allocation.grantedWatts());
+            // Both clients keep asking, but the capacity drops below what they hold
+            allocation.allocator.setMaxLoadWatts(100);
+            allocation.request(1, PowerRequest.POWER_BOTH);
+            allocation.request(2, PowerRequest.POWER_BOTH);
+            allocation.tick();
+            assertTrue(allocation.grantedWatts() <= 100, shards + " shards: " + allocation.grantedWatts() + "W granted");
+            assertEquals(allocation.grantedWatts(), allocation.allocator.getLoadWatts());
+            allocation.allocator.setMaxLoadWatts(50);
+            allocation.request(1, PowerRequest.POWER_BOTH);
+            allocation.request(2, PowerRequest.POWER_BOTH);
+            allocation.tick();
+            assertEquals(PowerRequest.POWER_LOW, allocation.grantedWatts());
+            assertEquals(PowerRequest.POWER_LOW, allocation.allocator.getLoadWatts());
+        }
+    }
+
+    @Test
+    void shardedMatchesGlobalPass() {
+        for (int shards : new int[] { 2, 4, 7 }) {
+            for (int seed = 0; seed < 5; seed++) {
+                compare(shards, new Random(seed), 300, 8000 + seed * 1500);
+            }
+        }
+    }
+
+    // Feed the same requests to one shard (a global pass) and to several, and check that
+    // the sharded allocator grants everything whenever the global pass does, and about as
+    // much as the global pass when there isn't enough for everyone
+    private static void compare(int shards, Random random, int numClients, int capacityWatts) {
+        Allocation global = new Allocation(capacityWatts, 1);
+        Allocation sharded = new Allocation(capacityWatts, shards);
+        int[] level = new int[numClients];      // 0 while the client is off
+        for (int tick = 0; tick < 500; tick++) {
+            for (int c = 0; c < numClients; c++) {
+                if (random.nextInt(10) == 0) {
+                    level[c] = level[c] == 0 ? LEVELS[random.nextInt(LEVELS.length)] : 0;
+                }
+                if (level[c] > 0) {
+                    global.request(0x0A000000 + c, level[c]);
+                    sharded.request(0x0A000000 + c, level[c]);
+                }
+            }
+            global.tick();
+            sharded.tick();
+            String where = shards + " shards, tick " + tick;
+            assertTrue(global.grantedWatts() <= capacityWatts, where);
+            assertTrue(sharded.grantedWatts() <= capacityWatts, where);
+            assertEquals(sharded.grantedWatts(), sharded.allocator.getLoadWatts(), where);
+            if (global.allocator.getUnmetWatts() == 0) {
+                assertEquals(0, sharded.allocator.getUnmetWatts(), where);
+                assertEquals(global.grantedWatts(), sharded.grantedWatts(), where);
+            } else {
+                assertTrue(sharded.grantedWatts() >= global.grantedWatts() - shards * PowerRequest.POWER_BOTH, where);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package njit.smartgrid;
+import java.util.Arrays;
+
+// Set of small non-negative ints (a shard's member indexes) as a two-level bitset.
+// A summary bit per 64-bit word marks the words with anything in them, so walking the
+// set in order costs about one step per member plus one per 4096 possible members.
+final class ActiveSet {
+
+    private long[] words = new long[1];
+    private long[] summary = new long[1];
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int i) {
+        int w = i >>> 6;
+        return w < words.length && (words[w] & (1L << i)) != 0;
+    }
+
+    void add(int i) {
+        int w = i >>> 6;
+        if (w >= words.length) {
+            grow(w + 1);
+        }
+        long bit = 1L << i;
+        if ((words[w] & bit) == 0) {
+            words[w] |= bit;
+            summary[w >>> 6] |= 1L << w;
+            size++;
+        }
+    }
+
+    void remove(int i) {
+        int w = i >>> 6;
+        if (w >= words.length) {
+            return;
+        }
+        long bit = 1L << i;
+        if ((words[w] & bit) != 0) {
+            words[w] &= ~bit;
+            if (words[w] == 0) {
+                summary[w >>> 6] &= ~(1L << w);
+            }
+            size--;
+        }
+    }
+
+    // Smallest member >= from, or -1 if there is none
+    int next(int from) {
+        int w = from >>> 6;
+        if (w >= words.length) {
+            return -1;
+        }
+        long bits = words[w] & (-1L << from);
+        if (bits != 0) {
+            return (w << 6) + Long.numberOfTrailingZeros(bits);
+        }
+        // Find the next non-empty word through the summary
+        w++;
+        int s = w >>> 6;
+        if (s >= summary.length) {
+            return -1;
+        }
+        long summaryBits = summary[s] & (-1L << w);
+        while (summaryBits == 0) {
+            if (++s == summary.length) {
+                return -1;
+            }
+            summaryBits = summary[s];
+        }
+        w = (s << 6) + Long.numberOfTrailingZeros(summaryBits);
+        return (w << 6) + Long.numberOfTrailingZeros(words[w]);
+    }
+
+    private void grow(int minWords) {
+        int length = Math.max(minWords, words.length * 2);
+        words = Arrays.copyOf(words, length);
+        summary = Arrays.copyOf(summary, (length + 63) >>> 6);
+    }
+}
@@ -0,0 +1,139 @@
+package njit.smartgrid;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Binary PowerLog format. Records are appended to memory-mapped segment files named
+// <base>_0000.bin, <base>_0001.bin, ... and a new segment is started once the current
+// one is full. PowerLogReader turns segments back into the CSV layout.
+//
+// Segment header (HEADER_SIZE bytes):
+//   int   MAGIC
+//   short VERSION
+//   short flags (FLAG_SERVER)
+//   long  base time (ms); record times are stored relative to it
+//
+// Record (RECORD_SIZE bytes):
+//   byte  type (PowerLog.TYPE_*, 0 marks the end of the segment)
+//   byte  flags (FLAG_PEER_TIME_FOLLOWS, FLAG_LOAD_ID_FOLLOWS)
+//   short watts, or message length in bytes
+//   int   local time - base time (ms)
+//   int   peer time - local time (ms), NO_PEER_TIME if the peer time is 0 (not logged)
+//   int   client IPv4 address
+//
+// A message record is followed by its UTF-8 text, padded to a whole number of records.
+// A peer time that doesn't fit in an int delta, or a load ID other than 0, is written in
+// a continuation record:
+//   long  peer time (if FLAG_PEER_TIME_FOLLOWS)
+//   short load ID (if FLAG_LOAD_ID_FOLLOWS)
+// Version 1 segments have no load IDs.
+//
+// Not thread-safe; PowerLog serializes calls.
+final class BinaryLogWriter {
+
+    static final int MAGIC = 0x53474C42;    // "SGLB"
+    static final short VERSION = 2;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 16;
+    static final short FLAG_SERVER = 1;
+    static final byte FLAG_PEER_TIME_FOLLOWS = 1;
+    static final byte FLAG_LOAD_ID_FOLLOWS = 2;
+    static final int MAX_MESSAGE_LENGTH = Short.MAX_VALUE;
+    static final int NO_PEER_TIME = Integer.MIN_VALUE;
+
+    private final String baseName;
+    private final boolean isServer;
+    private final long segmentBytes;
+    private int segmentNumber = 0;
+    private RandomAccessFile file = null;
+    private MappedByteBuffer segment = null;
+    private long baseTime;
+
+    BinaryLogWriter(String baseName, boolean isServer, long segmentBytes) throws IOException {
+        this.baseName = baseName;
+        this.isServer = isServer;
+        this.segmentBytes = Math.max(segmentBytes, HEADER_SIZE + 4096);
+        openSegment(System.currentTimeMillis());
+    }
+
+    static String segmentName(String baseName, int segmentNumber) {
+        return String.format("%s_%04d.bin", baseName, segmentNumber);
+    }
+
+    void append(int type, long localTime, long peerTime, int address, int loadId, int watts, String msg)
+            throws IOException {
+        if (file == null) {
+            return;     // Closed by the shutdown hook
+        }
+        long localOffset = localTime - baseTime;
+        long peerDelta = peerTime == 0 ? NO_PEER_TIME : peerTime - localTime;
+        boolean peerTimeFollows = peerTime != 0 && (peerDelta != (int) peerDelta || peerDelta == NO_PEER_TIME);
+        boolean loadIdFollows = loadId != 0 && type != PowerLog.TYPE_MESSAGE;
+        byte[] text = null;
+        int size = RECORD_SIZE;
+        if (type == PowerLog.TYPE_MESSAGE) {
+            text = msg.getBytes(StandardCharsets.UTF_8);
+            if (text.length > MAX_MESSAGE_LENGTH) {
+                text = Arrays.copyOf(text, MAX_MESSAGE_LENGTH);
+            }
+            size += (text.length + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+        } else if (peerTimeFollows || loadIdFollows) {
+            size += RECORD_SIZE;
+        }
+        // Roll over when the segment is full or the local time no longer fits the int offset
+        if (segment.remaining() < size + RECORD_SIZE || localOffset != (int) localOffset || localOffset < 0) {
+            closeSegment();
+            segmentNumber++;
+            openSegment(localTime);
+            localOffset = 0;
+        }
+        int start = segment.position();
+        segment.position(start + 1);
+        segment.put((byte) ((peerTimeFollows ? FLAG_PEER_TIME_FOLLOWS : 0) | (loadIdFollows ? FLAG_LOAD_ID_FOLLOWS : 0)));
+        segment.putShort((short) (text != null ? text.length : watts));
+        segment.putInt((int) localOffset);
+        segment.putInt(peerTimeFollows ? 0 : (int) peerDelta);
+        segment.putInt(address);
+        if (text != null) {
+            segment.put(text);
+            segment.position(start + size);
+        } else if (peerTimeFollows || loadIdFollows) {
+            segment.putLong(peerTimeFollows ? peerTime : 0);
+            segment.putShort((short) loadId);
+            segment.position(start + size);
+        }
+        // Write the type last, so a reader never sees a half-written record
+        segment.put(start, (byte) type);
+    }
+
+    void close() throws IOException {
+        closeSegment();
+    }
+
+    private void openSegment(long baseTime) throws IOException {
+        this.baseTime = baseTime;
+        file = new RandomAccessFile(segmentName(baseName, segmentNumber), "rw");
+        file.setLength(segmentBytes);
+        segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        segment.putInt(MAGIC);
+        segment.putShort(VERSION);
+        segment.putShort(isServer ? FLAG_SERVER : 0);
+        segment.putLong(baseTime);
+    }
+
+    // Trim the unused tail of the segment so the file only holds what was written
+    private void closeSegment() throws IOException {
+        if (file == null) {
+            return;
+        }
+        long length = segment.position();
+        segment.force();
+        segment = null;
+        file.setLength(length);
+        file.close();
+        file = null;
+    }
+}
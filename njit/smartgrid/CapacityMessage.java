@@ -0,0 +1,79 @@
+package njit.smartgrid;
+import java.nio.ByteBuffer;
+
+// Messages between the leaf PowerServers of a federation and their FederationServer.
+//
+// Every grant tick a leaf reports how much power its clients want and use (REPORT), and
+// once a period the parent tells each leaf how much capacity it may grant (ASSIGN). Both
+// are single small datagrams, and both are sent again every tick or period, so a lost
+// one only delays the next update.
+//
+// Header (both messages):
+//   byte  type (REPORT or ASSIGN)
+//   byte  VERSION
+//   short epoch: 0 (REPORT), picked at random when the parent starts (ASSIGN)
+//   int   sequence: the leaf's grant sequence (REPORT), the parent's period (ASSIGN)
+//
+// REPORT (REPORT_SIZE bytes), header followed by:
+//   int   demand (watts): load plus what was requested but not granted last tick
+//   int   load (watts) currently granted
+//   int   capacity (watts) the leaf is granting against
+//
+// ASSIGN (ASSIGN_SIZE bytes), header followed by:
+//   int   capacity (watts) the leaf may grant
+//   int   timeout (ms): once the leaf has gone this long without an ASSIGN, the parent
+//         may have given its capacity to the other leaves
+final class CapacityMessage {
+
+    static final byte REPORT = 1;
+    static final byte ASSIGN = 2;
+    static final byte VERSION = 2;
+    static final int HEADER_SIZE = 8;
+    static final int REPORT_SIZE = HEADER_SIZE + 12;
+    static final int ASSIGN_SIZE = HEADER_SIZE + 8;
+
+    private CapacityMessage() {
+    }
+
+    static void putReport(ByteBuffer buffer, int sequence, int demandWatts, int loadWatts, int capacityWatts) {
+        buffer.clear();
+        putHeader(buffer, REPORT, 0, sequence);
+        buffer.putInt(demandWatts);
+        buffer.putInt(loadWatts);
+        buffer.putInt(capacityWatts);
+        buffer.flip();
+    }
+
+    static void putAssign(ByteBuffer buffer, int epoch, int sequence, int capacityWatts, int timeoutMillis) {
+        buffer.clear();
+        putHeader(buffer, ASSIGN, epoch, sequence);
+        buffer.putInt(capacityWatts);
+        buffer.putInt(timeoutMillis);
+        buffer.flip();
+    }
+
+    private static void putHeader(ByteBuffer buffer, byte type, int epoch, int sequence) {
+        buffer.put(type);
+        buffer.put(VERSION);
+        buffer.putShort((short) epoch);
+        buffer.putInt(sequence);
+    }
+
+    // True if the length bytes at the start of buffer are a message of the given type
+    static boolean isValid(ByteBuffer buffer, int length, byte type) {
+        return length == (type == REPORT ? REPORT_SIZE : ASSIGN_SIZE) && buffer.get(0) == type
+                && buffer.get(1) == VERSION;
+    }
+
+    static int epoch(ByteBuffer buffer) { return buffer.getShort(2) & 0xFFFF; }
+
+    static int sequence(ByteBuffer buffer) { return buffer.getInt(4); }
+
+    static int demandWatts(ByteBuffer report) { return report.getInt(8); }
+
+    static int loadWatts(ByteBuffer report) { return report.getInt(12); }
+
+    static int capacityWatts(ByteBuffer message) { return message.getInt(message.get(0) == REPORT ? 16 : 8); }
+
+    static int timeoutMillis(ByteBuffer assign) { return assign.getInt(12); }
+}
@@ -0,0 +1,61 @@
+package njit.smartgrid;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+// The client's one UDP socket, for the life of the client: grant broadcasts (or the
+// client's multicast group) come in on
+// it and requests go out to the server from it. The request buffer is allocated once,
+// so sending and receiving allocate nothing.
+final class ClientChannel implements Closeable {
+
+    private final DatagramChannel channel;
+    private final InetSocketAddress serverAddr;
+    private final ByteBuffer request = ByteBuffer.allocateDirect(PowerClient.REQUEST_PACKET_LENGTH);
+
+    // Listen on port (0 for any) and send to the server's request port
+    ClientChannel(InetSocketAddress serverAddr, int port) throws IOException {
+        this.serverAddr = serverAddr;
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);   // Other clients or gateways on this host get the broadcasts too
+        channel.bind(new InetSocketAddress(port));
+    }
+
+    // With multicast grants (GrantGroups), join the group of the client at myAddr
+    void joinGrantGroup(InetAddress myAddr) throws IOException {
+        if (GrantGroups.enabled()) {
+            GrantGroups.join(channel, myAddr, Ipv4.toInt(myAddr));
+        }
+    }
+
+    // Send a request packet: our timestamp and the power field
+    void send(int powerField) throws IOException {
+        request.clear();
+        request.putLong(System.currentTimeMillis());
+        request.putInt(powerField);
+        request.flip();
+        channel.send(request, serverAddr);
+    }
+
+    // Send a request packet built by the caller (e.g. a multi-load request)
+    void send(ByteBuffer packet) throws IOException {
+        channel.send(packet, serverAddr);
+    }
+
+    // Wait for the next grant segment
+    SocketAddress receive(PowerGrantPacket packet) throws IOException {
+        return packet.receive(channel);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
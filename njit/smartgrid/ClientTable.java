@@ -0,0 +1,309 @@
+package njit.smartgrid;
+import java.util.Arrays;
+
+// Client state of the server, keyed by IPv4 address and load ID. A plain PowerClient is
+// load 0 of its address; a gateway has one client per load it manages.
+//
+// Clients are numbered in the order they were first seen (like the LinkedHashMap this
+// replaces), and their state lives in parallel primitive arrays indexed by that number.
+// An open-addressing hash index maps keys to client numbers. Nothing is allocated
+// except when the table grows.
+final class ClientTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int NO_CLIENT = -1;
+
+    // Hash index: slot -> client number, NO_CLIENT if free. Kept at most half full.
+    private int[] slots;
+    private int mask;
+
+    // Per-client state, indexed by client number (= insertion order)
+    private long[] key;         // key(address, load ID)
+    private int[] requested;    // Power requested (watts) by the client's latest request
+    private int[] granted;      // Power currently granted (watts), 0 if none
+    private int[] pending;      // Number of requests not yet consumed by a grant tick
+    private int[] lastSeen;     // Tick of the client's latest request
+    private int[] sent;         // Grant (watts) in the last broadcast that carried this client
+    private long[] requestNanos;    // Arrival (System.nanoTime) of the request waiting for a grant, 0 if none
+    private long[] requestClientTime;   // Client timestamp (ms) of that request
+    private int size = 0;
+
+    // Client numbers ordered by key (address unsigned, then load ID), for encoding sorted
+    // grant packets. Only the first sortedSize clients are in it: clients added since are
+    // sorted as a batch and merged in the next time the order is needed (sortIndex()), so
+    // adding a client costs no more than the hash insert.
+    private int[] byAddress;
+    private int sortedSize = 0;
+    private long[] newKeys = new long[16];  // sortIndex() scratch
+
+    // Clients by what the tick thread has to do for them, so it only visits those: a
+    // grant that differs from the one last sent (encode), a request waiting for a grant
+    // (stats), and state changed since the last checkpoint
+    private final ActiveSet changed = new ActiveSet();
+    private final ActiveSet waiting = new ActiveSet();
+    private final ActiveSet dirty = new ActiveSet();
+    private int[] changedByAddress = new int[16];   // sortChanged() order
+    private long[] changedKeys = new long[16];
+
+    ClientTable() {
+        this(INITIAL_CAPACITY);
+    }
+
+    ClientTable(int expectedClients) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < expectedClients) {
+            capacity <<= 1;
+        }
+        key = new long[capacity];
+        requested = new int[capacity];
+        granted = new int[capacity];
+        pending = new int[capacity];
+        lastSeen = new int[capacity];
+        sent = new int[capacity];
+        requestNanos = new long[capacity];
+        requestClientTime = new long[capacity];
+        byAddress = new int[capacity];
+        slots = new int[capacity * 2];
+        Arrays.fill(slots, NO_CLIENT);
+        mask = slots.length - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Key of load loadId at address addr. Keys sort like the grant entries: by address
+    // (unsigned), then load ID.
+    static long key(int addr, int loadId) {
+        return (addr & 0xFFFFFFFFL) << 16 | (loadId & 0xFFFF);
+    }
+
+    // Client number of k, or -1 if we have never heard from it
+    int indexOf(long k) {
+        int slot = hash(k) & mask;
+        while (true) {
+            int client = slots[slot];
+            if (client == NO_CLIENT || key[client] == k) {
+                return client;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // Client number of k, adding it at the end of the table if it is new
+    int add(long k) {
+        int slot = hash(k) & mask;
+        while (true) {
+            int client = slots[slot];
+            if (client == NO_CLIENT) {
+                break;
+            }
+            if (key[client] == k) {
+                return client;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == key.length) {
+            grow();
+            return add(k);
+        }
+        int client = size;
+        key[client] = k;
+        slots[slot] = client;
+        size++;
+        dirty.add(client);
+        return client;
+    }
+
+    // Client number of the client with the rank-th lowest key
+    int byAddress(int rank) {
+        if (sortedSize < size) {
+            sortIndex();
+        }
+        return byAddress[rank];
+    }
+
+    // Position of k in the sorted order (binary search over the first size entries), or
+    // where it would go if it isn't there
+    int rankOf(long k) {
+        if (sortedSize < size) {
+            sortIndex();
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = Long.compare(key[byAddress[mid]], k);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return low;
+    }
+
+    // Sort the clients added since the last call (client numbers sortedSize to size - 1)
+    // and merge them into the sorted order, from the end down so it can be done in place
+    private void sortIndex() {
+        int added = size - sortedSize;
+        if (newKeys.length < added) {
+            newKeys = new long[Math.max(added, newKeys.length * 2)];
+        }
+        System.arraycopy(key, sortedSize, newKeys, 0, added);
+        Arrays.sort(newKeys, 0, added);
+        int i = sortedSize - 1;
+        int j = added - 1;
+        for (int rank = size - 1; j >= 0; rank--) {
+            if (i >= 0 && key[byAddress[i]] > newKeys[j]) {
+                byAddress[rank] = byAddress[i--];
+            } else {
+                byAddress[rank] = indexOf(newKeys[j--]);
+            }
+        }
+        sortedSize = size;
+    }
+
+    // Put the clients whose grant changed since it was last sent in address order, for
+    // changedByAddress(). Returns how many there are. Sending them their grants
+    // (setSent()) takes them out of the set, not out of this order.
+    int sortChanged() {
+        int count = changed.size();
+        if (changedKeys.length < count) {
+            changedKeys = new long[Math.max(count, changedKeys.length * 2)];
+            changedByAddress = new int[changedKeys.length];
+        }
+        int i = 0;
+        for (int client = changed.next(0); client >= 0; client = changed.next(client + 1)) {
+            changedKeys[i++] = key[client];
+        }
+        Arrays.sort(changedKeys, 0, count);
+        for (i = 0; i < count; i++) {
+            changedByAddress[i] = indexOf(changedKeys[i]);
+        }
+        return count;
+    }
+
+    // Client number of the rank-th lowest key among the clients sortChanged() found
+    int changedByAddress(int rank) {
+        return changedByAddress[rank];
+    }
+
+    // Next client from client on with a request waiting for a grant, or -1
+    int nextWaiting(int client) {
+        return waiting.next(client);
+    }
+
+    long key(int client) { return key[client]; }
+
+    int address(int client) { return (int) (key[client] >>> 16); }
+
+    int loadId(int client) { return (int) key[client] & 0xFFFF; }
+
+    int requested(int client) { return requested[client]; }
+
+    void setRequested(int client, int watts) {
+        requested[client] = watts;
+        dirty.add(client);
+    }
+
+    int granted(int client) { return granted[client]; }
+
+    void setGranted(int client, int watts) {
+        granted[client] = watts;
+        dirty.add(client);
+        if (watts != sent[client]) {
+            changed.add(client);
+        } else {
+            changed.remove(client);
+        }
+    }
+
+    int pending(int client) { return pending[client]; }
+
+    void setPending(int client, int count) {
+        pending[client] = count;
+        dirty.add(client);
+    }
+
+    int lastSeen(int client) { return lastSeen[client]; }
+
+    void setLastSeen(int client, int tick) {
+        lastSeen[client] = tick;
+        dirty.add(client);
+    }
+
+    int sent(int client) { return sent[client]; }
+
+    void setSent(int client, int watts) {
+        sent[client] = watts;
+        if (watts == granted[client]) {
+            changed.remove(client);
+        } else {
+            changed.add(client);
+        }
+    }
+
+    long requestNanos(int client) { return requestNanos[client]; }
+
+    long requestClientTime(int client) { return requestClientTime[client]; }
+
+    void setRequestTime(int client, long arrivalNanos, long clientTime) {
+        requestNanos[client] = arrivalNanos;
+        requestClientTime[client] = clientTime;
+        if (arrivalNanos != 0) {
+            waiting.add(client);
+        } else {
+            waiting.remove(client);
+        }
+    }
+
+    // Copy the allocation state of the clients that changed since the last call into the
+    // given arrays, by client number, so arrays that held the state then hold it now
+    void copyChangedState(long[] keys, int[] requested, int[] granted, int[] pending, int[] lastSeen) {
+        for (int client = dirty.next(0); client >= 0; client = dirty.next(client + 1)) {
+            keys[client] = key[client];
+            requested[client] = this.requested[client];
+            granted[client] = this.granted[client];
+            pending[client] = this.pending[client];
+            lastSeen[client] = this.lastSeen[client];
+            dirty.remove(client);
+        }
+    }
+
+    private void grow() {
+        int capacity = key.length * 2;
+        key = Arrays.copyOf(key, capacity);
+        requested = Arrays.copyOf(requested, capacity);
+        granted = Arrays.copyOf(granted, capacity);
+        pending = Arrays.copyOf(pending, capacity);
+        lastSeen = Arrays.copyOf(lastSeen, capacity);
+        sent = Arrays.copyOf(sent, capacity);
+        requestNanos = Arrays.copyOf(requestNanos, capacity);
+        requestClientTime = Arrays.copyOf(requestClientTime, capacity);
+        byAddress = Arrays.copyOf(byAddress, capacity);
+        slots = new int[capacity * 2];
+        Arrays.fill(slots, NO_CLIENT);
+        mask = slots.length - 1;
+        for (int client = 0; client < size; client++) {
+            int slot = hash(key[client]) & mask;
+            while (slots[slot] != NO_CLIENT) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = client;
+        }
+    }
+
+    // Addresses on one subnet and loads behind one gateway differ only in the low bits,
+    // so mix them before masking
+    static int hash(long k) {
+        long h = k * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,83 @@
+package njit.smartgrid;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+// Text layout of PowerLog records, one CSV line per record:
+//
+//   server: REQ,<local time>,<client time>,<client address>,<load ID>,<watts>
+//           GRA,<local time>,<client address>,<load ID>,<watts>
+//   client: REQ,<local time>,<watts>
+//           GRA,<local time>,<server time>,<watts>
+//
+// The load ID tells apart the loads behind one gateway (0 for a single-load client).
+// Server logs written before it was added have no load ID field.
+//
+// Not thread-safe; each writer keeps its own instance.
+final class CsvLogFormat {
+
+    private static final String DELIMITER = ",";
+    private static final boolean HUMAN_READABLE = true;
+
+    private final boolean isServer;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private long prefixSecond = Long.MIN_VALUE;
+    private String prefix;      // "yyyy-MM-dd HH:mm:ss." of prefixSecond
+
+    CsvLogFormat(boolean isServer) {
+        this.isServer = isServer;
+    }
+
+    // Replace the contents of sb with the line for one record (without line terminator)
+    void format(StringBuilder logString, int type, long localTime, long peerTime, int address, int loadId, int watts,
+                String msg) {
+        logString.setLength(0);
+        if (type == PowerLog.TYPE_MESSAGE) {
+            logString.append(msg);
+        } else if (type == PowerLog.TYPE_REQUEST) {
+            logString.append("REQ").append(DELIMITER);
+            appendTime(logString, localTime);   // Local timestamp (server or client)
+            if (isServer) {
+                appendTime(logString, peerTime);    // Client timestamp (if server)
+                appendAddress(logString, address);  // Client IP address
+                logString.append(loadId).append(DELIMITER);
+            }
+            logString.append(watts);            // Power requested
+        } else {
+            logString.append("GRA").append(DELIMITER);
+            appendTime(logString, localTime);   // Local timestamp (server or client)
+            if (!isServer) {
+                appendTime(logString, peerTime);    // Server timestamp (if client)
+            } else {
+                appendAddress(logString, address);
+                logString.append(loadId).append(DELIMITER);
+            }
+            logString.append(watts);
+        }
+    }
+
+    // Same layout as java.sql.Timestamp padded to millisecond precision
+    // (yyyy-MM-dd HH:mm:ss.SSS). The date and time part is only rebuilt once a second.
+    private void appendTime(StringBuilder sb, long millis) {
+        if (HUMAN_READABLE) {
+            long second = Math.floorDiv(millis, 1000);
+            if (second != prefixSecond) {
+                ZonedDateTime t = Instant.ofEpochSecond(second).atZone(zone);
+                prefix = String.format("%04d-%02d-%02d %02d:%02d:%02d.", t.getYear(), t.getMonthValue(),
+                        t.getDayOfMonth(), t.getHour(), t.getMinute(), t.getSecond());
+                prefixSecond = second;
+            }
+            int ms = Math.floorMod(millis, 1000);
+            sb.append(prefix).append((char) ('0' + ms / 100)).append((char) ('0' + ms / 10 % 10))
+                    .append((char) ('0' + ms % 10));
+        } else {
+            sb.append(millis);
+        }
+        sb.append(DELIMITER);
+    }
+
+    private static void appendAddress(StringBuilder sb, int addr) {
+        sb.append(addr >>> 24).append('.').append((addr >>> 16) & 0xFF).append('.')
+                .append((addr >>> 8) & 0xFF).append('.').append(addr & 0xFF).append(DELIMITER);
+    }
+}
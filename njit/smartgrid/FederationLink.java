@@ -0,0 +1,126 @@
+package njit.smartgrid;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.function.IntConsumer;
+
+// A leaf PowerServer's connection to its FederationServer (see CapacityMessage). The
+// server reports after every grant tick; a thread of our own waits for capacity
+// assignments and hands each new one to the server.
+//
+// If the parent goes quiet the leaf keeps granting against the last capacity it was
+// assigned, but only for as long as the parent keeps that capacity reserved for us: the
+// timeout each assignment carries. The parent stops assigning us capacity once our
+// reports have been missing for that long, and hands it to the other leaves once we have
+// gone that long without an assignment, so by then we must not be granting anything: we
+// cut our capacity to 0, which takes back our grants at the next tick, until the parent
+// assigns us capacity again. Capping it at our load would not do, since the parent
+// reclaims that as well. Until the first assignment we grant against our own capacity.
+final class FederationLink {
+
+    private final DatagramChannel channel;
+    private final IntConsumer capacityListener;
+    private final ByteBuffer report = ByteBuffer.allocateDirect(CapacityMessage.REPORT_SIZE);
+    // Epoch and sequence of the last assignment applied
+    private int lastEpoch = -1;
+    private int lastSequence;
+    // Receiver thread only
+    private long lastAssignNanos;
+    private long timeoutNanos = -1;     // From the last assignment, -1 before the first
+    private boolean cut = false;        // Timed out, capacity cut to 0
+
+    FederationLink(InetSocketAddress parentAddr, IntConsumer capacityListener) throws IOException {
+        this.capacityListener = capacityListener;
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.connect(parentAddr);
+        channel.configureBlocking(false);   // A report that doesn't fit is lost like any other
+    }
+
+    // Parse <host>[:port], the port defaulting to FederationServer.PARENT_PORT
+    static InetSocketAddress parseAddress(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress(hostPort, FederationServer.PARENT_PORT);
+        }
+        return new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    void start() {
+        Thread receiver = new Thread(this::receiveAssignments, "Federation");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    // Report demand, load and capacity after a grant tick (grant sender thread)
+    void report(int sequence, int demandWatts, int loadWatts, int capacityWatts) {
+        CapacityMessage.putReport(report, sequence, demandWatts, loadWatts, capacityWatts);
+        try {
+            channel.write(report);
+        } catch (IOException e) {
+            // Parent not up (yet): the next tick reports again
+        }
+    }
+
+    private void receiveAssignments() {
+        ByteBuffer assign = ByteBuffer.allocateDirect(CapacityMessage.ASSIGN_SIZE + 1);
+        try (Selector selector = Selector.open()) {
+            channel.register(selector, SelectionKey.OP_READ);
+            while (true) {
+                long waitMillis = 0;    // Until a message arrives
+                if (timeoutNanos >= 0 && !cut) {
+                    long left = timeoutNanos - (System.nanoTime() - lastAssignNanos);
+                    if (left <= 0) {
+                        System.out.println("No capacity assigned by the federation parent for "
+                                + timeoutNanos / 1_000_000 + "ms, granting nothing until it assigns some");
+                        cut = true;
+                        capacityListener.accept(0);
+                        continue;
+                    }
+                    waitMillis = Math.max(1, left / 1_000_000);
+                }
+                selector.select(waitMillis);
+                selector.selectedKeys().clear();
+                while (true) {
+                    assign.clear();
+                    int length;
+                    try {
+                        length = channel.read(assign);
+                    } catch (IOException e) {
+                        // ICMP port unreachable from a report sent while the parent was down
+                        continue;
+                    }
+                    if (length <= 0) {
+                        break;
+                    }
+                    received(assign, length);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getMessage());
+        }
+    }
+
+    private void received(ByteBuffer assign, int length) {
+        if (!CapacityMessage.isValid(assign, length, CapacityMessage.ASSIGN)) {
+            System.err.println("Invalid capacity message of length " + length);
+            return;
+        }
+        int epoch = CapacityMessage.epoch(assign);
+        int sequence = CapacityMessage.sequence(assign);
+        // Ignore assignments that arrive out of order (the parent may already have
+        // handed out what an old one gave us), but follow a restarted parent
+        if (epoch == lastEpoch && sequence - lastSequence <= 0) {
+            return;
+        }
+        lastEpoch = epoch;
+        lastSequence = sequence;
+        lastAssignNanos = System.nanoTime();
+        timeoutNanos = CapacityMessage.timeoutMillis(assign) * 1_000_000L;
+        cut = false;
+        capacityListener.accept(CapacityMessage.capacityWatts(assign));
+    }
+}
@@ -0,0 +1,266 @@
+package njit.smartgrid;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.sql.Time;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Parent of a federation of PowerServers. Each leaf server manages the clients of one
+// subnet and broadcasts its grants there as usual; the parent only sees one report per
+// leaf per grant tick (see CapacityMessage) and, once a period, splits the site's
+// capacity among the leaves by demand. Start the leaves with
+// -Dsmartgrid.parent=<parent address>; their capacity argument is what they grant
+// against until the parent assigns them a share.
+//
+// Each period every leaf keeps at least the load it has granted, so nothing in use is
+// taken away. What is left goes to the leaves that were short, in proportion to how
+// short they were, and whatever they don't need is split evenly so every leaf can grant
+// a new request straight away.
+//
+// A leaf may still be granting against its previous capacity until its next report shows
+// the new one, so a cut is counted at the old value until the leaf confirms it, and a
+// raise only hands out capacity nobody can still be using. The total granted across the
+// site stays within the capacity.
+//
+// A leaf that has been silent for the leaf timeout is no longer assigned anything. Every
+// assignment carries the timeout, and a leaf that goes that long without one stops
+// granting (see FederationLink), so the silent leaf's share stays reserved until it
+// has gone the timeout, and a couple of periods more, since the last assignment we sent
+// it. Only then is its share reclaimed. That holds whichever way the link to the leaf
+// failed: if only its reports were lost, it was still granting until we stopped
+// assigning it capacity.
+public class FederationServer {
+
+    static final int PARENT_PORT = 1236;    // Port on which the parent listens for leaf reports
+
+    // -Dsmartgrid.federation.timeoutPeriods=N drops a leaf that hasn't reported for N periods
+    private static final int TIMEOUT_PERIODS = Integer.getInteger("smartgrid.federation.timeoutPeriods", 10);
+
+    private static final class Leaf {
+        final SocketAddress address;
+        int demandWatts, loadWatts, reportedCapacityWatts;
+        int assignedWatts = -1;     // -1 until we assign it something
+        long lastReportNanos;
+        long lastAssignNanos;
+        boolean timedOut = false;   // Silent for the timeout: no longer assigned anything
+
+        Leaf(SocketAddress address) {
+            this.address = address;
+        }
+
+        // Capacity the leaf may be granting against right now
+        int heldWatts() {
+            return Math.max(Math.max(assignedWatts, reportedCapacityWatts), loadWatts);
+        }
+    }
+
+    private final InetAddress myAddr;
+    private final int port;
+    private final int period;       // How often to reassign capacity (milliseconds)
+    private final int maxLoadWatts;
+    private final int epoch = ThreadLocalRandom.current().nextInt(1 << 16);
+    private final Map<SocketAddress, Leaf> leaves = new HashMap<>();
+    private final List<Leaf> order = new ArrayList<>();    // The leaves, in the order they joined
+    private final List<Leaf> live = new ArrayList<>();     // Those not timed out, in the same order
+    private int sequence = 0;
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: java njit.smartgrid.FederationServer <parent address> <period (ms)> <capacity>");
+            System.out.println("Options: -Dsmartgrid.federation.timeoutPeriods=<n> (drop leaves silent for n periods, default 10)");
+            System.exit(0);
+        }
+        final InetAddress myAddr = InetAddress.getByName(args[0]);
+        final int period = Integer.parseInt(args[1]);
+        final int maxLoad = Integer.parseInt(args[2]);
+        System.out.println("Capacity: " + maxLoad + "W");
+
+        FederationServer server = new FederationServer(myAddr, period, maxLoad);
+        server.run();
+    }
+
+    FederationServer(InetAddress myAddr, int period, int maxLoadWatts) {
+        this(myAddr, PARENT_PORT, period, maxLoadWatts);
+    }
+
+    FederationServer(InetAddress myAddr, int port, int period, int maxLoadWatts) {
+        this.myAddr = myAddr;
+        this.port = port;
+        this.period = period;
+        this.maxLoadWatts = maxLoadWatts;
+    }
+
+    void run() {
+        ByteBuffer message = ByteBuffer.allocateDirect(CapacityMessage.REPORT_SIZE + 1);
+        try (Selector selector = Selector.open();
+             DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            channel.bind(new InetSocketAddress(myAddr, port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            final long periodNanos = period * 1_000_000L;
+            long nextPeriod = System.nanoTime() + periodNanos;
+            while (true) {
+                long now = System.nanoTime();
+                if (now - nextPeriod >= 0) {
+                    reassign(now, channel, message);
+                    nextPeriod += periodNanos;
+                    if (now - nextPeriod >= 0) {
+                        nextPeriod = now + periodNanos;     // Fell behind: don't catch up
+                    }
+                    continue;
+                }
+                selector.select(Math.max(1, (nextPeriod - now) / 1_000_000));
+                selector.selectedKeys().clear();
+                SocketAddress source;
+                while ((source = channel.receive(message)) != null) {
+                    int length = message.position();
+                    if (CapacityMessage.isValid(message, length, CapacityMessage.REPORT)) {
+                        report(source, message);
+                    } else {
+                        System.err.println("Invalid capacity message of length " + length);
+                    }
+                    message.clear();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void report(SocketAddress source, ByteBuffer message) {
+        Leaf leaf = leaves.get(source);
+        if (leaf == null) {
+            leaf = new Leaf(source);
+            leaves.put(source, leaf);
+            order.add(leaf);
+            System.out.println("Leaf joined: " + source);
+        } else if (leaf.timedOut) {
+            leaf.timedOut = false;
+            System.out.println("Leaf back: " + source);
+        }
+        leaf.demandWatts = CapacityMessage.demandWatts(message);
+        leaf.loadWatts = CapacityMessage.loadWatts(message);
+        leaf.reportedCapacityWatts = CapacityMessage.capacityWatts(message);
+        leaf.lastReportNanos = System.nanoTime();
+    }
+
+    // Split the capacity among the leaves and send each its share
+    private void reassign(long now, DatagramChannel channel, ByteBuffer message) throws IOException {
+        long periodNanos = period * 1_000_000L;
+        long timeoutNanos = TIMEOUT_PERIODS * periodNanos;
+        for (int i = order.size() - 1; i >= 0; i--) {
+            Leaf leaf = order.get(i);
+            if (!leaf.timedOut && now - leaf.lastReportNanos > timeoutNanos) {
+                System.out.println("Leaf timed out: " + leaf.address);
+                leaf.timedOut = true;
+            }
+            if (leaf.timedOut && (leaf.assignedWatts < 0 || now - leaf.lastAssignNanos > timeoutNanos + 2 * periodNanos)) {
+                // It has stopped granting by now
+                System.out.println("Leaf dropped: " + leaf.address);
+                leaves.remove(leaf.address);
+                order.remove(i);
+            }
+        }
+        // Timed out leaves keep what they hold
+        long held = 0;
+        live.clear();
+        for (Leaf leaf : order) {
+            if (leaf.timedOut) {
+                held += leaf.heldWatts();
+            } else {
+                live.add(leaf);
+            }
+        }
+        int count = live.size();
+        if (count == 0) {
+            return;
+        }
+        int[] target = targets(held);
+        // Cuts take effect right away. Raises come out of what no leaf can still be using.
+        for (int i = 0; i < count; i++) {
+            Leaf leaf = live.get(i);
+            if (leaf.assignedWatts < 0) {
+                leaf.assignedWatts = Math.min(target[i], leaf.reportedCapacityWatts);   // New leaf
+            } else if (target[i] < leaf.assignedWatts) {
+                leaf.assignedWatts = target[i];
+            }
+            held += leaf.heldWatts();
+        }
+        long free = Math.max(0, maxLoadWatts - held);
+        for (int i = 0; i < count && free > 0; i++) {
+            Leaf leaf = live.get(i);
+            if (target[i] > leaf.assignedWatts) {
+                int before = leaf.heldWatts();
+                leaf.assignedWatts = (int) Math.min(target[i], leaf.assignedWatts + free);
+                free -= Math.max(0, leaf.heldWatts() - before);
+            }
+        }
+        sequence++;
+        int demand = 0, load = 0;
+        StringBuilder shares = new StringBuilder();
+        for (Leaf leaf : live) {
+            CapacityMessage.putAssign(message, epoch, sequence, leaf.assignedWatts, TIMEOUT_PERIODS * period);
+            channel.send(message, leaf.address);
+            leaf.lastAssignNanos = now;
+            demand += leaf.demandWatts;
+            load += leaf.loadWatts;
+            shares.append(String.format(" %d/%d/%dW", leaf.demandWatts, leaf.loadWatts, leaf.assignedWatts));
+        }
+        message.clear();
+        printTimestamp();
+        System.out.format("Leaves: %d, demand %dW, load %dW (max %dW), demand/load/capacity:%s\n", count, demand, load,
+                maxLoadWatts, shares);
+    }
+
+    // What each live leaf should get this period out of what the timed out leaves don't
+    // hold, ignoring what the live ones may still be holding
+    private int[] targets(long reservedWatts) {
+        int count = live.size();
+        int[] target = new int[count];
+        long unmetTotal = 0;
+        long remaining = maxLoadWatts - reservedWatts;
+        for (int i = 0; i < count; i++) {
+            Leaf leaf = live.get(i);
+            target[i] = leaf.loadWatts;     // Never take away what is in use
+            remaining -= leaf.loadWatts;
+            unmetTotal += Math.max(0, leaf.demandWatts - leaf.loadWatts);
+        }
+        remaining = Math.max(0, remaining);
+        // To the leaves that were short, in proportion to how short they were
+        if (unmetTotal > 0) {
+            long pool = remaining;
+            for (int i = 0; i < count; i++) {
+                Leaf leaf = live.get(i);
+                long unmet = Math.max(0, leaf.demandWatts - leaf.loadWatts);
+                int share = (int) Math.min(unmet, pool * unmet / unmetTotal);
+                target[i] += share;
+                remaining -= share;
+            }
+        }
+        // And the rest to everybody
+        for (int i = 0; i < count; i++) {
+            int share = (int) (remaining / count + (i < remaining % count ? 1 : 0));
+            target[i] += share;
+        }
+        return target;
+    }
+
+    private void printTimestamp() {
+        Time time = new Time(System.currentTimeMillis());
+        System.out.print("[" + time.toString() + "] ");
+    }
+}
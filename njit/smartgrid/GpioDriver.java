@@ -0,0 +1,38 @@
+package njit.smartgrid;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// Drives the client's two power outputs (relays) on the Pi's GPIO header.
+//
+// Pins are BCM GPIO numbers. The outputs used to be driven through the wiringPi gpio
+// command, one process per write, on wiringPi pins 7 and 12, which are BCM 4 and 10.
+interface GpioDriver extends Closeable {
+
+    int HIGH_POWER_PIN = 4;     // wiringPi 7
+    int LOW_POWER_PIN = 10;     // wiringPi 12
+
+    // Set both outputs
+    void write(boolean highPower, boolean lowPower) throws IOException;
+
+    // Driver to use unless -Dsmartgrid.gpio says otherwise: sysfs where the kernel has
+    // GPIO (the Pi), mock anywhere else, so the client still runs off the Pi
+    static String defaultName() {
+        return Files.isDirectory(Paths.get(SysfsGpioDriver.GPIO_DIR)) ? "sysfs" : "mock";
+    }
+
+    // Driver by name, as given by -Dsmartgrid.gpio: sysfs, gpiomem or mock
+    static GpioDriver open(String name) throws IOException {
+        switch (name) {
+            case "sysfs":
+                return new SysfsGpioDriver(HIGH_POWER_PIN, LOW_POWER_PIN);
+            case "gpiomem":
+                return new GpioMemDriver(HIGH_POWER_PIN, LOW_POWER_PIN);
+            case "mock":
+                return new MockGpioDriver();
+            default:
+                throw new IllegalArgumentException("Unknown GPIO driver " + name);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package njit.smartgrid;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// GPIO through the BCM2835-BCM2711 (Pi 1-4) GPIO registers, memory-mapped from
+// /dev/gpiomem. Both outputs are set in one go: one write to the set register for the
+// pins going on and one to the clear register for the pins going off. Needs no root,
+// only membership in the gpio group.
+final class GpioMemDriver implements GpioDriver {
+
+    private static final String GPIOMEM = "/dev/gpiomem";
+    private static final int MAP_SIZE = 0xB4;
+    private static final int GPFSEL0 = 0x00;    // Function select, 3 bits per pin, 10 pins per register
+    private static final int GPSET0 = 0x1C;     // Write 1s to set pins 0-31
+    private static final int GPCLR0 = 0x28;     // Write 1s to clear pins 0-31
+    private static final int FUNCTION_OUTPUT = 1;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer registers;
+    private final int highMask;
+    private final int lowMask;
+
+    GpioMemDriver(int highPin, int lowPin) throws IOException {
+        if (highPin < 0 || highPin > 31 || lowPin < 0 || lowPin > 31) {
+            throw new IllegalArgumentException("Pins must be in GPIO bank 0");
+        }
+        file = new RandomAccessFile(GPIOMEM, "rw");
+        registers = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, MAP_SIZE);
+        registers.order(ByteOrder.LITTLE_ENDIAN);
+        highMask = 1 << highPin;
+        lowMask = 1 << lowPin;
+        setOutput(highPin);
+        setOutput(lowPin);
+    }
+
+    private void setOutput(int pin) {
+        int register = GPFSEL0 + (pin / 10) * 4;
+        int shift = (pin % 10) * 3;
+        int functions = registers.getInt(register);
+        registers.putInt(register, (functions & ~(7 << shift)) | (FUNCTION_OUTPUT << shift));
+    }
+
+    @Override
+    public void write(boolean highPower, boolean lowPower) {
+        int set = (highPower ? highMask : 0) | (lowPower ? lowMask : 0);
+        int clear = (highMask | lowMask) & ~set;
+        if (set != 0) {
+            registers.putInt(GPSET0, set);
+        }
+        if (clear != 0) {
+            registers.putInt(GPCLR0, clear);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
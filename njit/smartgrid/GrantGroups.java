@@ -0,0 +1,142 @@
+package njit.smartgrid;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Enumeration;
+
+// Multicast grant distribution. Instead of one subnet-wide broadcast of every grant, the
+// clients are split into -Dsmartgrid.multicast.groups=K groups and each group gets its
+// own grant tick, with only its members' entries, on its own multicast address (the base
+// address plus the group number). A client joins only its own group, so a host that isn't
+// a client never sees a grant, a client receives and parses about 1/K of them, and grant
+// traffic can be routed to clients on other subnets.
+//
+// A client's group follows from its address alone, so the server and the clients agree
+// on it without telling each other, as long as they run with the same options. Clients
+// are spread over the groups by address hash; -Dsmartgrid.multicast.zonePrefix=N puts
+// every client of one /N network (a zone) in the same group instead. Every load of a
+// gateway shares the gateway's address, and so its group.
+//
+// Each group's tick is a complete grant tick on its own (segments, sequence, keyframes
+// and deltas as in PowerGrantPacket), so a client reassembles it exactly as it would the
+// broadcast one. A group with no entries still gets a header-only segment every tick.
+final class GrantGroups {
+
+    // -Dsmartgrid.multicast.groups=K sends grants to K multicast groups instead of broadcasting them
+    static final int COUNT = Integer.getInteger("smartgrid.multicast.groups", 0);
+    // -Dsmartgrid.multicast.address=<address> is the first group's address
+    private static final String BASE_ADDRESS = System.getProperty("smartgrid.multicast.address", "239.192.12.0");
+    // -Dsmartgrid.multicast.zonePrefix=N groups clients by /N network (default 32: by address)
+    private static final int ZONE_PREFIX = Integer.getInteger("smartgrid.multicast.zonePrefix", 32);
+    // -Dsmartgrid.multicast.ttl=N lets grants cross N-1 routers (default 1: this subnet only)
+    private static final int TTL = Integer.getInteger("smartgrid.multicast.ttl", 1);
+    // -Dsmartgrid.multicast.interface=<name> sends and joins on that interface rather
+    // than the one holding our own address
+    private static final String INTERFACE = System.getProperty("smartgrid.multicast.interface");
+
+    // Send side: one packet per group, filled in one pass over the client table
+    private final PowerGrantPacket[] packets;
+    private final int[] entryCounts;
+
+    GrantGroups() {
+        packets = new PowerGrantPacket[COUNT];
+        entryCounts = new int[COUNT];
+        for (int group = 0; group < COUNT; group++) {
+            packets[group] = new PowerGrantPacket(address(group));
+        }
+    }
+
+    static boolean enabled() {
+        return COUNT > 0;
+    }
+
+    // Group of the client (or gateway) with IPv4 address addr
+    static int groupOf(int addr) {
+        int zone = ZONE_PREFIX <= 0 ? 0 : ZONE_PREFIX >= 32 ? addr : addr >>> (32 - ZONE_PREFIX);
+        return Math.floorMod(ClientTable.hash(zone & 0xFFFFFFFFL), COUNT);
+    }
+
+    static InetAddress address(int group) {
+        try {
+            return Ipv4.toInetAddress(Ipv4.toInt(InetAddress.getByName(BASE_ADDRESS)) + group);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid multicast address " + BASE_ADDRESS);
+        }
+    }
+
+    // Send multicast grants out of the interface holding localAddr
+    static void configureSender(DatagramSocket socket, InetAddress localAddr) throws IOException {
+        socket.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface(localAddr));
+        socket.setOption(StandardSocketOptions.IP_MULTICAST_TTL, TTL);
+    }
+
+    // Join the grant group of the client with address addr, on the interface holding localAddr
+    static void join(DatagramChannel channel, InetAddress localAddr, int addr) throws IOException {
+        channel.join(address(groupOf(addr)), networkInterface(localAddr));
+    }
+
+    // The interface holding localAddr. Only 127.0.0.1 is listed on the loopback
+    // interface, so any other loopback address (test clients) maps to it too.
+    private static NetworkInterface networkInterface(InetAddress localAddr) throws SocketException {
+        NetworkInterface nif = INTERFACE != null ? NetworkInterface.getByName(INTERFACE)
+                : NetworkInterface.getByInetAddress(localAddr);
+        if (nif == null && INTERFACE == null && localAddr.isLoopbackAddress()) {
+            Enumeration<NetworkInterface> all = NetworkInterface.getNetworkInterfaces();
+            while (nif == null && all.hasMoreElements()) {
+                NetworkInterface candidate = all.nextElement();
+                if (candidate.isLoopback()) {
+                    nif = candidate;
+                }
+            }
+        }
+        if (nif == null) {
+            throw new SocketException("No interface for multicast grants on " + (INTERFACE != null ? INTERFACE
+                    : localAddr.getHostAddress()));
+        }
+        return nif;
+    }
+
+    // Encode a keyframe, or a delta, for every group (see PowerGrantPacket.encode)
+    void encode(int sequence, ClientTable clients, boolean keyframe) {
+        final int numClients = keyframe ? clients.size() : clients.sortChanged();
+        Arrays.fill(entryCounts, 0);
+        for (int rank = 0; rank < numClients; rank++) {
+            int client = keyframe ? clients.byAddress(rank) : clients.changedByAddress(rank);
+            entryCounts[groupOf(clients.address(client))]++;
+        }
+        final long serverTime = System.currentTimeMillis();
+        for (int group = 0; group < COUNT; group++) {
+            packets[group].begin(sequence, entryCounts[group], keyframe, serverTime);
+        }
+        // The clients are in address order, so each group's entries are too
+        for (int rank = 0; rank < numClients; rank++) {
+            int client = keyframe ? clients.byAddress(rank) : clients.changedByAddress(rank);
+            int powerGranted = clients.granted(client);
+            int addr = clients.address(client);
+            packets[groupOf(addr)].append(addr, clients.loadId(client), powerGranted);
+            clients.setSent(client, powerGranted);
+        }
+        for (int group = 0; group < COUNT; group++) {
+            packets[group].finish();
+        }
+    }
+
+    PowerGrantPacket packet(int group) {
+        return packets[group];
+    }
+
+    // Segments in the last tick encoded, across all groups
+    int getPacketCount() {
+        int count = 0;
+        for (PowerGrantPacket packet : packets) {
+            count += packet.getPacketCount();
+        }
+        return count;
+    }
+}
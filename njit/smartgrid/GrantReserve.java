@@ -0,0 +1,144 @@
+package njit.smartgrid;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Capacity the ingest threads may grant on the spot, without waiting for the next tick
+// (-Dsmartgrid.immediateGrants=true, see PowerServer).
+//
+// After each tick the tick thread opens the reserve with whatever capacity is spare,
+// if no request is still waiting for a grant (those come first at the next tick). An
+// ingest thread takes a grant out of it, queues the request with the grant it took,
+// and only then sends the grant. Before the tick thread drains the request queue it
+// closes the reserve and waits out any ingest thread between taking and queueing, so
+// every grant sent is in the queue, and the tick thread drains until it has applied all
+// of them (a drain stops at a request still being written, which may be ahead of one
+// with a grant), so the tick is computed with every grant sent and the total granted
+// stays within the capacity. RequestQueue.offerRequest() and drain() are the two sides.
+//
+// The watts left and the number of ingest threads between take() and done() share one
+// long (watts in the high int), so both change in one compare-and-set.
+//
+// Only new requests are granted on the spot: a client that already has a request in
+// progress is answered by the tick as usual, so follow-up requests don't use up the
+// reserve. Clients are hashed into buckets, each stamped with the generation (one per
+// open()) in which one of its clients last had a request in progress: open() stamps the
+// buckets of the clients the tick left active, and take() claims a bucket with a
+// compare-and-set before it takes any watts, so of two requests arriving together from
+// one client only one can be granted. Hash collisions only make a request wait for the tick.
+//
+// Nothing is granted until the grant tick computed before opening has been sent, so an
+// immediate grant can't be overtaken by an older tick without it.
+final class GrantReserve {
+
+    private static final int MIN_BUCKETS = 1 << 10;
+
+    private final AtomicLong state = new AtomicLong();
+    private final AtomicInteger unapplied = new AtomicInteger();   // Grants taken, not yet drained
+    private volatile AtomicIntegerArray busy = new AtomicIntegerArray(MIN_BUCKETS);    // Generation, by bucket
+    private volatile int generation = 1;
+    private volatile int openSequence;      // Tick computed before opening
+    private volatile int sentSequence;      // Last tick sent
+
+    // Take the grant the tick would have given a new request from client key for
+    // powerRequested out of the spare capacity, if any fits (ingest threads). Returns the
+    // watts taken; unless that is 0, the caller must call done() once the request is queued.
+    int take(long key, int powerRequested) {
+        if (sentSequence - openSequence < 0) {
+            // Clients answer a tick as soon as it arrives, so the sender may just not
+            // have got round to saying it's sent
+            Thread.yield();
+            if (sentSequence - openSequence < 0) {
+                return 0;
+            }
+        }
+        // Generation first: open() replaces the buckets before it starts a new generation
+        int gen = generation;
+        AtomicIntegerArray buckets = busy;
+        int bucket = ClientTable.hash(key) & (buckets.length() - 1);
+        int stamp = buckets.get(bucket);
+        // Not over a newer stamp, which open() may be writing now
+        if (stamp - gen >= 0 || !buckets.compareAndSet(bucket, stamp, gen)) {
+            return 0;
+        }
+        while (true) {
+            long s = state.get();
+            int powerGranted = GrantShard.levelFor(powerRequested, (int) (s >> 32));
+            if (powerGranted == 0) {
+                return 0;
+            }
+            if (state.compareAndSet(s, s - ((long) powerGranted << 32) + 1)) {
+                if (generation != gen) {
+                    // The reserve was closed and opened again since we claimed the bucket
+                    // (it can't be while we are between take() and done())
+                    state.getAndAdd(((long) powerGranted << 32) - 1);
+                    return 0;
+                }
+                unapplied.incrementAndGet();
+                return powerGranted;
+            }
+        }
+    }
+
+    // The request holding a grant from take() is queued, or it wasn't and refundWatts go
+    // back into the reserve (ingest threads)
+    void done(int refundWatts) {
+        if (refundWatts > 0) {
+            unapplied.decrementAndGet();
+        }
+        state.getAndAdd(((long) refundWatts << 32) - 1);
+    }
+
+    // A request with a grant was drained (tick thread)
+    void applied() {
+        unapplied.decrementAndGet();
+    }
+
+    // True once every grant taken has been drained (tick thread, after close())
+    boolean settled() {
+        return unapplied.get() == 0;
+    }
+
+    // Tick sequence has been sent (sender thread)
+    void sent(int sequence) {
+        sentSequence = sequence;
+    }
+
+    // Stop granting, and wait until every grant taken so far is queued (tick thread)
+    void close() {
+        long s;
+        do {
+            s = state.get();
+        } while (!state.compareAndSet(s, s & 0xFFFFFFFFL));
+        while ((state.get() & 0xFFFFFFFFL) != 0) {
+            Thread.yield();
+        }
+    }
+
+    // Note the clients the tick left with a request in progress, and start granting out
+    // of watts once tick sequence is sent (tick thread, after close())
+    void open(int watts, ClientTable clients, ShardedAllocator allocator, int sequence) {
+        if (watts > 0) {
+            AtomicIntegerArray buckets = busy;
+            if (buckets.length() < clients.size() * 2) {
+                int length = MIN_BUCKETS;
+                while (length < clients.size() * 2) {
+                    length <<= 1;
+                }
+                buckets = new AtomicIntegerArray(length);
+            }
+            int gen = generation + 1 == 0 ? 1 : generation + 1;     // 0 is an unstamped bucket
+            int mask = buckets.length() - 1;
+            for (int i = 0; i < allocator.shardCount(); i++) {
+                GrantShard shard = allocator.shard(i);
+                for (int index = shard.nextActive(0); index >= 0; index = shard.nextActive(index + 1)) {
+                    buckets.set(ClientTable.hash(clients.key(shard.member(index))) & mask, gen);
+                }
+            }
+            busy = buckets;
+            generation = gen;
+        }
+        openSequence = sequence;
+        state.set((long) Math.max(0, watts) << 32);
+    }
+}
@@ -0,0 +1,230 @@
+package njit.smartgrid;
+import java.util.Arrays;
+
+// One partition of the server's clients, with its own slice of the capacity and its own
+// round-robin priority. Runs the per-tick allocation passes over its members only, so
+// shards can run in parallel on the shared ClientTable (each client belongs to exactly
+// one shard).
+//
+// The passes only visit the active members: those with a pending request. A member
+// joins the active set when a request arrives (activate()) and leaves it once it has no
+// pending requests, so a tick costs time in proportion to the requests in flight, not
+// to the number of clients. The running load total is kept up to date as grants come
+// and go. Members are still visited in the same rotating order, starting with the
+// priority client, so the grants are the same as with full passes.
+final class GrantShard {
+
+    private final ClientTable clients;
+    private final PowerLog log;
+
+    private int[] members = new int[16];    // Client numbers, in the order they joined
+    private int size = 0;
+    private final ActiveSet active = new ActiveSet();  // Indexes into members of clients with pending requests
+    private int priorityClientIndex = 0;
+    private int priorityClient = -1;
+
+    private int capacityWatts;
+    private int loadWatts = 0;
+    private int unmetWatts = 0;             // Power requested but not granted in the last tick
+
+    GrantShard(ClientTable clients, int capacityWatts, PowerLog log) {
+        this.clients = clients;
+        this.capacityWatts = capacityWatts;
+        this.log = log;
+    }
+
+    // Add a client to the shard. Returns its index in the shard.
+    int addClient(int client) {
+        if (size == members.length) {
+            members = Arrays.copyOf(members, size * 2);
+        }
+        members[size] = client;
+        return size++;
+    }
+
+    // A request arrived for the member at index
+    void activate(int index) {
+        active.add(index);
+    }
+
+    int activeCount() { return active.size(); }
+
+    // Index of the next member with a request in progress, from index on, or -1
+    int nextActive(int index) { return active.next(index); }
+
+    int member(int index) { return members[index]; }
+
+    int size() { return size; }
+
+    int capacityWatts() { return capacityWatts; }
+
+    void setCapacityWatts(int watts) { capacityWatts = watts; }
+
+    int loadWatts() { return loadWatts; }
+
+    int unmetWatts() { return unmetWatts; }
+
+    int priorityClientIndex() { return priorityClientIndex; }
+
+    // Sum of the members' current grants
+    int grantedWatts() {
+        int watts = 0;
+        for (int i = 0; i < size; i++) {
+            watts += clients.granted(members[i]);
+        }
+        return watts;
+    }
+
+    // A request from client was granted watts on arrival (see GrantReserve)
+    void grantNow(int client, int watts) {
+        loadWatts += watts - clients.granted(client);
+        clients.setGranted(client, watts);
+    }
+
+    // Put back the state of a checkpoint (see ServerCheckpoint), once the members are back
+    void restore(int capacityWatts, int loadWatts, int priorityClientIndex) {
+        this.capacityWatts = capacityWatts;
+        this.loadWatts = loadWatts;
+        this.priorityClientIndex = priorityClientIndex < size ? priorityClientIndex : 0;
+    }
+
+    // The three allocation passes of one grant tick
+    void runTick() {
+        if (size == 0) {
+            return;
+        }
+        checkForInactiveClients();
+        grantPower();       // Grant more requests, if the capacity exists
+        removeDeniedRequests();
+    }
+
+    // A tick when the capacity is split over several shards (see ShardedAllocator.tick()),
+    // in two halves. First grant what our own capacity covers, without logging, because
+    // requests denied here may still be granted out of capacity moved over from other shards.
+    void allocate() {
+        if (size == 0) {
+            return;
+        }
+        checkForInactiveClients();
+        grantPower(false);
+    }
+
+    // Then, if we were given more capacity, grant again with it. Either way log the
+    // grants, and drop the requests that are still denied.
+    void finishTick(boolean regrant) {
+        if (size == 0) {
+            return;
+        }
+        if (regrant) {
+            grantPower(true);
+        } else {
+            logGrants();
+        }
+        removeDeniedRequests();
+    }
+
+    // Iterate over the active members, removing inactive clients from the current load total
+    void checkForInactiveClients() {
+        for (int i = active.next(0); i >= 0; i = active.next(i + 1)) {
+            int client = members[i];
+            int powerGranted = clients.granted(client);
+            if (clients.pending(client) > 0 && powerGranted > 0) {
+                // If the request has been granted, consume it
+                int pending = clients.pending(client) - 1;
+                clients.setPending(client, pending);
+                // And if no request follows it, update the load total
+                if (pending == 0) {
+                    clients.setGranted(client, 0);
+                    loadWatts -= powerGranted;
+                    active.remove(i);
+                    if (client == priorityClient) {
+                        log.logString("Changing priority");
+                        incrementPriorityClient();
+                    }
+                }
+            }
+        }
+    }
+
+    void grantPower() {
+        grantPower(true);
+    }
+
+    private void grantPower(boolean logGrants) {
+        // Start iterating through the active members, beginning with the current priority client
+        priorityClient = members[priorityClientIndex];
+        unmetWatts = 0;
+        for (int i = active.next(priorityClientIndex); i >= 0; i = active.next(i + 1)) {
+            grantPower(members[i], logGrants);
+        }
+        // Wrap around to the beginning
+        for (int i = active.next(0); i >= 0 && i < priorityClientIndex; i = active.next(i + 1)) {
+            grantPower(members[i], logGrants);
+        }
+    }
+
+    // Log the grants of the active members, in the order grantPower() visits them
+    private void logGrants() {
+        for (int i = active.next(priorityClientIndex); i >= 0; i = active.next(i + 1)) {
+            logGrant(members[i], clients.granted(members[i]));
+        }
+        for (int i = active.next(0); i >= 0 && i < priorityClientIndex; i = active.next(i + 1)) {
+            logGrant(members[i], clients.granted(members[i]));
+        }
+    }
+
+    private void grantPower(int client, boolean logGrant) {
+        int powerGranted = 0;
+        if (clients.pending(client) > 0) {
+            int powerRequested = clients.requested(client);
+            powerGranted = clients.granted(client);
+            // We have to ignore any power this client may already be using
+            loadWatts -= powerGranted;
+            // After a capacity cut this may be less than the client had, or nothing
+            powerGranted = levelFor(powerRequested, capacityWatts - loadWatts);
+            loadWatts += powerGranted;
+            clients.setGranted(client, powerGranted);
+            if (powerGranted < powerRequested) {
+                unmetWatts += powerRequested - powerGranted;
+            }
+        }
+        if (logGrant) {
+            logGrant(client, powerGranted);
+        }
+    }
+
+    private void logGrant(int client, int powerGranted) {
+        log.logGrant(clients.address(client), clients.loadId(client), powerGranted, 0);
+    }
+
+    // The power level a request for powerRequested is granted when spareWatts are left:
+    // the level asked for if it fits, else the highest lower one that does, else 0
+    static int levelFor(int powerRequested, int spareWatts) {
+        if ((powerRequested == PowerRequest.POWER_BOTH) && (PowerRequest.POWER_BOTH <= spareWatts)) {
+            return PowerRequest.POWER_BOTH;
+        } else if ((powerRequested >= PowerRequest.POWER_HIGH) && (PowerRequest.POWER_HIGH <= spareWatts)) {
+            return PowerRequest.POWER_HIGH;
+        } else if (PowerRequest.POWER_LOW <= spareWatts) {
+            return PowerRequest.POWER_LOW;
+        }
+        return 0;
+    }
+
+    void removeDeniedRequests() {
+        for (int i = active.next(0); i >= 0; i = active.next(i + 1)) {
+            int client = members[i];
+            if (clients.pending(client) > 0 && clients.granted(client) == 0) {
+                // If the request hasn't been granted, drop it
+                int pending = clients.pending(client) - 1;
+                clients.setPending(client, pending);
+                if (pending == 0) {
+                    active.remove(i);
+                }
+            }
+        }
+    }
+
+    private void incrementPriorityClient() {
+        priorityClientIndex = (priorityClientIndex + 1) % size;
+    }
+}
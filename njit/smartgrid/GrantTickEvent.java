@@ -0,0 +1,33 @@
+package njit.smartgrid;
+import jdk.jfr.*;
+
+// JFR event for one server grant tick
+@Name("njit.smartgrid.GrantTick")
+@Label("Grant Tick")
+@Category("Smart Grid")
+@StackTrace(false)
+class GrantTickEvent extends Event {
+
+    @Label("Sequence")
+    int sequence;
+
+    @Label("Clients")
+    int clients;
+
+    @Label("Segments")
+    int segments;
+
+    @Label("Load")
+    @Description("Watts granted after the tick")
+    int loadWatts;
+
+    @Label("Compute Time")
+    @Description("Allocation and encoding")
+    @Timespan(Timespan.NANOSECONDS)
+    long compute;
+
+    @Label("Release Jitter")
+    @Description("How late the broadcast was handed to the sender")
+    @Timespan(Timespan.NANOSECONDS)
+    long jitter;
+}
@@ -0,0 +1,63 @@
+package njit.smartgrid;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+// Immediate grants, sent by the server's ingest threads for requests granted on arrival
+// (-Dsmartgrid.immediateGrants=true, see GrantReserve). One immediate grant carries the
+// grants of any number of clients at one address, so the loads of one gateway request
+// packet are answered together:
+//
+//   the grant segment header: sequence 0, segment 0 of 1, entry count n, flags FLAG_NOW
+//
+// followed by n ordinary grant entries, in the order the requests came in (so not
+// FLAG_SORTED). Like a slot acknowledgement, it goes to the client's grant port.
+final class ImmediateGrant {
+
+    static final int MAX_ENTRIES = PowerGrantPacket.ENTRIES_PER_SEGMENT;
+
+    private final ByteBuffer data = ByteBuffer.allocateDirect(PowerGrantPacket.PKT_SIZE);
+    private final DatagramChannel channel;
+    private int address;
+    private int count = 0;
+
+    ImmediateGrant(DatagramChannel channel) {
+        this.channel = channel;
+    }
+
+    // Add a client's grant. Consecutive clients at one address share a datagram.
+    void add(int address, int loadId, int powerGranted) throws IOException {
+        if (count == MAX_ENTRIES || (count > 0 && address != this.address)) {
+            flush();
+        }
+        this.address = address;
+        int offset = PowerGrantPacket.HEADER_SIZE + count * PowerGrantPacket.ENTRY_SIZE;
+        data.putInt(offset, address);
+        data.putShort(offset + 4, (short) loadId);
+        data.putShort(offset + 6, (short) powerGranted);
+        count++;
+    }
+
+    // Send what has been added since the last flush, if anything
+    void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        data.clear();
+        data.putLong(System.currentTimeMillis());
+        data.putInt(0);
+        data.putShort((short) 0);
+        data.putShort((short) 1);
+        data.putShort((short) count);
+        data.putShort((short) PowerGrantPacket.FLAG_NOW);
+        int length = PowerGrantPacket.HEADER_SIZE + count * PowerGrantPacket.ENTRY_SIZE;
+        data.position(0).limit(length);
+        count = 0;
+        try {
+            channel.send(data, new InetSocketAddress(Ipv4.toInetAddress(address), PowerGrantPacket.CLIENT_PORT));
+        } finally {
+            data.clear();   // add() writes past the end of the datagram just sent
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package njit.smartgrid;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Admission control for the server's ingest threads, so a request storm (every client
+// restarting at once after a power blip, or one client gone haywire) costs a bounded
+// amount of queue space and tick time.
+//
+// Per client: each (address, load ID) may send rate requests per grant period, with
+// bursts of up to burst, using GCRA: one "theoretical arrival time" per bucket, updated
+// with a compare-and-set, so nothing is locked or allocated. Clients are hashed into a
+// fixed number of buckets; clients sharing a bucket share its allowance.
+//
+// Globally: at most budget requests are let through between two ticks (0 for no limit
+// other than the ingest queue). The tick thread opens the next tick's budget when it
+// drains the queue.
+final class IngressLimiter {
+
+    private final AtomicLongArray arrival;  // Theoretical arrival time (System.nanoTime) per bucket
+    private final int mask;
+    private final long intervalNanos;       // Between requests at the steady rate
+    private final long toleranceNanos;      // How far ahead of the steady rate a burst may get
+    private final int budget;
+    private final AtomicInteger admitted = new AtomicInteger();
+
+    IngressLimiter(int buckets, long periodNanos, int rate, int burst, int budget) {
+        int size = 1;
+        while (size < buckets) {
+            size <<= 1;
+        }
+        arrival = new AtomicLongArray(size);
+        mask = size - 1;
+        intervalNanos = rate > 0 ? Math.max(1, periodNanos / rate) : 0;
+        toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+        this.budget = budget;
+        long now = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            arrival.set(i, now);
+        }
+    }
+
+    // True if client key may send another request now (ingest threads)
+    boolean allowClient(long key, long nowNanos) {
+        if (intervalNanos == 0) {
+            return true;
+        }
+        int bucket = ClientTable.hash(key) & mask;
+        while (true) {
+            long tat = arrival.get(bucket);
+            long start = tat - nowNanos > 0 ? tat : nowNanos;
+            if (start - nowNanos > toleranceNanos) {
+                return false;
+            }
+            if (arrival.compareAndSet(bucket, tat, start + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    // True if this tick's global budget has room for one more request (ingest threads)
+    boolean admit() {
+        return budget <= 0 || admitted.incrementAndGet() <= budget;
+    }
+
+    // Open the next tick's budget (tick thread)
+    void newTick() {
+        admitted.set(0);
+    }
+}
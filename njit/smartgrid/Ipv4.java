@@ -0,0 +1,50 @@
+package njit.smartgrid;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+// Helpers for handling IPv4 addresses as plain 32-bit ints (network byte order)
+final class Ipv4 {
+
+    // Inet4Address.hashCode() is the address itself in the JDKs we run on, but nothing
+    // promises that, so toIntNoCopy() checks it once before relying on it
+    private static final boolean HASH_IS_ADDRESS = hashIsAddress();
+
+    private Ipv4() {}
+
+    static int toInt(InetAddress addr) {
+        byte[] b = addr.getAddress();
+        if (b.length != 4) {
+            throw new IllegalArgumentException(addr + " is not an IPv4 address");
+        }
+        return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+    }
+
+    // Same as toInt() but without copying the address bytes, for the receive path. Falls
+    // back to toInt() (which rejects IPv6 addresses) unless addr is an Inet4Address whose
+    // hashCode() is known to be its address.
+    static int toIntNoCopy(InetAddress addr) {
+        if (HASH_IS_ADDRESS && addr instanceof Inet4Address) {
+            return addr.hashCode();
+        }
+        return toInt(addr);
+    }
+
+    private static boolean hashIsAddress() {
+        for (int addr : new int[] { 0x7F000001, 0xC0A8FF0A, 0xFFFFFFFF, 0x80000000 }) {
+            if (toInetAddress(addr).hashCode() != addr) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static InetAddress toInetAddress(int addr) {
+        byte[] b = { (byte) (addr >>> 24), (byte) (addr >>> 16), (byte) (addr >>> 8), (byte) addr };
+        try {
+            return InetAddress.getByAddress(b);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);   // Can't happen for a 4-byte address
+        }
+    }
+}
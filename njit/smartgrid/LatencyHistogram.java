@@ -0,0 +1,85 @@
+package njit.smartgrid;
+import java.util.Arrays;
+
+// Log-linear histogram of non-negative values (HDR style): exact below 128, and within
+// 1/64 (about 1.6%) of the true value above that. Recording is an array increment, so it
+// can be used on hot paths. Not thread-safe; each recording thread needs its own.
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_HALF = 1 << (SUB_BUCKET_BITS - 1);
+    private static final int BUCKETS = 64 - SUB_BUCKET_BITS + 2;
+
+    private final long[] counts = new long[BUCKETS * SUB_BUCKET_HALF];
+    private long totalCount = 0;
+    private long maxValue = 0;
+    private long sum = 0;
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        if (value > maxValue) {
+            maxValue = value;
+        }
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        maxValue = 0;
+        sum = 0;
+    }
+
+    // Add the counts of another histogram to this one
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        maxValue = Math.max(maxValue, other.maxValue);
+    }
+
+    long count() {
+        return totalCount;
+    }
+
+    long max() {
+        return maxValue;
+    }
+
+    double mean() {
+        return totalCount == 0 ? 0 : (double) sum / totalCount;
+    }
+
+    // Smallest recorded bucket value v such that at least percentile% of values are <= v
+    long percentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(totalCount * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    private static int indexOf(long value) {
+        int bucket = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return bucket * SUB_BUCKET_HALF + (int) (value >>> bucket);
+    }
+
+    private static long highestValueAt(int index) {
+        int bucket = Math.max(0, index / SUB_BUCKET_HALF - 1);
+        long subBucket = index - bucket * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << bucket) - 1;
+    }
+}
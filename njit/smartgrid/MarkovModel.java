@@ -0,0 +1,41 @@
+package njit.smartgrid;
+
+// Markov ON/OFF load model used to generate requests. Each grant period, a load that is
+// on turns off with probability p, and a load that is off turns on with probability q,
+// picking one of the three power levels at random.
+final class MarkovModel {
+
+    final double rho;           // Average on length (fraction of the cycle)
+    final int cycleLength;
+    final double beta;
+    final double alpha;
+    final double p;             // Probability ON -> OFF
+    final double q;             // Probability OFF -> ON
+
+    MarkovModel(double rho, int cycleLength) {
+        this.rho = rho;
+        this.cycleLength = cycleLength;
+        beta = cycleLength * rho;
+        alpha = cycleLength - beta;
+        p = 1.0 / beta;
+        q = 1.0 / (alpha + 1.0);
+    }
+
+    // Power to request for the coming period: the same level if an ON load stays on, a
+    // random level if an OFF load turns on, or 0 if the load ends up off
+    int nextRequest(boolean on, int powerRequested, double stateChangeRand, double powerLevelRand) {
+        if (on) {
+            return stateChangeRand <= p ? 0 : powerRequested;
+        }
+        if (stateChangeRand <= q) {
+            if (powerLevelRand < 1.0/3.0) {
+                return PowerRequest.POWER_HIGH;
+            } else if (powerLevelRand < 2.0/3.0) {
+                return PowerRequest.POWER_LOW;
+            } else {
+                return PowerRequest.POWER_BOTH;
+            }
+        }
+        return 0;
+    }
+}
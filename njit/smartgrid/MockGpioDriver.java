@@ -0,0 +1,27 @@
+package njit.smartgrid;
+
+// In-memory GPIO, for running the client off the Pi. Remembers the outputs and counts
+// writes, for other threads (tests) to read.
+final class MockGpioDriver implements GpioDriver {
+
+    private volatile boolean highPower = false;
+    private volatile boolean lowPower = false;
+    private volatile long writes = 0;
+
+    @Override
+    public void write(boolean highPower, boolean lowPower) {
+        this.highPower = highPower;
+        this.lowPower = lowPower;
+        writes++;
+    }
+
+    boolean highPower() { return highPower; }
+
+    boolean lowPower() { return lowPower; }
+
+    long writes() { return writes; }
+
+    @Override
+    public void close() {
+    }
+}
@@ -12,15 +12,19 @@ public class PowerClient {
 
     private static final boolean DEBUG = false;
     private static final boolean HIDE_EMPTY_GRANTS = true;
-    private static final boolean RASPBERRY_PI = true;
-    private static final int HIGH_POWER_PIN = 7;
-    private static final int LOW_POWER_PIN = 12;
+    // -Dsmartgrid.gpio=sysfs|gpiomem|mock picks the GpioDriver for the power outputs
+    // (default: sysfs on the Pi, mock elsewhere)
+    private static final String GPIO_DRIVER = System.getProperty("smartgrid.gpio", GpioDriver.defaultName());
+    // -Dsmartgrid.quiet=true turns off the per-tick console output
+    private static final boolean QUIET = Boolean.getBoolean("smartgrid.quiet");
 
     static final int SERVER_PORT = 1234;
     static final int CLIENT_PORT = 1235;
     static final int REQUEST_PACKET_LENGTH = 12;// Size of the request packet in bytes
+    static final int KEYFRAME_RETRY_TICKS = 8;  // Ticks to wait before asking for another keyframe
 
     private InetAddress myAddr;
+    private final int myAddrInt;
     private InetAddress serverAddr;
     private boolean outputState = false;
     private int powerRequested = 0;
@@ -29,8 +33,25 @@ public class PowerClient {
     private long grantPeriod = 0;
     private long minimumRequestSpacing = 0;
 
-    private double p, q;
+    // Our grant as of the last tick we followed, for delta grant ticks
+    private boolean grantKnown = false;
+    private int currentGrant = 0;
+    private int ticksSinceKeyframeRequest = KEYFRAME_RETRY_TICKS;
+    // Our slot ID and its epoch, once the server has told us, for slot ticks
+    private int slot = -1;
+    private int slotEpoch;
+
+    private MarkovModel model;
+    private final Random rand = new Random();
     private PowerLog log;
+    private ClientChannel channel;  // Grants in, requests out
+
+    // Power outputs, as last written to the GPIO driver
+    private GpioDriver gpio;
+    private boolean outputsKnown = false;
+    private boolean highOutput = false;
+    private boolean lowOutput = false;
+    private final LatencyHistogram actuation = new LatencyHistogram();   // GPIO write times (ns)
 
     /**
      * @param args the command line arguments
@@ -38,6 +59,9 @@ public class PowerClient {
     public static void main(String[] args) throws IOException {
         if (args.length < 4) {
             System.out.println("Usage: java njit.smartgrid.PowerClient <client address> <server address> <on percentage> <cycle length (s)>");
+            System.out.println("Options: -Dsmartgrid.gpio=sysfs|gpiomem|mock (GPIO driver, default sysfs on the Pi, mock elsewhere)");
+            System.out.println("         -Dsmartgrid.multicast.groups=<k> (and the other multicast options, as on the server)");
+            System.out.println("         -Dsmartgrid.quiet=true (no per-tick console output)");
             System.exit(0);
         }
         final PowerClient powerClient;
@@ -45,11 +69,14 @@ public class PowerClient {
         final InetAddress serverAddr = InetAddress.getByName(args[1]);
         powerClient = new PowerClient(myAddr, serverAddr);
 
-        if (RASPBERRY_PI) {
-            Runtime.getRuntime().exec("gpio mode " + HIGH_POWER_PIN + " output");
-            Runtime.getRuntime().exec("gpio mode " + LOW_POWER_PIN + " output");
-            powerClient.pinWrite(HIGH_POWER_PIN, false);
-            powerClient.pinWrite(LOW_POWER_PIN, false);
+        if (GPIO_DRIVER.equals("mock")) {
+            System.out.println("GPIO: mock, the power outputs are not driven");
+        }
+        try {
+            powerClient.openGpio(GpioDriver.open(GPIO_DRIVER));
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getMessage());
+            System.exit(1);
         }
 
         if (args.length < 4) {
@@ -58,92 +85,132 @@ public class PowerClient {
         } else {
             final double rho = Double.parseDouble(args[2]);    // Average on length
             final int cycleLength = Integer.parseInt(args[3]);
-            powerClient.calculateProbabilities(rho, cycleLength);
-            powerClient.generateRequest();
-            powerClient.listenForGrant();
+            powerClient.run(rho, cycleLength);
         }
         System.out.println("My address is " + myAddr.getHostAddress());
     }
 
     public PowerClient(InetAddress myAddr, InetAddress serverAddr) {
         this.myAddr = myAddr;
+        this.myAddrInt = Ipv4.toInt(myAddr);
         this.serverAddr = serverAddr;
         this.log = new PowerLog(false);
+        try {
+            this.channel = new ClientChannel(new InetSocketAddress(serverAddr, SERVER_PORT), CLIENT_PORT);
+            channel.joinGrantGroup(myAddr);
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Start requesting power as a Markov client, and act on the grants (doesn't return)
+    void run(double rho, int cycleLength) {
+        calculateProbabilities(rho, cycleLength);
+        generateRequest();
+        listenForGrant();
     }
 
     public void listenForGrant() {
-        try (DatagramSocket receiveSocket = new DatagramSocket(CLIENT_PORT)) {
+        // Reassembly state for the grant tick currently being received
+        int currentSequence = 0;
+        boolean tickStarted = false;
+        boolean tickDone = false;
+        int segmentsSeen = 0;
+        BitSet seenSegments = new BitSet();
+        // One receive buffer for the life of the client
+        PowerGrantPacket packet = new PowerGrantPacket();
+        try {
             while (true) {
-                PowerGrantPacket packet = new PowerGrantPacket();
-                receiveSocket.receive(packet.getPacket());
-                ByteBuffer packetData = ByteBuffer.wrap(packet.getData());
-                // Build the packet back into a map of address and auth values
-                long serverTime = packetData.getLong();
-                while (packetData.remaining() >= 8) {
-                    // Get the address
-                    byte[] addrArray = new byte[4];
-                    packetData.get(addrArray, 0, 4);
-                    // If we hit the stop bytes, break out of loop
-                    if (addrArray[0] == (byte)0xFF) {
-                        break;
+                channel.receive(packet);
+                if (!packet.isValid()) {
+                    System.err.println("Invalid grant packet of length " + packet.getPacket().getLength());
+                    continue;
+                }
+                if (packet.isAck()) {
+                    takeSlot(packet);
+                    continue;
+                }
+                if (packet.isImmediate()) {
+                    // Our request was granted on arrival, ahead of the next tick
+                    int entry = packet.findEntry(myAddrInt);
+                    if (entry >= 0) {
+                        currentGrant = packet.getEntryGrant(entry);
+                        handleGrant(currentGrant, packet.getServerTime());
                     }
-                    InetAddress clientAddr = InetAddress.getByAddress(addrArray);
-                    // Found our address?
-                    if (clientAddr.equals(myAddr)) {
-                        if (grantPeriod == 0) {
-                            if (minimumRequestSpacing == 0) {
-                                minimumRequestSpacing = System.currentTimeMillis();
-                            } else {
-                                grantPeriod = System.currentTimeMillis() - minimumRequestSpacing;
-                                minimumRequestSpacing = (long) (grantPeriod * 0.8);
-                            }
+                    continue;
+                }
+                // First segment of a new tick? Forget whatever is left of the previous one
+                int sequence = packet.getSequence();
+                if (!tickStarted || sequence != currentSequence) {
+                    if (packet.hasSlots()) {
+                        if (packet.getSlotEpoch() != slotEpoch) {
+                            slot = -1;      // The server restarted, so our slot is gone
+                        }
+                        // Ask for our slot again if it was lost, unless the server has never heard from us
+                        if (slot < 0 && lastRequestTime > 0 && ++ticksSinceKeyframeRequest >= KEYFRAME_RETRY_TICKS) {
+                            requestKeyframe();
+                            ticksSinceKeyframeRequest = 0;
+                        }
+                    } else if (packet.isDelta()) {
+                        // A delta only applies on top of the tick right before it. If we missed
+                        // part of that one, we may have missed a change to our grant.
+                        if (!tickDone || sequence != currentSequence + 1) {
+                            grantKnown = false;
                         }
-                        // Get the auth values
-                        int powerGranted = packetData.getInt();
-                        if (powerGranted > 0 || !suppressTerminalOutput) {
-                            printTimestamp();
-                            System.out.format("Got %dW\n", powerGranted);
-                            suppressTerminalOutput = false;
+                        // Ask for a keyframe, unless the server has never heard from us
+                        if (!grantKnown && lastRequestTime > 0 && ++ticksSinceKeyframeRequest >= KEYFRAME_RETRY_TICKS) {
+                            requestKeyframe();
+                            ticksSinceKeyframeRequest = 0;
                         }
-                        if (powerGranted > 0) {
-                            // If we have a nonzero grant, turn on some lights
-                            outputState = true;
-                            if (RASPBERRY_PI) {
-                                if (powerGranted == PowerRequest.POWER_HIGH) {
-                                    pinWrite(HIGH_POWER_PIN, true);
-                                    pinWrite(LOW_POWER_PIN, false);
-                                } else if (powerGranted == PowerRequest.POWER_LOW) {
-                                    pinWrite(LOW_POWER_PIN, true);
-                                    pinWrite(HIGH_POWER_PIN, false);
-                                } else if (powerGranted == PowerRequest.POWER_BOTH) {
-                                    pinWrite(HIGH_POWER_PIN, true);
-                                    pinWrite(LOW_POWER_PIN, true);
-                                } else {
-                                    System.err.println("Invalid grant amount.");
-                                }
-                            }
-                        } else {
-                            // Otherwise, turn off the lights
-                            outputState = false;
-                            if (HIDE_EMPTY_GRANTS) {
-                                suppressTerminalOutput = true;
-                            }
-                            if (RASPBERRY_PI) {
-                                pinWrite(HIGH_POWER_PIN, false);
-                                pinWrite(LOW_POWER_PIN, false);
-                            }
+                    }
+                    currentSequence = sequence;
+                    tickStarted = true;
+                    tickDone = false;
+                    segmentsSeen = 0;
+                    seenSegments.clear();
+                }
+                int segmentIndex = packet.getSegmentIndex();
+                if (tickDone || seenSegments.get(segmentIndex)) {
+                    continue;
+                }
+                seenSegments.set(segmentIndex);
+                segmentsSeen++;
+                if (packet.hasSlots()) {
+                    // Our grant is at our slot, in one segment
+                    if (slot >= 0 && packet.holdsSlot(slot)) {
+                        currentGrant = packet.getSlotGrant(slot);
+                        grantKnown = true;
+                        handleGrant(currentGrant, packet.getServerTime());
+                        tickDone = true;
+                    } else if (slot < 0 || segmentsSeen == packet.getSegmentCount()) {
+                        tickDone = true;
+                        grantKnown = false;     // The server doesn't know us (yet)
+                    }
+                } else {
+                    // Look for our entry in this segment only
+                    int entry = packet.findEntry(myAddrInt);
+                    if (entry >= 0) {
+                        currentGrant = packet.getEntryGrant(entry);
+                        grantKnown = true;
+                        handleGrant(currentGrant, packet.getServerTime());
+                        tickDone = true;
+                    }
+                    // The tick is over once we found our entry, know it isn't in any other
+                    // segment, or have seen every segment
+                    if (!tickDone && (packet.coversAddress(myAddrInt) || segmentsSeen == packet.getSegmentCount())) {
+                        tickDone = true;
+                        if (!packet.isDelta()) {
+                            grantKnown = false;     // The server doesn't know us (yet)
+                        } else if (grantKnown) {
+                            handleGrant(currentGrant, packet.getServerTime());  // No change
                         }
-                        log.logGrant(myAddr, powerGranted, serverTime);
-                        break;
-                    } else {
-                        packetData.getInt();   // skip the auth fields if they aren't ours
                     }
                 }
-                generateRequest();
+                if (tickDone) {
+                    generateRequest();
+                }
             }
-        } catch (UnknownHostException e) {
-            System.err.println("UnknownHostException: " + e.getMessage());
-            System.exit(1);
         } catch (SocketException e) {
             System.err.println("SocketException: " + e.getMessage());
             System.exit(1);
@@ -153,6 +220,55 @@ public class PowerClient {
         }
     }
 
+    // Pick our slot out of a slot acknowledgement
+    private void takeSlot(PowerGrantPacket ack) {
+        for (int i = 0; i < ack.getEntryCount(); i++) {
+            if (ack.getAckAddress(i) == myAddrInt && ack.getAckLoadId(i) == 0) {
+                slot = ack.getAckSlot(i);
+                slotEpoch = ack.getSlotEpoch();
+                ticksSinceKeyframeRequest = KEYFRAME_RETRY_TICKS;
+            }
+        }
+    }
+
+    // Act on our entry of a grant tick
+    private void handleGrant(int powerGranted, long serverTime) {
+        if (grantPeriod == 0) {
+            if (minimumRequestSpacing == 0) {
+                minimumRequestSpacing = System.currentTimeMillis();
+            } else {
+                grantPeriod = System.currentTimeMillis() - minimumRequestSpacing;
+                minimumRequestSpacing = (long) (grantPeriod * 0.8);
+            }
+        }
+        if (!QUIET && (powerGranted > 0 || !suppressTerminalOutput)) {
+            printTimestamp();
+            System.out.format("Got %dW\n", powerGranted);
+            suppressTerminalOutput = false;
+        }
+        if (powerGranted > 0) {
+            // If we have a nonzero grant, turn on some lights
+            outputState = true;
+            if (powerGranted == PowerRequest.POWER_HIGH) {
+                setOutputs(true, false);
+            } else if (powerGranted == PowerRequest.POWER_LOW) {
+                setOutputs(false, true);
+            } else if (powerGranted == PowerRequest.POWER_BOTH) {
+                setOutputs(true, true);
+            } else {
+                System.err.println("Invalid grant amount.");
+            }
+        } else {
+            // Otherwise, turn off the lights
+            outputState = false;
+            if (HIDE_EMPTY_GRANTS) {
+                suppressTerminalOutput = true;
+            }
+            setOutputs(false, false);
+        }
+        log.logGrant(myAddrInt, powerGranted, serverTime);
+    }
+
     // Send a request packet to the server that contains a timestamp, power level, and # of packets requested
     public void requestPower(int power) {
         lastRequestTime = System.currentTimeMillis();
@@ -161,18 +277,23 @@ public class PowerClient {
         } else {
             this.powerRequested = 0;
         }
-        printTimestamp();
-        System.out.println("Requesting " + powerRequested + "W");
-        log.logRequest(myAddr, powerRequested, 0);
-        try (DatagramSocket sendSocket = new DatagramSocket()) {    // New socket on dynamic port
-            ByteBuffer requestBuffer = ByteBuffer.allocate(REQUEST_PACKET_LENGTH);
-            requestBuffer.putLong(System.currentTimeMillis());  // Timestamp
-            requestBuffer.putInt(powerRequested);
-            DatagramPacket requestPacket = new DatagramPacket(requestBuffer.array(), REQUEST_PACKET_LENGTH, serverAddr, SERVER_PORT);
-            sendSocket.send(requestPacket);
-        } catch (UnknownHostException e) {
-            System.err.println("UnknownHostException: " + e.getMessage());
-            System.exit(1);
+        if (!QUIET) {
+            printTimestamp();
+            System.out.println("Requesting " + powerRequested + "W");
+        }
+        log.logRequest(myAddrInt, powerRequested, 0);
+        sendRequest(powerRequested);
+    }
+
+    // Ask the server to send the next grant tick in full
+    public void requestKeyframe() {
+        if (DEBUG) { System.out.println("Requesting keyframe"); }
+        sendRequest(PowerRequest.KEYFRAME_REQUEST);
+    }
+
+    private void sendRequest(int powerField) {
+        try {
+            channel.send(powerField);
         } catch (SocketException e) {
             System.err.println("SocketException: " + e.getMessage());
             System.exit(1);
@@ -185,12 +306,9 @@ public class PowerClient {
     private void calculateProbabilities(double rho, int cycleLength) {
         log.logString(String.format("Client: %s, Server: %s", myAddr.getHostAddress(), serverAddr.getHostAddress()));
         log.logString(String.format("Auto generation: Enabled"));
-        final double beta = cycleLength * rho;
-        final double alpha = cycleLength - beta;
-        p = 1.0 / beta;          // Probability ON -> OFF
-        q = 1.0 / (alpha + 1.0); // Probability OFF -> ON
+        model = new MarkovModel(rho, cycleLength);
         log.logString(String.format("Input values: rho=%f, cycle_length=%d", rho, cycleLength));
-        log.logString(String.format("beta=%f, alpha=%f, p=%f, q=%f", beta, alpha, p, q));
+        log.logString(String.format("beta=%f, alpha=%f, p=%f, q=%f", model.beta, model.alpha, model.p, model.q));
     }
 
     private void generateRequest() {
@@ -198,45 +316,53 @@ public class PowerClient {
         if (System.currentTimeMillis() < lastRequestTime + minimumRequestSpacing) {
             return;
         }
-        Random rand = new Random();
         double stateChangeRand = rand.nextDouble();
         double powerLevelRand = rand.nextDouble();
 
-        if (DEBUG) { System.out.format("statechange=%f, p=%f, q=%f\n", stateChangeRand, p, q); }
+        if (DEBUG) { System.out.format("statechange=%f, p=%f, q=%f\n", stateChangeRand, model.p, model.q); }
 
-        // Currently on?
-        if (outputState) {
-            // Turn off?
-            if (stateChangeRand <= p) {
-                printTimestamp();
-                System.out.println("End of request block.");
-            } else {
-                requestPower(powerRequested);
-            }
-        } else {
-            // Turn on?
-            if (stateChangeRand <= q) {
-                if (powerLevelRand < 1.0/3.0) {
-                    requestPower(PowerRequest.POWER_HIGH);
-                } else if (powerLevelRand < 2.0/3.0) {
-                    requestPower(PowerRequest.POWER_LOW);
-                } else {
-                    requestPower(PowerRequest.POWER_BOTH);
+        int power = model.nextRequest(outputState, powerRequested, stateChangeRand, powerLevelRand);
+        if (power > 0) {
+            requestPower(power);
+        } else if (outputState && !QUIET) {
+            printTimestamp();
+            System.out.println("End of request block.");
+        }
+    }
+
+    // Start driving the outputs, both off, and report actuation times on the way out
+    void openGpio(GpioDriver driver) {
+        gpio = driver;
+        setOutputs(false, false);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                System.out.format("Actuation: %d writes, p50/p99/max %.1f/%.1f/%.1f us%n", actuation.count(),
+                        actuation.percentile(50) / 1e3, actuation.percentile(99) / 1e3, actuation.max() / 1e3);
+                try {
+                    gpio.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             }
-        }
+        });
     }
 
-    private void pinWrite(int pin, boolean state) {
+    // Drive the power outputs, unless they are already in that state
+    private void setOutputs(boolean high, boolean low) {
+        if (outputsKnown && high == highOutput && low == lowOutput) {
+            return;
+        }
+        long start = System.nanoTime();
         try {
-            if (state) {
-                Runtime.getRuntime().exec("gpio write " + pin + " 1");
-            } else {
-                Runtime.getRuntime().exec("gpio write " + pin + " 0");
-            }
+            gpio.write(high, low);
         } catch (IOException e) {
             e.printStackTrace();
+            return;
         }
+        actuation.record(System.nanoTime() - start);
+        highOutput = high;
+        lowOutput = low;
+        outputsKnown = true;
     }
 
     private void printTimestamp() {
@@ -0,0 +1,344 @@
+package njit.smartgrid;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.sql.Time;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+// Gateway mode: one process, one socket and one IP address for many loads.
+//
+// The server keys client state on (address, load ID), so each of the gateway's loads
+// (0 to N-1) is a client of its own. Requests for all loads that want power go out
+// together in multi-load request packets (see PowerRequest), and each grant segment is
+// searched once for the run of entries with our address, which covers every load.
+// Each load runs the same Markov ON/OFF model as PowerClient. With slot ticks, each load
+// reads its grant at the slot the server acknowledged for it instead.
+public class PowerGateway {
+
+    // -Dsmartgrid.quiet=true turns off the per-tick console output
+    private static final boolean QUIET = Boolean.getBoolean("smartgrid.quiet");
+
+    private final int myAddrInt;
+    private final long lowKey;      // Key range of our loads in the grant entries
+    private final long highKey;
+    private final int numLoads;
+    private final MarkovModel model;
+    private final Random rand = new Random();
+    private final ClientChannel channel;
+    private final PowerLog log;
+
+    // Per load
+    private final int[] grant;              // Current grant (watts)
+    private final int[] powerRequested;
+    private final int[] grantTick;          // Last tick that carried the load's entry
+
+    // Our grants as of the last tick we followed, for delta grant ticks
+    private boolean grantsKnown = false;
+    private boolean requested = false;      // The server has heard from us
+    private int ticksSinceKeyframeRequest = PowerClient.KEYFRAME_RETRY_TICKS;
+
+    // Slot ticks: each load's slot ID (-1 until acknowledged), their epoch and range
+    private final int[] slot;
+    private int slotEpoch;
+    private int minSlot = Integer.MAX_VALUE;
+    private int maxSlot = -1;
+
+    private final ByteBuffer request = ByteBuffer.allocateDirect(PowerGrantPacket.PKT_SIZE);
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 5) {
+            System.out.println("Usage: java njit.smartgrid.PowerGateway <gateway address> <server address> <loads> <rho> <cycle length>");
+            System.out.println("Options: -Dsmartgrid.quiet=true (no per-tick console output)");
+            System.out.println("         -Dsmartgrid.multicast.groups=<k> (and the other multicast options, as on the server)");
+            System.exit(0);
+        }
+        final InetAddress myAddr = InetAddress.getByName(args[0]);
+        final InetAddress serverAddr = InetAddress.getByName(args[1]);
+        final int numLoads = Integer.parseInt(args[2]);
+        final double rho = Double.parseDouble(args[3]);
+        final int cycleLength = Integer.parseInt(args[4]);
+        if (numLoads < 1 || numLoads > 0x10000) {
+            System.err.println("Number of loads must be between 1 and 65536.");
+            System.exit(1);
+        }
+        PowerGateway gateway = new PowerGateway(myAddr, serverAddr, numLoads, new MarkovModel(rho, cycleLength));
+        gateway.generateRequests();
+        gateway.listenForGrant();
+    }
+
+    PowerGateway(InetAddress myAddr, InetAddress serverAddr, int numLoads, MarkovModel model) throws IOException {
+        this.myAddrInt = Ipv4.toInt(myAddr);
+        this.lowKey = ClientTable.key(myAddrInt, 0);
+        this.highKey = ClientTable.key(myAddrInt, numLoads - 1);
+        this.numLoads = numLoads;
+        this.model = model;
+        this.grant = new int[numLoads];
+        this.powerRequested = new int[numLoads];
+        this.grantTick = new int[numLoads];
+        this.slot = new int[numLoads];
+        Arrays.fill(slot, -1);
+        this.channel = new ClientChannel(new InetSocketAddress(serverAddr, PowerClient.SERVER_PORT), PowerClient.CLIENT_PORT);
+        channel.joinGrantGroup(myAddr);
+        this.log = new PowerLog(false);
+        log.logString(String.format("Gateway: %s, Server: %s, Loads: %d", myAddr.getHostAddress(),
+                serverAddr.getHostAddress(), numLoads));
+        log.logString(String.format("Input values: rho=%f, cycle_length=%d", model.rho, model.cycleLength));
+    }
+
+    public void listenForGrant() {
+        // Reassembly state for the grant tick currently being received
+        int currentSequence = 0;
+        boolean tickStarted = false;
+        boolean tickDone = false;
+        boolean keyframe = false;
+        int tickNumber = 0;
+        int segmentsSeen = 0;
+        int firstSegment = -1;      // Segment where our entries start, once seen
+        int lastSegment = -1;       // Segment where they end, once seen
+        BitSet seenSegments = new BitSet();
+        PowerGrantPacket packet = new PowerGrantPacket();
+        try {
+            while (true) {
+                channel.receive(packet);
+                if (!packet.isValid()) {
+                    System.err.println("Invalid grant packet of length " + packet.getPacket().getLength());
+                    continue;
+                }
+                if (packet.isAck()) {
+                    takeSlots(packet);
+                    continue;
+                }
+                if (packet.isImmediate()) {
+                    applyGrants(packet, tickNumber);    // Requests granted on arrival
+                    continue;
+                }
+                // First segment of a new tick? Forget whatever is left of the previous one
+                int sequence = packet.getSequence();
+                if (!tickStarted || sequence != currentSequence) {
+                    keyframe = !packet.isDelta();
+                    if (packet.hasSlots()) {
+                        if (packet.getSlotEpoch() != slotEpoch) {
+                            forgetSlots();      // The server restarted
+                        }
+                        // Ask for the slots of loads that have requested but have none
+                        if (missingSlots() && ++ticksSinceKeyframeRequest >= PowerClient.KEYFRAME_RETRY_TICKS) {
+                            requestKeyframe();
+                            ticksSinceKeyframeRequest = 0;
+                        }
+                    } else if (!keyframe) {
+                        // A delta only applies on top of the tick right before it
+                        if (!tickDone || sequence != currentSequence + 1) {
+                            grantsKnown = false;
+                        }
+                        if (!grantsKnown && requested && ++ticksSinceKeyframeRequest >= PowerClient.KEYFRAME_RETRY_TICKS) {
+                            requestKeyframe();
+                            ticksSinceKeyframeRequest = 0;
+                        }
+                    }
+                    currentSequence = sequence;
+                    tickStarted = true;
+                    tickDone = false;
+                    tickNumber++;
+                    segmentsSeen = 0;
+                    firstSegment = -1;
+                    lastSegment = -1;
+                    seenSegments.clear();
+                }
+                int segmentIndex = packet.getSegmentIndex();
+                if (tickDone || seenSegments.get(segmentIndex)) {
+                    continue;
+                }
+                seenSegments.set(segmentIndex);
+                segmentsSeen++;
+                if (packet.hasSlots()) {
+                    applySlotGrants(packet, tickNumber);
+                    // Only the segments holding our slots matter
+                    firstSegment = maxSlot < 0 ? 0 : minSlot / PowerGrantPacket.SLOTS_PER_SEGMENT;
+                    lastSegment = maxSlot < 0 ? -1 : maxSlot / PowerGrantPacket.SLOTS_PER_SEGMENT;
+                    if (segmentsSeen == packet.getSegmentCount() || seenSegments.nextClearBit(firstSegment) > lastSegment) {
+                        tickDone = true;
+                        // Loads without a slot, or whose slot we didn't see, have no grant
+                        for (int load = 0; load < numLoads; load++) {
+                            if (grantTick[load] != tickNumber) {
+                                grant[load] = 0;
+                            }
+                        }
+                        grantsKnown = true;
+                        tickDone(packet.getServerTime());
+                        generateRequests();
+                    }
+                    continue;
+                }
+                applyGrants(packet, tickNumber);
+                if (packet.startsBelow(lowKey)) {
+                    firstSegment = segmentIndex;
+                }
+                if (packet.endsAbove(highKey)) {
+                    lastSegment = segmentIndex;
+                }
+                // The tick is over once we have seen every segment that can hold our entries
+                if (segmentsSeen == packet.getSegmentCount() || (firstSegment >= 0 && lastSegment >= firstSegment
+                        && seenSegments.nextClearBit(firstSegment) > lastSegment)) {
+                    tickDone = true;
+                    if (keyframe) {
+                        // Loads missing from a keyframe have no grant
+                        for (int load = 0; load < numLoads; load++) {
+                            if (grantTick[load] != tickNumber) {
+                                grant[load] = 0;
+                            }
+                        }
+                        grantsKnown = true;
+                    }
+                    if (grantsKnown) {
+                        tickDone(packet.getServerTime());
+                    }
+                    generateRequests();
+                }
+            }
+        } catch (SocketException e) {
+            System.err.println("SocketException: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Pick our loads' entries out of one segment: they are one run of entries, since
+    // entries are sorted by address, then load ID
+    private void applyGrants(PowerGrantPacket packet, int tickNumber) {
+        int entryCount = packet.getEntryCount();
+        boolean sorted = (packet.getFlags() & PowerGrantPacket.FLAG_SORTED) != 0;
+        for (int e = sorted ? packet.lowerBound(lowKey) : 0; e < entryCount; e++) {
+            long key = packet.getEntryKey(e);
+            if (key > highKey && sorted) {
+                break;
+            }
+            if (key < lowKey || key > highKey) {
+                continue;   // Someone else's (unsorted segment)
+            }
+            int load = packet.getEntryLoadId(e);
+            grant[load] = packet.getEntryGrant(e);
+            grantTick[load] = tickNumber;
+        }
+    }
+
+    // Pick our loads' slots out of a slot acknowledgement
+    private void takeSlots(PowerGrantPacket ack) {
+        if (ack.getSlotEpoch() != slotEpoch) {
+            forgetSlots();
+            slotEpoch = ack.getSlotEpoch();
+        }
+        for (int i = 0; i < ack.getEntryCount(); i++) {
+            int load = ack.getAckLoadId(i);
+            if (ack.getAckAddress(i) == myAddrInt && load < numLoads) {
+                int s = ack.getAckSlot(i);
+                slot[load] = s;
+                minSlot = Math.min(minSlot, s);
+                maxSlot = Math.max(maxSlot, s);
+            }
+        }
+    }
+
+    private void forgetSlots() {
+        Arrays.fill(slot, -1);
+        minSlot = Integer.MAX_VALUE;
+        maxSlot = -1;
+    }
+
+    // True if a load has asked for power but we don't know its slot
+    private boolean missingSlots() {
+        for (int load = 0; load < numLoads; load++) {
+            if (slot[load] < 0 && powerRequested[load] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Pick the grants of our loads whose slots are in this segment out of a slot tick
+    private void applySlotGrants(PowerGrantPacket packet, int tickNumber) {
+        for (int load = 0; load < numLoads; load++) {
+            int s = slot[load];
+            if (s >= 0 && packet.holdsSlot(s)) {
+                grant[load] = packet.getSlotGrant(s);
+                grantTick[load] = tickNumber;
+            }
+        }
+    }
+
+    private void tickDone(long serverTime) {
+        if (QUIET) {
+            return;
+        }
+        int loadsOn = 0;
+        int watts = 0;
+        for (int load = 0; load < numLoads; load++) {
+            if (grant[load] > 0) {
+                loadsOn++;
+                watts += grant[load];
+            }
+        }
+        printTimestamp();
+        System.out.format("%d/%d loads on, %dW granted\n", loadsOn, numLoads, watts);
+    }
+
+    // Let every load decide on its next request and send them all, as few packets as it takes
+    private void generateRequests() {
+        int count = 0;
+        for (int load = 0; load < numLoads; load++) {
+            int power = model.nextRequest(grant[load] > 0, powerRequested[load], rand.nextDouble(), rand.nextDouble());
+            if (power == 0) {
+                continue;
+            }
+            powerRequested[load] = power;
+            if (count == 0) {
+                startRequest(0);
+            }
+            request.putShort((short) load);
+            request.putShort((short) power);
+            if (++count == PowerRequest.MAX_LOADS_PER_PACKET) {
+                sendRequest(count);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            sendRequest(count);
+        }
+    }
+
+    // Ask the server to send the next grant tick in full
+    private void requestKeyframe() {
+        startRequest(PowerRequest.MULTI_LOAD_KEYFRAME);
+        sendRequest(0);
+    }
+
+    private void startRequest(int flags) {
+        request.clear();
+        request.putLong(System.currentTimeMillis());
+        request.putShort((short) (PowerRequest.MULTI_LOAD | flags));
+        request.putShort((short) 0);    // Load count, filled in by sendRequest()
+    }
+
+    private void sendRequest(int count) {
+        request.putShort(10, (short) count);
+        request.flip();
+        try {
+            channel.send(request);
+            requested = true;
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void printTimestamp() {
+        Time time = new Time(System.currentTimeMillis());
+        System.out.print("[" + time.toString() + "] ");
+    }
+}
@@ -1,65 +1,424 @@
 package njit.smartgrid;
+import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
 //
 // Wrapper class for DataPacket
+//
+// A grant tick is split across as many datagrams (segments) as it takes to hold
+// every client. Each segment starts with a header:
+//
+//   long  server timestamp (ms)
+//   int   tick sequence number
+//   short segment index
+//   short segment count
+//   short number of entries in this segment
+//   short flags (FLAG_SORTED, FLAG_DELTA)
+//
+// followed by 8-byte entries:
+//
+//   int   IPv4 address
+//   short load ID (0 for a plain PowerClient)
+//   short power granted (watts)
+//
+// An older client reading the last two shorts as one int still gets the right grant for
+// load 0.
+// A keyframe tick carries every client. A delta tick (FLAG_DELTA) only carries the
+// clients whose grant changed since the previous tick; everyone else keeps their grant.
+// Entries always hold the absolute grant, so a client that missed a tick only needs a
+// keyframe (or its own entry in a later delta) to get back in step.
+// Entries are sorted by address (unsigned), then load ID, across the whole tick, so a
+// client can tell from a segment's first and last entry whether its own entry is in it,
+// and binary search for it.
+//
+// Slot ticks (FLAG_SLOTS, -Dsmartgrid.slots=true on the server) are a dense array of
+// 2-bit grant codes (GRANT_CODES) indexed by slot ID, four slots to a byte, lowest bits
+// first. The header is followed by an int slot epoch, and the entry count is the number
+// of slots in the segment, which starts at slot segment index * SLOTS_PER_SEGMENT. Slot
+// ticks are always full ticks. A client learns its 16-bit slot ID from an acknowledgement
+// (FLAG_SLOTS | FLAG_ACK, see SlotAck) sent to it after its first request, and its slot
+// is only good for ticks with the same epoch. A new epoch (a restarted server) means
+// asking again with a keyframe request.
+//
+// An immediate grant (FLAG_NOW, see ImmediateGrant) is a single segment of ordinary
+// entries sent to one client (or gateway) only, outside the tick sequence: it grants
+// requests that just arrived, and the next tick carries the same grants.
 public class PowerGrantPacket {
-    // Number of power packets remaining is 4 bytes
-    
+
     private final DatagramPacket packet;
-    
-    private static final int SEGMENT_SIZE = 12; // Size of data segment for each client in bytes
-    private static final int TIMESTAMP_SIZE = 8;
-    private static final int PKT_SIZE = 1472;   // Total packet size in bytes (over 1472 will fragment)
+    private final ByteBuffer data;      // Receive side view of the packet buffer
+
+    // Send side: segment buffers are kept and reused from tick to tick
+    private final InetAddress destAddr;
+    private DatagramPacket[] segments = new DatagramPacket[0];
+    private ByteBuffer[] segmentData = new ByteBuffer[0];
+    private int packetCount = 0;
+    // Tick being encoded (begin/append/finish)
+    private int encodeSequence, encodeEntries, encodeFlags, encodeSegment, encoded;
+    private long encodeTime;
+
+    static final int HEADER_SIZE = 20;
+    static final int ENTRY_SIZE = 8;            // Size of data segment for each client (load) in bytes
+    static final int PKT_SIZE = 1472;           // Total packet size in bytes (over 1472 will fragment)
+    static final int ENTRIES_PER_SEGMENT = (PKT_SIZE - HEADER_SIZE) / ENTRY_SIZE;
+    static final int MAX_SEGMENTS = 0xFFFF;     // Segment index/count are unsigned shorts
     static final int CLIENT_PORT = 1235;
-    
+
+    static final int FLAG_SORTED = 1;
+    static final int FLAG_DELTA = 2;
+    static final int FLAG_SLOTS = 4;
+    static final int FLAG_ACK = 8;
+    static final int FLAG_NOW = 16;
+
+    static final int SLOT_HEADER_SIZE = HEADER_SIZE + 4;    // Header and slot epoch
+    static final int SLOTS_PER_SEGMENT = (PKT_SIZE - SLOT_HEADER_SIZE) * 4;
+    static final int MAX_SLOTS = 0x10000;      // Slot IDs are unsigned shorts
+    // Watts granted by each 2-bit grant code
+    private static final int[] GRANT_CODES = { 0, PowerRequest.POWER_LOW, PowerRequest.POWER_HIGH, PowerRequest.POWER_BOTH };
+
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int SEGMENT_INDEX_OFFSET = 12;
+    private static final int SEGMENT_COUNT_OFFSET = 14;
+    private static final int ENTRY_COUNT_OFFSET = 16;
+    private static final int FLAGS_OFFSET = 18;
+    private static final int SLOT_EPOCH_OFFSET = HEADER_SIZE;
+
     // Constructor (receive)
     public PowerGrantPacket() {
         byte[] buf = new byte[PKT_SIZE];
         packet = new DatagramPacket(buf, PKT_SIZE);
+        data = ByteBuffer.wrap(buf);
+        destAddr = null;
     }
-    
-    // Constructor (send)
-    public PowerGrantPacket(InetAddress destAddr, Map<InetAddress, List<PowerRequest>> clientMap) throws UnknownHostException {
-        // Check to make sure we have a valid number of clients
-        // (non-negative and less than the maximum)
-        final int numClients = clientMap.size();
-        if (numClients < 0 || numClients * SEGMENT_SIZE  + TIMESTAMP_SIZE > PKT_SIZE) {
-            throw new IllegalArgumentException(numClients + " is an invalid number of clients");
+
+    // Constructor (send). Call encode() to fill in a tick.
+    public PowerGrantPacket(InetAddress destAddr) {
+        this.destAddr = destAddr;
+        ensureSegments(1);
+        packet = segments[0];
+        data = segmentData[0];
+    }
+
+    // Encode a keyframe with the grants of every client in the table, in address order.
+    // Nothing is allocated unless the table has grown past the segments we already have.
+    void encode(int sequence, ClientTable clients) {
+        encode(sequence, clients, true);
+    }
+
+    // Encode a keyframe, or a delta of the clients whose grant differs from the last one
+    // sent to them. Either way the table remembers what was sent. A delta only visits the
+    // clients the table has marked changed, not the whole table.
+    void encode(int sequence, ClientTable clients, boolean keyframe) {
+        final int numClients = keyframe ? clients.size() : clients.sortChanged();
+        begin(sequence, numClients, keyframe, System.currentTimeMillis());
+        for (int rank = 0; rank < numClients; rank++) {
+            int client = keyframe ? clients.byAddress(rank) : clients.changedByAddress(rank);
+            int powerGranted = clients.granted(client);
+            append(clients.address(client), clients.loadId(client), powerGranted);
+            clients.setSent(client, powerGranted);
         }
-        // Build the packet. Begin with a timestamp from the server, then add clients
-	    ByteBuffer packetData = ByteBuffer.allocate(PKT_SIZE);
-        packetData.putLong(System.currentTimeMillis());
-        for (Map.Entry<InetAddress, List<PowerRequest>> client : clientMap.entrySet()) {
-            // Copy client address into packet data buffer
-            InetAddress clientAddr = client.getKey();
-            packetData.put(clientAddr.getAddress());            
-            // Copy power (in watts) into packet data buffer (or copy zero if no grant issued)
-            if (client.getValue().isEmpty()) {
-                packetData.putInt(0);
-            } else {
-                packetData.putInt(client.getValue().get(0).getPowerGranted());
+        finish();
+    }
+
+    // Encode a tick entry by entry: begin() with the number of entries, append() each of
+    // them in address order, then finish(). encode() does this for a whole table; the
+    // multicast groups (GrantGroups) fill several packets in one pass over it.
+    void begin(int sequence, int numEntries, boolean keyframe, long serverTime) {
+        final int segmentCount = Math.max(1, (numEntries + ENTRIES_PER_SEGMENT - 1) / ENTRIES_PER_SEGMENT);
+        if (segmentCount > MAX_SEGMENTS) {
+            throw new IllegalArgumentException(numEntries + " is an invalid number of clients");
+        }
+        ensureSegments(segmentCount);
+        encodeSequence = sequence;
+        encodeEntries = numEntries;
+        encodeFlags = keyframe ? FLAG_SORTED : FLAG_SORTED | FLAG_DELTA;
+        encodeTime = serverTime;
+        encoded = 0;
+        packetCount = segmentCount;
+        beginSegment(0);
+    }
+
+    void append(int address, int loadId, int grant) {
+        ByteBuffer packetData = segmentData[encodeSegment];
+        if (packetData.position() == HEADER_SIZE + ENTRIES_PER_SEGMENT * ENTRY_SIZE) {    // Segment full
+            segments[encodeSegment].setLength(packetData.position());
+            beginSegment(encodeSegment + 1);
+            packetData = segmentData[encodeSegment];
+        }
+        packetData.putInt(address);
+        packetData.putShort((short) loadId);
+        packetData.putShort((short) grant);
+        encoded++;
+    }
+
+    void finish() {
+        if (encoded != encodeEntries) {
+            throw new IllegalStateException(encoded + " entries appended, " + encodeEntries + " expected");
+        }
+        segments[encodeSegment].setLength(segmentData[encodeSegment].position());
+    }
+
+    // Start a segment with its header
+    private void beginSegment(int segment) {
+        ByteBuffer packetData = segmentData[segment];
+        packetData.clear();
+        packetData.putLong(encodeTime);
+        packetData.putInt(encodeSequence);
+        packetData.putShort((short) segment);
+        packetData.putShort((short) packetCount);
+        packetData.putShort((short) Math.min(ENTRIES_PER_SEGMENT, encodeEntries - encoded));
+        packetData.putShort((short) encodeFlags);
+        encodeSegment = segment;
+    }
+
+    // Encode a slot tick with the grant of every client, the client number being its slot
+    void encodeSlots(int sequence, ClientTable clients, int epoch) {
+        final int numSlots = Math.min(clients.size(), MAX_SLOTS);
+        final int segmentCount = Math.max(1, (numSlots + SLOTS_PER_SEGMENT - 1) / SLOTS_PER_SEGMENT);
+        ensureSegments(segmentCount);
+        final long serverTime = System.currentTimeMillis();
+        int slot = 0;
+        for (int segment = 0; segment < segmentCount; segment++) {
+            int slotCount = Math.min(SLOTS_PER_SEGMENT, numSlots - slot);
+            ByteBuffer packetData = segmentData[segment];
+            packetData.clear();
+            packetData.putLong(serverTime);
+            packetData.putInt(sequence);
+            packetData.putShort((short) segment);
+            packetData.putShort((short) segmentCount);
+            packetData.putShort((short) slotCount);
+            packetData.putShort((short) FLAG_SLOTS);
+            packetData.putInt(epoch);
+            int end = slot + slotCount;
+            while (slot < end) {
+                int codes = 0;
+                for (int shift = 0; shift < 8 && slot < end; shift += 2, slot++) {
+                    int powerGranted = clients.granted(slot);
+                    codes |= grantCode(powerGranted) << shift;
+                    clients.setSent(slot, powerGranted);
+                }
+                packetData.put((byte) codes);
+            }
+            segments[segment].setLength(packetData.position());
+        }
+        packetCount = segmentCount;
+    }
+
+    // 2-bit code for a grant of watts, or -1 if it has none. The server refuses requests
+    // for anything else when it sends slot ticks, so every grant has a code.
+    static int grantCode(int watts) {
+        for (int code = 0; code < GRANT_CODES.length; code++) {
+            if (GRANT_CODES[code] == watts) {
+                return code;
             }
         }
-        // Write four boundary bytes so we know where the real data stops
-	    // TODO: need to check for size limit here
-        for (int i = 0; i < 4; i++) {
-            packetData.put((byte) 0xFF);
+        return -1;
+    }
+
+    private void ensureSegments(int count) {
+        if (count <= segments.length) {
+            return;
+        }
+        int oldLength = segments.length;
+        segments = Arrays.copyOf(segments, Math.max(count, oldLength * 2));
+        segmentData = Arrays.copyOf(segmentData, segments.length);
+        for (int i = oldLength; i < segments.length; i++) {
+            byte[] buf = new byte[PKT_SIZE];
+            segmentData[i] = ByteBuffer.wrap(buf);
+            segments[i] = new DatagramPacket(buf, PKT_SIZE, destAddr, CLIENT_PORT);
         }
-        // Fill the rest of the packet with alternating 0's and 1's
-//        while (packetData.hasRemaining()) {
-//            packetData.put((byte) 0x55);   // ASCII 'U', also binary '01010101'
-//        }
-        packet = new DatagramPacket(packetData.array(), PKT_SIZE, destAddr, CLIENT_PORT);
     }
-    
+
     public DatagramPacket getPacket() {
         return packet;
     }
-    
+
+    // Number of segments filled in by the last encode() (send side)
+    public int getPacketCount() {
+        return packetCount;
+    }
+
+    public DatagramPacket getPacket(int segment) {
+        return segments[segment];
+    }
+
     public byte[] getData() {
         return packet.getData();
     }
 
+    // Header and entry accessors (receive side)
+
+    // Get ready to receive the next datagram into the same buffer
+    public void reset() {
+        packet.setLength(PKT_SIZE);
+    }
+
+    // Receive the next datagram from a channel into this packet's buffer. Returns the
+    // sender, or null if nothing was waiting on a non-blocking channel.
+    public SocketAddress receive(DatagramChannel channel) throws IOException {
+        data.clear();
+        SocketAddress source = channel.receive(data);
+        packet.setLength(data.position());
+        return source;
+    }
+
+    // True if the received datagram is long enough to hold the header and the entries it claims
+    public boolean isValid() {
+        int length = packet.getLength();
+        if (length < HEADER_SIZE || getSegmentIndex() >= getSegmentCount()) {
+            return false;
+        }
+        if (!hasSlots()) {
+            return length >= HEADER_SIZE + getEntryCount() * ENTRY_SIZE;
+        }
+        return length >= SLOT_HEADER_SIZE + (isAck() ? getEntryCount() * ENTRY_SIZE : (getEntryCount() + 3) / 4);
+    }
+
+    public long getServerTime() {
+        return data.getLong(0);
+    }
+
+    public int getSequence() {
+        return data.getInt(SEQUENCE_OFFSET);
+    }
+
+    public int getSegmentIndex() {
+        return data.getShort(SEGMENT_INDEX_OFFSET) & 0xFFFF;
+    }
+
+    public int getSegmentCount() {
+        return data.getShort(SEGMENT_COUNT_OFFSET) & 0xFFFF;
+    }
+
+    public int getEntryCount() {
+        return data.getShort(ENTRY_COUNT_OFFSET) & 0xFFFF;
+    }
+
+    public int getFlags() {
+        return data.getShort(FLAGS_OFFSET) & 0xFFFF;
+    }
+
+    public boolean isDelta() {
+        return (getFlags() & FLAG_DELTA) != 0;
+    }
+
+    public boolean hasSlots() {
+        return (getFlags() & FLAG_SLOTS) != 0;
+    }
+
+    public boolean isAck() {
+        return (getFlags() & FLAG_ACK) != 0;
+    }
+
+    public boolean isImmediate() {
+        return (getFlags() & FLAG_NOW) != 0;
+    }
+
+    // Slot ticks and acknowledgements: the epoch slot IDs are good for
+    public int getSlotEpoch() {
+        return data.getInt(SLOT_EPOCH_OFFSET);
+    }
+
+    // Slot ticks: true if this segment carries slot's grant
+    public boolean holdsSlot(int slot) {
+        int first = getSegmentIndex() * SLOTS_PER_SEGMENT;
+        return slot >= first && slot - first < getEntryCount();
+    }
+
+    // Slot ticks: grant (watts) of a slot this segment holds
+    public int getSlotGrant(int slot) {
+        int offset = slot - getSegmentIndex() * SLOTS_PER_SEGMENT;
+        return GRANT_CODES[(data.get(SLOT_HEADER_SIZE + (offset >> 2)) >> ((offset & 3) * 2)) & 3];
+    }
+
+    // Acknowledgements: the i-th client's address, load ID and slot ID
+    public int getAckAddress(int i) {
+        return data.getInt(SLOT_HEADER_SIZE + i * ENTRY_SIZE);
+    }
+
+    public int getAckLoadId(int i) {
+        return data.getShort(SLOT_HEADER_SIZE + i * ENTRY_SIZE + 4) & 0xFFFF;
+    }
+
+    public int getAckSlot(int i) {
+        return data.getShort(SLOT_HEADER_SIZE + i * ENTRY_SIZE + 6) & 0xFFFF;
+    }
+
+    // IPv4 address of the i-th entry in this segment, as an int
+    public int getEntryAddress(int i) {
+        return data.getInt(HEADER_SIZE + i * ENTRY_SIZE);
+    }
+
+    public int getEntryLoadId(int i) {
+        return data.getShort(HEADER_SIZE + i * ENTRY_SIZE + 4) & 0xFFFF;
+    }
+
+    public int getEntryGrant(int i) {
+        return data.getShort(HEADER_SIZE + i * ENTRY_SIZE + 6) & 0xFFFF;
+    }
+
+    // ClientTable.key of the i-th entry, which orders entries the way they are sorted
+    long getEntryKey(int i) {
+        return data.getLong(HEADER_SIZE + i * ENTRY_SIZE) >>> 16;
+    }
+
+    // Index of addr's entry (load 0) in this segment, or -1 if it isn't here
+    public int findEntry(int addr) {
+        return findEntry(ClientTable.key(addr, 0));
+    }
+
+    // Index of the entry with this key in this segment, or -1 if it isn't here. Sorted
+    // segments are binary searched; anything else is scanned.
+    int findEntry(long key) {
+        int i = lowerBound(key);
+        return i >= 0 && i < getEntryCount() && getEntryKey(i) == key ? i : -1;
+    }
+
+    // Index of the first entry with a key of at least key (the entry count if there is
+    // none). Unsorted segments are scanned for the key itself (-1 if it isn't there).
+    int lowerBound(long key) {
+        int entryCount = getEntryCount();
+        if ((getFlags() & FLAG_SORTED) == 0) {
+            for (int i = 0; i < entryCount; i++) {
+                if (getEntryKey(i) == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int low = 0;
+        int high = entryCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getEntryKey(mid) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // For sorted segments: true if addr can't appear in any segment of this tick other
+    // than this one, i.e. the segments before end below it and the ones after start above it
+    public boolean coversAddress(int addr) {
+        long key = ClientTable.key(addr, 0);
+        return startsBelow(key) && endsAbove(key);
+    }
+
+    // For sorted segments: true if no earlier segment of the tick can hold key or anything above it
+    boolean startsBelow(long key) {
+        return (getFlags() & FLAG_SORTED) != 0
+                && (getSegmentIndex() == 0 || (getEntryCount() > 0 && getEntryKey(0) <= key));
+    }
+
+    // For sorted segments: true if no later segment of the tick can hold key or anything below it
+    boolean endsAbove(long key) {
+        return (getFlags() & FLAG_SORTED) != 0
+                && (getSegmentIndex() == getSegmentCount() - 1
+                    || (getEntryCount() > 0 && getEntryKey(getEntryCount() - 1) >= key));
+    }
+
 }
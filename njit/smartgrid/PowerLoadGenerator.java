@@ -0,0 +1,296 @@
+package njit.smartgrid;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+// Load generator: simulates many PowerClients in one process so the server can be load
+// tested without one JVM (and one Pi) per client.
+//
+// Every simulated client runs the same Markov ON/OFF model as PowerClient and sends its
+// requests from its own loopback address (counting up from the first address, skipping
+// .0 and .255), so the server sees it as a separate client. Everything runs on one event
+// loop thread: each new grant tick updates the simulated clients' grants and then lets
+// every client decide on its next request. Grants are read from the server's broadcast,
+// which should be sent to a loopback address for this (e.g. broadcast address 127.0.0.1).
+//
+// Reports request rate, grant rate, drop rate and request-to-grant latency percentiles
+// once a second and at the end of the run.
+//
+// Each client needs its own socket, so raise the open file limit (ulimit -n) to a bit
+// more than the number of clients.
+public class PowerLoadGenerator {
+
+    private static final long REPORT_INTERVAL_NANOS = 1_000_000_000L;
+    private static final int UNANSWERED_TICKS = 2;  // Ticks to wait for a grant before counting a request as dropped
+
+    private final InetSocketAddress serverAddr;
+    private final int firstAddr;
+    private final int baseAddr;     // The /24 of firstAddr
+    private final int firstHost;    // Host number of firstAddr within our numbering
+    private final int numClients;
+    private final MarkovModel model;
+    private final SplittableRandom rand = new SplittableRandom();
+
+    // Per simulated client
+    private final DatagramChannel[] channels;
+    private final boolean[] on;
+    private final int[] powerRequested;
+    private final long[] waitingSince;      // When the client asked for power while off, 0 if not waiting
+    private final int[] waitingTicks;
+    private final int[] slot;               // Slot ID, for slot ticks (-1 until acknowledged)
+    private int slotEpoch;
+
+    private final ByteBuffer requestBuffer = ByteBuffer.allocateDirect(PowerServer.REQUEST_PACKET_LENGTH);
+    private final LatencyHistogram interval = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private long requests, grants, drops;
+    private long totalRequests, totalGrants, totalDrops, totalTicks;
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 5) {
+            System.out.println("Usage: java njit.smartgrid.PowerLoadGenerator <server address> <clients> <rho> <cycle length> <duration (s)> [first client address]");
+            System.exit(0);
+        }
+        final InetAddress serverAddr = InetAddress.getByName(args[0]);
+        final int numClients = Integer.parseInt(args[1]);
+        final double rho = Double.parseDouble(args[2]);
+        final int cycleLength = Integer.parseInt(args[3]);
+        final long duration = Long.parseLong(args[4]);
+        final InetAddress firstAddr = InetAddress.getByName(args.length > 5 ? args[5] : "127.1.0.1");
+
+        PowerLoadGenerator generator = new PowerLoadGenerator(serverAddr, Ipv4.toInt(firstAddr), numClients,
+                new MarkovModel(rho, cycleLength));
+        generator.run(duration * 1_000_000_000L);
+    }
+
+    PowerLoadGenerator(InetAddress serverAddr, int firstAddr, int numClients, MarkovModel model) throws IOException {
+        this.serverAddr = new InetSocketAddress(serverAddr, PowerServer.SERVER_PORT);
+        int low = firstAddr & 0xFF;
+        if (low == 0 || low == 0xFF) {
+            throw new IllegalArgumentException("First client address can't end in .0 or .255");
+        }
+        this.firstAddr = firstAddr;
+        this.baseAddr = firstAddr & ~0xFF;
+        this.firstHost = low - 1;
+        this.numClients = numClients;
+        this.model = model;
+        channels = new DatagramChannel[numClients];
+        on = new boolean[numClients];
+        powerRequested = new int[numClients];
+        waitingSince = new long[numClients];
+        waitingTicks = new int[numClients];
+        slot = new int[numClients];
+        Arrays.fill(slot, -1);
+        for (int i = 0; i < numClients; i++) {
+            channels[i] = DatagramChannel.open(StandardProtocolFamily.INET);
+            channels[i].bind(new InetSocketAddress(Ipv4.toInetAddress(addressOf(i)), 0));
+            channels[i].configureBlocking(false);
+        }
+    }
+
+    void run(long durationNanos) throws IOException {
+        System.out.format("Simulating %d clients from %s, rho=%f, cycle=%d%n", numClients,
+                Ipv4.toInetAddress(firstAddr).getHostAddress(), model.rho, model.cycleLength);
+        PowerGrantPacket packet = new PowerGrantPacket();
+        try (Selector selector = Selector.open();
+             DatagramChannel grantChannel = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            grantChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            grantChannel.setOption(StandardSocketOptions.SO_RCVBUF, 8 << 20);
+            grantChannel.bind(new InetSocketAddress(PowerGrantPacket.CLIENT_PORT));
+            joinGrantGroups(grantChannel);
+            grantChannel.configureBlocking(false);
+            grantChannel.register(selector, SelectionKey.OP_READ);
+
+            final long start = System.nanoTime();
+            long nextReport = start + REPORT_INTERVAL_NANOS;
+            long lastReport = start;
+            boolean tickStarted = false;
+            int currentSequence = 0;
+            generateRequests(start);     // Get things going before the first grant tick
+            while (true) {
+                long now = System.nanoTime();
+                if (now - start >= durationNanos) {
+                    break;
+                }
+                selector.select(Math.max(1, (nextReport - now) / 1_000_000));
+                selector.selectedKeys().clear();
+                while (packet.receive(grantChannel) != null) {
+                    if (!packet.isValid()) {
+                        continue;
+                    }
+                    if (packet.isAck()) {
+                        takeSlots(packet);
+                        continue;
+                    }
+                    if (packet.isImmediate()) {
+                        applyGrants(packet, System.nanoTime());     // Granted on arrival
+                        continue;
+                    }
+                    now = System.nanoTime();
+                    // A new tick: everyone decides on their next request, as PowerClient does
+                    // once it is done with a tick
+                    if (tickStarted && packet.getSequence() != currentSequence) {
+                        generateRequests(now);
+                        totalTicks++;
+                    }
+                    tickStarted = true;
+                    currentSequence = packet.getSequence();
+                    applyGrants(packet, now);
+                }
+                now = System.nanoTime();
+                if (now >= nextReport) {
+                    report(now - lastReport);
+                    lastReport = now;
+                    nextReport += REPORT_INTERVAL_NANOS;
+                }
+            }
+        } finally {
+            for (DatagramChannel channel : channels) {
+                channel.close();
+            }
+        }
+        total.add(interval);
+        totalRequests += requests;
+        totalGrants += grants;
+        totalDrops += drops;
+        System.out.format("Total: %d ticks, %d requests, %d grants, %.2f%% dropped%n", totalTicks, totalRequests,
+                totalGrants, totalRequests == 0 ? 0.0 : 100.0 * totalDrops / totalRequests);
+        printLatency("Total", total);
+    }
+
+    // With multicast grants, join every group one of our simulated clients is in
+    private void joinGrantGroups(DatagramChannel grantChannel) throws IOException {
+        if (!GrantGroups.enabled()) {
+            return;
+        }
+        BitSet joined = new BitSet(GrantGroups.COUNT);
+        InetAddress localAddr = Ipv4.toInetAddress(firstAddr);
+        for (int i = 0; i < numClients && joined.cardinality() < GrantGroups.COUNT; i++) {
+            int group = GrantGroups.groupOf(addressOf(i));
+            if (!joined.get(group)) {
+                GrantGroups.join(grantChannel, localAddr, addressOf(i));
+                joined.set(group);
+            }
+        }
+    }
+
+    // Pick our simulated clients' entries out of one grant segment
+    private void applyGrants(PowerGrantPacket packet, long now) {
+        if (packet.hasSlots()) {
+            applySlotGrants(packet, now);
+            return;
+        }
+        int entryCount = packet.getEntryCount();
+        for (int e = 0; e < entryCount; e++) {
+            int i = clientOf(packet.getEntryAddress(e));
+            if (i >= 0) {
+                applyGrant(i, packet.getEntryGrant(e), now);
+            }
+        }
+    }
+
+    private void applySlotGrants(PowerGrantPacket packet, long now) {
+        if (packet.getSlotEpoch() != slotEpoch) {
+            return;     // Slots of a server that has since restarted
+        }
+        for (int i = 0; i < numClients; i++) {
+            if (slot[i] >= 0 && packet.holdsSlot(slot[i])) {
+                applyGrant(i, packet.getSlotGrant(slot[i]), now);
+            }
+        }
+    }
+
+    private void applyGrant(int i, int powerGranted, long now) {
+        if (powerGranted > 0 && waitingSince[i] != 0) {
+            interval.record(now - waitingSince[i]);
+            grants++;
+            waitingSince[i] = 0;
+        }
+        on[i] = powerGranted > 0;
+    }
+
+    // Pick our simulated clients' slots out of a slot acknowledgement
+    private void takeSlots(PowerGrantPacket ack) {
+        if (ack.getSlotEpoch() != slotEpoch) {
+            Arrays.fill(slot, -1);
+            slotEpoch = ack.getSlotEpoch();
+        }
+        for (int e = 0; e < ack.getEntryCount(); e++) {
+            int i = clientOf(ack.getAckAddress(e));
+            if (i >= 0 && ack.getAckLoadId(e) == 0) {
+                slot[i] = ack.getAckSlot(e);
+            }
+        }
+    }
+
+    // Address of simulated client i: 254 usable addresses (.1 to .254) per /24
+    private int addressOf(int i) {
+        int host = firstHost + i;
+        return baseAddr + (host / 254) * 256 + host % 254 + 1;
+    }
+
+    // Simulated client with address addr, or -1 if it isn't one of ours
+    private int clientOf(int addr) {
+        int offset = addr - baseAddr;
+        int low = offset & 0xFF;
+        if (offset < 0 || low == 0 || low == 0xFF) {
+            return -1;
+        }
+        int i = (offset >>> 8) * 254 + low - 1 - firstHost;
+        return i >= 0 && i < numClients ? i : -1;
+    }
+
+    private void generateRequests(long now) throws IOException {
+        for (int i = 0; i < numClients; i++) {
+            if (waitingSince[i] != 0 && ++waitingTicks[i] > UNANSWERED_TICKS) {
+                drops++;            // Denied, or the request or grant got lost
+                waitingSince[i] = 0;
+            }
+            int power = model.nextRequest(on[i], powerRequested[i], rand.nextDouble(), rand.nextDouble());
+            if (power == 0) {
+                continue;
+            }
+            powerRequested[i] = power;
+            requestBuffer.clear();
+            requestBuffer.putLong(System.currentTimeMillis());
+            requestBuffer.putInt(power);
+            requestBuffer.flip();
+            requests++;
+            if (channels[i].send(requestBuffer, serverAddr) == 0) {
+                drops++;            // Socket buffer full
+                continue;
+            }
+            if (!on[i] && waitingSince[i] == 0) {
+                waitingSince[i] = now;
+                waitingTicks[i] = 0;
+            }
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.format("%.0f req/s, %.0f grants/s, %.2f%% dropped, ", requests / seconds, grants / seconds,
+                requests == 0 ? 0.0 : 100.0 * drops / requests);
+        printLatency("latency", interval);
+        total.add(interval);
+        interval.reset();
+        totalRequests += requests;
+        totalGrants += grants;
+        totalDrops += drops;
+        requests = grants = drops = 0;
+    }
+
+    private static void printLatency(String label, LatencyHistogram histogram) {
+        System.out.format("%s p50/p90/p99/max: %.1f/%.1f/%.1f/%.1f ms%n", label, histogram.percentile(50) / 1e6,
+                histogram.percentile(90) / 1e6, histogram.percentile(99) / 1e6, histogram.max() / 1e6);
+    }
+}
@@ -3,23 +3,62 @@ package njit.smartgrid;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class PowerLog {
 
-    private static final String DELIMITER = ",";
-    private static final boolean HUMAN_READABLE = true;
+    // -Dsmartgrid.log.format=binary appends fixed-width records to memory-mapped segment
+    // files (see BinaryLogWriter) instead of writing CSV text
+    private static final boolean BINARY = "binary".equals(System.getProperty("smartgrid.log.format"));
+    private static final long SEGMENT_BYTES = Long.getLong("smartgrid.log.segmentBytes", 64L << 20);
+
+    // -Dsmartgrid.log.async=true hands records to a background writer through a ring buffer
+    // instead of writing and flushing on the caller's thread
+    private static final boolean ASYNC = Boolean.getBoolean("smartgrid.log.async");
+    private static final int ASYNC_CAPACITY = Integer.getInteger("smartgrid.log.capacity", 1 << 16);   // Records
+    private static final int FLUSH_RECORDS = Integer.getInteger("smartgrid.log.flushRecords", 4096);
+    private static final int FLUSH_MILLIS = Integer.getInteger("smartgrid.log.flushMillis", 100);
+    // What to do when the ring is full: "drop" the record (default) or "block" the caller until there is room
+    private static final boolean BLOCK_WHEN_FULL = "block".equals(System.getProperty("smartgrid.log.whenFull"));
+
+    static final int TYPE_MESSAGE = 1;
+    static final int TYPE_REQUEST = 2;
+    static final int TYPE_GRANT = 3;
+
+    // Fields of a ring record
+    private static final int FIELD_TYPE = 0;
+    private static final int FIELD_LOCAL_TIME = 1;
+    private static final int FIELD_PEER_TIME = 2;
+    private static final int FIELD_ADDRESS = 3;
+    private static final int FIELD_WATTS = 4;
+    private static final int FIELD_LOAD_ID = 5;
+    private static final int RECORD_WIDTH = 6;
 
     private boolean isServer = false;
+    private final boolean discard;      // Log nothing (see discarding())
     private FileWriter fw = null;
     private BufferedWriter bw = null;
+    private BinaryLogWriter binaryLog = null;
+
+    // Formatting buffers, used by whichever thread writes to the file
+    private final CsvLogFormat csv;
+    private final StringBuilder line = new StringBuilder(128);
+    private char[] lineChars = new char[128];
+
+    // Async mode only
+    private RecordRing ring = null;
+    private Thread writer = null;
+    private volatile boolean running = true;
+    private final AtomicLong droppedRecords = new AtomicLong();
 
     // Constructor (server log)
     public PowerLog(boolean isServer) {
         this.isServer = isServer;
+        this.discard = false;
+        this.csv = new CsvLogFormat(isServer);
         Date date = new Date();
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss");
         String fileName;
@@ -29,101 +68,193 @@ public class PowerLog {
         else {
             fileName = "client_";
         }
-        fileName += dateFormat.format(date) + ".log";
+        fileName += dateFormat.format(date);
         try {
-            fw = new FileWriter(fileName);
-            bw = new BufferedWriter(fw);
+            if (BINARY) {
+                binaryLog = new BinaryLogWriter(fileName, isServer, SEGMENT_BYTES);
+            } else {
+                fw = new FileWriter(fileName + ".log");
+                bw = new BufferedWriter(fw);
+            }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
 
+        if (ASYNC) {
+            ring = new RecordRing(ASYNC_CAPACITY, RECORD_WIDTH);
+            writer = new Thread("PowerLog writer") {
+                public void run() {
+                    writeLoop();
+                }
+            };
+            writer.setDaemon(true);
+            writer.start();
+        }
+
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
-                if (fw != null) {
+                if (writer != null) {
+                    // Let the writer drain whatever is left in the ring
+                    running = false;
+                    LockSupport.unpark(writer);
                     try {
+                        writer.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                try {
+                    if (fw != null) {
+                        bw.flush();
                         fw.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
                     }
+                    if (binaryLog != null) {
+                        synchronized (PowerLog.this) {
+                            binaryLog.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             }
         });
 
     }
 
+    // A log that opens no file and throws every record away, for running the allocator
+    // offline (PowerSimulator)
+    static PowerLog discarding() {
+        return new PowerLog();
+    }
+
+    private PowerLog() {
+        this.discard = true;
+        this.csv = null;
+    }
+
     public void logString(String msg) {
-        try {
-            bw.write(msg, 0, msg.length());
-            bw.newLine();
-            bw.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        append(TYPE_MESSAGE, System.currentTimeMillis(), 0, 0, 0, 0, msg);
+    }
+
+    public void logRequest(int clientAddress, int powerRequested, long clientTimestamp) {
+        logRequest(clientAddress, 0, powerRequested, clientTimestamp);
+    }
+
+    // A request from load loadId at clientAddress (server log; a single-load client is load 0)
+    public void logRequest(int clientAddress, int loadId, int powerRequested, long clientTimestamp) {
+        append(TYPE_REQUEST, System.currentTimeMillis(), clientTimestamp, clientAddress, loadId, powerRequested, null);
     }
 
-    public void logRequest(InetAddress clientAddress, int powerRequested, long clientTimestamp) {
-        String logString = "REQ" + DELIMITER;
-        if (HUMAN_READABLE) {
-            String time = new Timestamp(System.currentTimeMillis()).toString();
-            while (time.length() < 23) {
-                time += "0";
+    public void logGrant(int clientAddress, int powerGranted, long serverTimestamp) {
+        logGrant(clientAddress, 0, powerGranted, serverTimestamp);
+    }
+
+    public void logGrant(int clientAddress, int loadId, int powerGranted, long serverTimestamp) {
+        append(TYPE_GRANT, System.currentTimeMillis(), serverTimestamp, clientAddress, loadId, powerGranted, null);
+    }
+
+    // Records lost because the ring was full (async mode)
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    // Records waiting in the ring for the writer (async mode)
+    public int getQueuedRecords() {
+        return ring == null ? 0 : ring.size();
+    }
+
+    private void append(int type, long localTime, long peerTime, int address, int loadId, int watts, String msg) {
+        if (discard) {
+            return;
+        }
+        if (ring == null) {
+            synchronized (this) {
+                writeRecord(type, localTime, peerTime, address, loadId, watts, msg);
+                flush();
             }
-            logString += time + DELIMITER;   // Local timestamp (server or client)
-        } else {
-            logString += System.currentTimeMillis() + DELIMITER;
+            return;
         }
-        if (isServer) {
-            if (HUMAN_READABLE) {
-                String clientRequestTime = new Timestamp(clientTimestamp).toString();
-                while (clientRequestTime.length() < 23) {
-                    clientRequestTime += "0";
+        long sequence = ring.tryClaim();
+        while (sequence < 0) {
+            if (!BLOCK_WHEN_FULL) {
+                droppedRecords.incrementAndGet();
+                return;
+            }
+            LockSupport.parkNanos(10_000);
+            sequence = ring.tryClaim();
+        }
+        ring.put(sequence, FIELD_TYPE, type);
+        ring.put(sequence, FIELD_LOCAL_TIME, localTime);
+        ring.put(sequence, FIELD_PEER_TIME, peerTime);
+        ring.put(sequence, FIELD_ADDRESS, address);
+        ring.put(sequence, FIELD_WATTS, watts);
+        ring.put(sequence, FIELD_LOAD_ID, loadId);
+        ring.putRef(sequence, msg);
+        ring.publish(sequence);
+    }
+
+    // Background writer: formats records in batches and flushes every FLUSH_RECORDS
+    // records or FLUSH_MILLIS milliseconds, whichever comes first
+    private void writeLoop() {
+        final RecordRing.Handler handler = (r, sequence) -> writeRecord((int) r.get(sequence, FIELD_TYPE),
+                r.get(sequence, FIELD_LOCAL_TIME), r.get(sequence, FIELD_PEER_TIME),
+                (int) r.get(sequence, FIELD_ADDRESS), (int) r.get(sequence, FIELD_LOAD_ID), (int) r.get(sequence, FIELD_WATTS),
+                (String) r.getRef(sequence));
+        final long flushNanos = FLUSH_MILLIS * 1_000_000L;
+        long lastFlush = System.nanoTime();
+        int unflushed = 0;
+        long droppedReported = 0;
+        while (true) {
+            boolean stopping = !running;
+            int count = ring.drain(handler, FLUSH_RECORDS);
+            unflushed += count;
+            long dropped = droppedRecords.get();
+            if (dropped != droppedReported) {
+                writeRecord(TYPE_MESSAGE, System.currentTimeMillis(), 0, 0, 0, 0, "Dropped " + (dropped - droppedReported) + " log records (buffer full)");
+                droppedReported = dropped;
+            }
+            long now = System.nanoTime();
+            if (unflushed > 0 && (unflushed >= FLUSH_RECORDS || now - lastFlush >= flushNanos || count == 0)) {
+                flush();
+                unflushed = 0;
+                lastFlush = now;
+            }
+            if (count == 0) {
+                if (stopping) {
+                    return;     // Shutting down and the ring is empty
                 }
-                logString += clientRequestTime + DELIMITER;  // Client timestamp (if server)
-            } else {
-                logString += clientTimestamp + DELIMITER;
+                LockSupport.parkNanos(Math.min(flushNanos, 1_000_000L));
             }
-            logString += clientAddress.getHostAddress() + DELIMITER; // Client IP address
         }
-        logString += powerRequested;           // Power requested
+    }
 
+    // Write one record to the binary segment, or format it as a CSV line and hand it to the buffered writer
+    private void writeRecord(int type, long localTime, long peerTime, int address, int loadId, int watts, String msg) {
         try {
-            bw.write(logString, 0, logString.length());
+            if (binaryLog != null) {
+                binaryLog.append(type, localTime, peerTime, address, loadId, watts, msg);
+                return;
+            }
+            csv.format(line, type, localTime, peerTime, address, loadId, watts, msg);
+            int length = line.length();
+            if (lineChars.length < length) {
+                lineChars = new char[Math.max(length, lineChars.length * 2)];
+            }
+            line.getChars(0, length, lineChars, 0);
+            bw.write(lineChars, 0, length);
             bw.newLine();
-            bw.flush();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public void logGrant(InetAddress clientAddress, int powerGranted, long serverTimestamp) {
-        String logString = "GRA" + DELIMITER;
-        if (HUMAN_READABLE) {
-            String time = new Timestamp(System.currentTimeMillis()).toString();
-            while (time.length() < 23) {
-                time += "0";
-            }
-            logString += time + DELIMITER;   // Local timestamp (server or client)
-        } else {
-            logString += System.currentTimeMillis() + DELIMITER;
-        }
-        if (!isServer) {
-            if (HUMAN_READABLE) {
-                String serverGrantTime = new Timestamp(serverTimestamp).toString();
-                while (serverGrantTime.length() < 23) {
-                    serverGrantTime += "0";
-                }
-                logString += serverGrantTime + DELIMITER;   // Server timestamp (if client)
-            } else {
-                logString += serverTimestamp + DELIMITER;
-            }
-        } else {
-            logString += clientAddress.getHostAddress() + DELIMITER;
+    // Binary segments are written through the page cache, so there is nothing to flush
+    private void flush() {
+        if (bw == null) {
+            return;
         }
-        logString += powerGranted;
         try {
-            bw.write(logString, 0, logString.length());
-            bw.newLine();
             bw.flush();
         } catch (IOException e) {
             e.printStackTrace();
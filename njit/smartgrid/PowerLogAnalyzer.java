@@ -0,0 +1,731 @@
+package njit.smartgrid;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Post-mortem analysis of CSV PowerLogs (see CsvLogFormat): server_*.log files and,
+// optionally, the client_*.log files of the same run.
+//
+// Files are memory-mapped and cut into chunks at line boundaries, and the chunks are
+// parsed in parallel straight from the mapped bytes, without making a String of each
+// line. Each thread keeps its own per-client and per-interval totals, merged at the end.
+//
+// A request is answered by the next grant record for the same client (address and load
+// ID, so the loads behind a gateway are told apart): its latency is the time in between,
+// and it was denied if that grant is 0W. The server log gives the latency from request
+// arrival to the grant tick; a client's own log gives the latency it saw end to end, and
+// the two are joined by client address (from the "Client:" line at the top of the client
+// log) as load 0. Utilization is the granted watts of each interval per
+// grant period against the capacity, and fairness is Jain's index over the fraction of
+// each client's answered requests that were granted in the interval.
+//
+// Requests still waiting for a grant at the end of a chunk are not counted (a grant
+// period or so per chunk).
+//
+// Usage: java njit.smartgrid.PowerLogAnalyzer [options] <log files...>
+public class PowerLogAnalyzer {
+
+    private static final long MIN_CHUNK_BYTES = 16 << 20;
+    private static final long MAX_CHUNK_BYTES = 1 << 30;
+    private static final int MAX_LINE_LENGTH = 64 << 10;   // Longer lines crossing the end of a chunk are skipped
+
+    private final int threads;
+    private final long intervalMillis;
+    private int capacityWatts;
+    private int grantPeriodMillis;
+    private final int topClients;
+
+    // Merged results
+    private final Totals totals = new Totals();
+    private final Map<Long, Map<Long, long[]>> edgeBuckets = new HashMap<>();   // Bucket -> client key -> {answered, granted}
+    private long baseTime = Long.MIN_VALUE;
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long interval = 60;
+        int capacity = 0;
+        int period = 0;
+        int top = 20;
+        int first = 0;
+        try {
+            for (; first + 1 < args.length && args[first].startsWith("-"); first += 2) {
+                int value = Integer.parseInt(args[first + 1]);
+                switch (args[first]) {
+                    case "-t": threads = value; break;
+                    case "-i": interval = value; break;
+                    case "-c": capacity = value; break;
+                    case "-p": period = value; break;
+                    case "-n": top = value; break;
+                    default: throw new IllegalArgumentException(args[first]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            first = args.length;
+        }
+        if (first >= args.length) {
+            System.out.println("Usage: java njit.smartgrid.PowerLogAnalyzer [options] <server and client log files...>");
+            System.out.println("Options: -t <threads> (default: one per core)");
+            System.out.println("         -i <interval (s)> (timeline resolution, default 60)");
+            System.out.println("         -c <capacity (W)>, -p <grant period (ms)> (default: from the server log)");
+            System.out.println("         -n <clients> (clients with the most denials to list, default 20)");
+            System.exit(0);
+        }
+        PowerLogAnalyzer analyzer = new PowerLogAnalyzer(threads, interval * 1000, capacity, period, top);
+        List<Path> files = new ArrayList<>();
+        for (int i = first; i < args.length; i++) {
+            files.add(Paths.get(args[i]));
+        }
+        analyzer.analyze(files);
+    }
+
+    PowerLogAnalyzer(int threads, long intervalMillis, int capacityWatts, int grantPeriodMillis, int topClients) {
+        this.threads = Math.max(1, threads);
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.capacityWatts = capacityWatts;
+        this.grantPeriodMillis = grantPeriodMillis;
+        this.topClients = topClients;
+    }
+
+    void analyze(List<Path> files) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long bytes = 0;
+        List<Chunk> chunks = new ArrayList<>();
+        for (Path file : files) {
+            long size;
+            boolean isServer;
+            int clientAddr = 0;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                size = channel.size();
+                isServer = !file.getFileName().toString().startsWith("client_");
+                clientAddr = readHeader(channel, isServer);
+            }
+            bytes += size;
+            long chunkBytes = Math.min(MAX_CHUNK_BYTES, Math.max(MIN_CHUNK_BYTES, size / (threads * 4L) + 1));
+            for (long offset = 0; offset < size; offset += chunkBytes) {
+                chunks.add(new Chunk(file, offset, Math.min(size, offset + chunkBytes), isServer, clientAddr));
+            }
+        }
+        if (baseTime == Long.MIN_VALUE) {
+            baseTime = 0;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Totals>> results = new ArrayList<>();
+            for (Chunk chunk : chunks) {
+                results.add(pool.submit(chunk::parse));
+            }
+            for (Future<Totals> result : results) {
+                merge(result.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Parsing failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.format("%d files, %.1f MB in %.2fs (%.0f MB/s, %d threads, %d chunks)%n", files.size(), bytes / 1e6,
+                seconds, bytes / 1e6 / seconds, threads, chunks.size());
+        report();
+    }
+
+    // Pick the capacity, grant period and start time out of the top of a server log, or
+    // the client's address out of the top of a client log
+    private int readHeader(FileChannel channel, boolean isServer) throws IOException {
+        MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 4096));
+        byte[] bytes = new byte[head.remaining()];
+        head.get(bytes);
+        int clientAddr = 0;
+        for (String line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+            if (isServer && capacityWatts == 0 && line.startsWith("Capacity: ")) {
+                capacityWatts = Integer.parseInt(line.substring(10, line.indexOf('W')));
+            } else if (isServer && grantPeriodMillis == 0 && line.startsWith("Grant period: ")) {
+                grantPeriodMillis = Integer.parseInt(line.substring(14, line.indexOf("ms")));
+            } else if (!isServer && line.startsWith("Client: ")) {
+                clientAddr = Ipv4.toInt(InetAddress.getByName(line.substring(8, line.indexOf(','))));
+            } else if (isServer && baseTime == Long.MIN_VALUE && (line.startsWith("REQ,") || line.startsWith("GRA,"))) {
+                // Intervals are counted from the first record of the first server log
+                byte[] record = line.getBytes(StandardCharsets.US_ASCII);
+                baseTime = new TimeParser().parse(ByteBuffer.wrap(record), 4, line.indexOf(',', 4));
+                baseTime -= Math.floorMod(baseTime, intervalMillis);
+            }
+        }
+        return clientAddr;
+    }
+
+    // Totals of one chunk, or of everything once merged
+    private static final class Totals {
+        // Per client, by index; keys[index] is the client's key (see ClientTable.key())
+        int clientCount = 0;
+        long[] keys = new long[64];
+        long[] requests = new long[64], answered = new long[64], denied = new long[64];
+        long[] latencySum = new long[64], latencyMax = new long[64];    // Server side (ms)
+        long[] clientAnswered = new long[64], clientLatencySum = new long[64], clientLatencyMax = new long[64];
+        long[] uplinkSum = new long[64], uplinkCount = new long[64];   // Server arrival - client send (ms)
+        final KeyIndex index = new KeyIndex();
+
+        final LatencyHistogram serverLatency = new LatencyHistogram();
+        final LatencyHistogram clientLatency = new LatencyHistogram();
+
+        // Per interval, from firstBucket
+        long firstBucket = -1;
+        long[] bucketRequests = new long[0], bucketAnswered = new long[0], bucketDenied = new long[0];
+        long[] bucketGrantWatts = new long[0];
+        double[] fairSum = new double[0], fairSquares = new double[0];
+        long[] fairClients = new long[0];
+        // Intervals cut by a chunk boundary: bucket -> client key -> {answered, granted}
+        final Map<Long, Map<Long, long[]>> edges = new HashMap<>();
+
+        int clientOf(long key) {
+            int client = index.get(key);
+            if (client >= 0) {
+                return client;
+            }
+            client = clientCount++;
+            if (client == keys.length) {
+                int length = client * 2;
+                keys = Arrays.copyOf(keys, length);
+                requests = Arrays.copyOf(requests, length);
+                answered = Arrays.copyOf(answered, length);
+                denied = Arrays.copyOf(denied, length);
+                latencySum = Arrays.copyOf(latencySum, length);
+                latencyMax = Arrays.copyOf(latencyMax, length);
+                clientAnswered = Arrays.copyOf(clientAnswered, length);
+                clientLatencySum = Arrays.copyOf(clientLatencySum, length);
+                clientLatencyMax = Arrays.copyOf(clientLatencyMax, length);
+                uplinkSum = Arrays.copyOf(uplinkSum, length);
+                uplinkCount = Arrays.copyOf(uplinkCount, length);
+            }
+            keys[client] = key;
+            index.put(key, client);
+            return client;
+        }
+
+        // Slot of bucket in the per-interval arrays, growing them as needed
+        int bucketSlot(long bucket) {
+            if (firstBucket < 0) {
+                firstBucket = bucket;
+            }
+            int slot = (int) (bucket - firstBucket);
+            if (slot < 0) {
+                // Only when merging: shift everything up
+                int shift = -slot;
+                bucketRequests = shifted(bucketRequests, shift);
+                bucketAnswered = shifted(bucketAnswered, shift);
+                bucketDenied = shifted(bucketDenied, shift);
+                bucketGrantWatts = shifted(bucketGrantWatts, shift);
+                fairClients = shifted(fairClients, shift);
+                double[] sum = new double[fairSum.length + shift];
+                double[] squares = new double[fairSquares.length + shift];
+                System.arraycopy(fairSum, 0, sum, shift, fairSum.length);
+                System.arraycopy(fairSquares, 0, squares, shift, fairSquares.length);
+                fairSum = sum;
+                fairSquares = squares;
+                firstBucket = bucket;
+                slot = 0;
+            }
+            if (slot >= bucketRequests.length) {
+                int length = Math.max(slot + 1, bucketRequests.length * 2);
+                bucketRequests = Arrays.copyOf(bucketRequests, length);
+                bucketAnswered = Arrays.copyOf(bucketAnswered, length);
+                bucketDenied = Arrays.copyOf(bucketDenied, length);
+                bucketGrantWatts = Arrays.copyOf(bucketGrantWatts, length);
+                fairClients = Arrays.copyOf(fairClients, length);
+                fairSum = Arrays.copyOf(fairSum, length);
+                fairSquares = Arrays.copyOf(fairSquares, length);
+            }
+            return slot;
+        }
+
+        void addFairness(int slot, long answered, long granted) {
+            double x = (double) granted / answered;
+            fairSum[slot] += x;
+            fairSquares[slot] += x * x;
+            fairClients[slot]++;
+        }
+
+        private static long[] shifted(long[] a, int shift) {
+            long[] b = new long[a.length + shift];
+            System.arraycopy(a, 0, b, shift, a.length);
+            return b;
+        }
+    }
+
+    // One piece of one log file, lines [start, end)
+    private final class Chunk {
+        final Path file;
+        final long start, end;
+        final boolean isServer;
+        final long clientKey;       // Client logs only
+
+        final TimeParser time = new TimeParser();
+        Totals totals;
+        // Per client index, within the chunk
+        long[] waitingSince = new long[64];     // Time of the oldest unanswered request, 0 if none
+        long[] bucketAnswered = new long[64], bucketGranted = new long[64];
+        int[] touched = new int[64];            // Clients with answers in the current interval
+        int touchedCount = 0;
+        long currentBucket = Long.MIN_VALUE;
+        boolean firstBucket = true;
+
+        Chunk(Path file, long start, long end, boolean isServer, int clientAddr) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.isServer = isServer;
+            this.clientKey = ClientTable.key(clientAddr, 0);
+        }
+
+        Totals parse() throws IOException {
+            totals = new Totals();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                // Map from the byte before our start, to see if a line starts there, and
+                // far enough past our end to finish our last line
+                long mapStart = Math.max(0, start - 1);
+                long mapEnd = Math.min(channel.size(), end + MAX_LINE_LENGTH);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+                int limit = (int) (end - mapStart);     // Lines starting before here are ours
+                int capacity = buffer.capacity();
+                int pos = 0;
+                if (start > 0) {
+                    // Skip the rest of the line the previous chunk owns
+                    while (pos < capacity && buffer.get(pos) != '\n') {
+                        pos++;
+                    }
+                    pos++;
+                }
+                while (pos >= 0 && pos < limit) {
+                    int eol = pos;
+                    while (eol < capacity && buffer.get(eol) != '\n') {
+                        eol++;
+                    }
+                    if (eol == capacity && mapEnd != channel.size()) {
+                        break;      // Overlong line running past the mapping
+                    }
+                    parseLine(buffer, pos, eol);
+                    pos = eol + 1;
+                }
+            }
+            endBucket(true);
+            return totals;
+        }
+
+        private void parseLine(MappedByteBuffer b, int pos, int eol) {
+            if (eol - pos < 6 || b.get(pos + 3) != ',') {
+                return;     // A message
+            }
+            byte c0 = b.get(pos), c1 = b.get(pos + 1), c2 = b.get(pos + 2);
+            boolean request = c0 == 'R' && c1 == 'E' && c2 == 'Q';
+            if (!request && !(c0 == 'G' && c1 == 'R' && c2 == 'A')) {
+                return;
+            }
+            int p = pos + 4;
+            int f = field(b, p, eol);
+            long local = time.parse(b, p, f);
+            p = f + 1;
+            if (isServer) {
+                long clientTime = 0;
+                if (request) {
+                    f = field(b, p, eol);
+                    clientTime = time.parse(b, p, f);
+                    p = f + 1;
+                }
+                f = field(b, p, eol);
+                int addr = parseAddress(b, p, f);
+                p = f + 1;
+                f = field(b, p, eol);
+                int loadId = 0;
+                if (f < eol) {
+                    loadId = (int) parseLong(b, p, f);
+                    p = f + 1;
+                }   // Else a log from before load IDs were logged
+                int watts = (int) parseLong(b, p, eol);
+                long key = ClientTable.key(addr, loadId);
+                if (request) {
+                    serverRequest(local, clientTime, key);
+                } else {
+                    serverGrant(local, key, watts);
+                }
+            } else if (request) {
+                clientRequest(local);
+            } else {
+                f = field(b, p, eol);
+                clientGrant(local, (int) parseLong(b, f + 1, eol));
+            }
+        }
+
+        private int client(long key) {
+            int client = totals.clientOf(key);
+            if (client >= waitingSince.length) {
+                int length = totals.keys.length;
+                waitingSince = Arrays.copyOf(waitingSince, length);
+                bucketAnswered = Arrays.copyOf(bucketAnswered, length);
+                bucketGranted = Arrays.copyOf(bucketGranted, length);
+                touched = Arrays.copyOf(touched, length);
+            }
+            return client;
+        }
+
+        private void serverRequest(long local, long clientTime, long key) {
+            int client = client(key);
+            totals.requests[client]++;
+            int slot = totals.bucketSlot(bucket(local));     // May grow the arrays
+            totals.bucketRequests[slot]++;
+            if (clientTime != 0) {
+                totals.uplinkSum[client] += local - clientTime;
+                totals.uplinkCount[client]++;
+            }
+            if (waitingSince[client] == 0) {
+                waitingSince[client] = local;
+            }
+        }
+
+        private void serverGrant(long local, long key, int watts) {
+            int client = client(key);
+            long bucket = bucket(local);
+            int slot = totals.bucketSlot(bucket);
+            totals.bucketGrantWatts[slot] += watts;
+            if (waitingSince[client] == 0) {
+                return;     // Not answering anything we saw
+            }
+            long latency = local - waitingSince[client];
+            waitingSince[client] = 0;
+            totals.answered[client]++;
+            totals.latencySum[client] += latency;
+            totals.latencyMax[client] = Math.max(totals.latencyMax[client], latency);
+            totals.serverLatency.record(latency);
+            totals.bucketAnswered[slot]++;
+            if (watts == 0) {
+                totals.denied[client]++;
+                totals.bucketDenied[slot]++;
+            }
+            // Fairness within the interval
+            if (bucket != currentBucket) {
+                endBucket(false);
+                currentBucket = bucket;
+            }
+            if (bucketAnswered[client] == 0) {
+                touched[touchedCount++] = client;
+            }
+            bucketAnswered[client]++;
+            if (watts > 0) {
+                bucketGranted[client]++;
+            }
+        }
+
+        private void clientRequest(long local) {
+            int client = client(clientKey);
+            if (waitingSince[client] == 0) {
+                waitingSince[client] = local;
+            }
+        }
+
+        private void clientGrant(long local, int watts) {
+            int client = client(clientKey);
+            if (waitingSince[client] == 0) {
+                return;
+            }
+            long latency = local - waitingSince[client];
+            waitingSince[client] = 0;
+            totals.clientAnswered[client]++;
+            totals.clientLatencySum[client] += latency;
+            totals.clientLatencyMax[client] = Math.max(totals.clientLatencyMax[client], latency);
+            totals.clientLatency.record(latency);
+        }
+
+        // Close the current fairness interval. If this chunk saw all of it, add it up;
+        // the first and last intervals of the chunk may go on in the neighboring chunks,
+        // so for those keep the per-client counts to merge.
+        private void endBucket(boolean last) {
+            if (touchedCount == 0) {
+                firstBucket = false;
+                return;
+            }
+            Map<Long, long[]> counts = null;
+            if (firstBucket || last) {
+                counts = new HashMap<>();
+                totals.edges.put(currentBucket, counts);
+            }
+            int slot = totals.bucketSlot(currentBucket);
+            for (int i = 0; i < touchedCount; i++) {
+                int client = touched[i];
+                if (counts != null) {
+                    counts.put(totals.keys[client], new long[] {bucketAnswered[client], bucketGranted[client]});
+                } else {
+                    totals.addFairness(slot, bucketAnswered[client], bucketGranted[client]);
+                }
+                bucketAnswered[client] = 0;
+                bucketGranted[client] = 0;
+            }
+            touchedCount = 0;
+            firstBucket = false;
+        }
+
+        private long bucket(long time) {
+            return Math.floorDiv(time - baseTime, intervalMillis);
+        }
+    }
+
+    // Field ending at the next comma (or eol)
+    private static int field(MappedByteBuffer b, int pos, int eol) {
+        while (pos < eol && b.get(pos) != ',') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static long parseLong(MappedByteBuffer b, int pos, int end) {
+        long value = 0;
+        boolean negative = pos < end && b.get(pos) == '-';
+        for (int i = negative ? pos + 1 : pos; i < end; i++) {
+            int digit = b.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                break;      // e.g. a trailing '\r'
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    // Dotted-quad IPv4 address as an int
+    private static int parseAddress(MappedByteBuffer b, int pos, int end) {
+        int addr = 0;
+        int octet = 0;
+        for (int i = pos; i < end; i++) {
+            byte c = b.get(i);
+            if (c == '.') {
+                addr = addr << 8 | octet;
+                octet = 0;
+            } else {
+                octet = octet * 10 + c - '0';
+            }
+        }
+        return addr << 8 | octet;
+    }
+
+    // Log timestamps: "yyyy-MM-dd HH:mm:ss.SSS" in the local time zone (or plain epoch
+    // milliseconds). The start of the hour is looked up once per hour of log.
+    static final class TimeParser {
+        private final ZoneId zone = ZoneId.systemDefault();
+        private int cachedHour = -1;        // yyyyMMddHH
+        private long cachedHourMillis;
+
+        long parse(ByteBuffer b, int pos, int end) {
+            if (end - pos != 23 || b.get(pos + 4) != '-') {
+                return parseMillis(b, pos, end);
+            }
+            int year = digits(b, pos, 4), month = digits(b, pos + 5, 2), day = digits(b, pos + 8, 2);
+            int hour = digits(b, pos + 11, 2);
+            int key = ((year * 100 + month) * 100 + day) * 100 + hour;
+            if (key != cachedHour) {
+                ZonedDateTime t = LocalDateTime.of(year, month, day, hour, 0).atZone(zone);
+                cachedHourMillis = t.toInstant().toEpochMilli();
+                cachedHour = key;
+            }
+            return cachedHourMillis + (digits(b, pos + 14, 2) * 60 + digits(b, pos + 17, 2)) * 1000L
+                    + digits(b, pos + 20, 3);
+        }
+
+        private static long parseMillis(ByteBuffer b, int pos, int end) {
+            long value = 0;
+            for (int i = pos; i < end; i++) {
+                value = value * 10 + b.get(i) - '0';
+            }
+            return value;
+        }
+
+        private static int digits(ByteBuffer b, int pos, int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                value = value * 10 + b.get(pos + i) - '0';
+            }
+            return value;
+        }
+    }
+
+    // Open-addressing map from client keys to non-negative ints
+    private static final class KeyIndex {
+        private long[] keys = new long[128];
+        private int[] values = new int[128];
+        private boolean[] used = new boolean[128];
+        private int size = 0;
+
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = ClientTable.hash(key) & mask; used[slot]; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return -1;
+        }
+
+        void put(long key, int value) {
+            if (2 * (size + 1) > keys.length) {
+                long[] oldKeys = keys;
+                int[] oldValues = values;
+                boolean[] oldUsed = used;
+                keys = new long[oldKeys.length * 2];
+                values = new int[keys.length];
+                used = new boolean[keys.length];
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldUsed[i]) {
+                        put(oldKeys[i], oldValues[i]);
+                    }
+                }
+            }
+            int mask = keys.length - 1;
+            int slot = ClientTable.hash(key) & mask;
+            while (used[slot] && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (!used[slot]) {
+                used[slot] = true;
+                size++;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+        }
+    }
+
+    // Add one chunk's totals to ours
+    private void merge(Totals chunk) {
+        for (int c = 0; c < chunk.clientCount; c++) {
+            int client = totals.clientOf(chunk.keys[c]);
+            totals.requests[client] += chunk.requests[c];
+            totals.answered[client] += chunk.answered[c];
+            totals.denied[client] += chunk.denied[c];
+            totals.latencySum[client] += chunk.latencySum[c];
+            totals.latencyMax[client] = Math.max(totals.latencyMax[client], chunk.latencyMax[c]);
+            totals.clientAnswered[client] += chunk.clientAnswered[c];
+            totals.clientLatencySum[client] += chunk.clientLatencySum[c];
+            totals.clientLatencyMax[client] = Math.max(totals.clientLatencyMax[client], chunk.clientLatencyMax[c]);
+            totals.uplinkSum[client] += chunk.uplinkSum[c];
+            totals.uplinkCount[client] += chunk.uplinkCount[c];
+        }
+        totals.serverLatency.add(chunk.serverLatency);
+        totals.clientLatency.add(chunk.clientLatency);
+        if (chunk.firstBucket >= 0) {
+            for (int slot = 0; slot < chunk.bucketRequests.length; slot++) {
+                int s = totals.bucketSlot(chunk.firstBucket + slot);
+                totals.bucketRequests[s] += chunk.bucketRequests[slot];
+                totals.bucketAnswered[s] += chunk.bucketAnswered[slot];
+                totals.bucketDenied[s] += chunk.bucketDenied[slot];
+                totals.bucketGrantWatts[s] += chunk.bucketGrantWatts[slot];
+                totals.fairSum[s] += chunk.fairSum[slot];
+                totals.fairSquares[s] += chunk.fairSquares[slot];
+                totals.fairClients[s] += chunk.fairClients[slot];
+            }
+        }
+        for (Map.Entry<Long, Map<Long, long[]>> edge : chunk.edges.entrySet()) {
+            Map<Long, long[]> counts = edgeBuckets.computeIfAbsent(edge.getKey(), b -> new HashMap<>());
+            for (Map.Entry<Long, long[]> client : edge.getValue().entrySet()) {
+                long[] sum = counts.computeIfAbsent(client.getKey(), a -> new long[2]);
+                sum[0] += client.getValue()[0];
+                sum[1] += client.getValue()[1];
+            }
+        }
+    }
+
+    private void report() {
+        // The intervals cut by chunk boundaries, now that every chunk is in
+        for (Map.Entry<Long, Map<Long, long[]>> edge : edgeBuckets.entrySet()) {
+            int slot = totals.bucketSlot(edge.getKey());
+            for (long[] counts : edge.getValue().values()) {
+                totals.addFairness(slot, counts[0], counts[1]);
+            }
+        }
+        long requests = 0, answered = 0, denied = 0;
+        for (int c = 0; c < totals.clientCount; c++) {
+            requests += totals.requests[c];
+            answered += totals.answered[c];
+            denied += totals.denied[c];
+        }
+        System.out.format("Clients: %d, requests: %d, answered: %d, denied: %d (%.2f%%)%n", totals.clientCount, requests,
+                answered, denied, answered == 0 ? 0.0 : 100.0 * denied / answered);
+        printLatency("Server request-to-grant", totals.serverLatency);
+        if (totals.clientLatency.count() > 0) {
+            printLatency("Client request-to-grant", totals.clientLatency);
+        }
+        if (grantPeriodMillis > 0 && capacityWatts > 0) {
+            System.out.format("Capacity: %dW, grant period: %dms%n", capacityWatts, grantPeriodMillis);
+        }
+
+        System.out.println();
+        System.out.println("Interval             Requests  Denied   Load (W)  Util  Fairness");
+        double ticksPerInterval = grantPeriodMillis > 0 ? (double) intervalMillis / grantPeriodMillis : 0;
+        for (int slot = 0; slot < totals.bucketRequests.length; slot++) {
+            if (totals.bucketRequests[slot] == 0 && totals.bucketAnswered[slot] == 0) {
+                continue;
+            }
+            long intervalStart = baseTime + (totals.firstBucket + slot) * intervalMillis;
+            String fairness = "-";
+            if (totals.fairSquares[slot] > 0) {
+                fairness = String.format("%.3f", totals.fairSum[slot] * totals.fairSum[slot]
+                        / (totals.fairClients[slot] * totals.fairSquares[slot]));
+            }
+            String load = "-", util = "-";
+            if (ticksPerInterval > 0) {
+                double watts = totals.bucketGrantWatts[slot] / ticksPerInterval;
+                load = String.format("%.0f", watts);
+                if (capacityWatts > 0) {
+                    util = String.format("%.0f%%", 100 * watts / capacityWatts);
+                }
+            }
+            System.out.format("%-19s %9d %6.2f%% %10s %5s %9s%n", new Timestamp(intervalStart).toString()
+                    .substring(0, 19), totals.bucketRequests[slot], totals.bucketAnswered[slot] == 0 ? 0.0
+                    : 100.0 * totals.bucketDenied[slot] / totals.bucketAnswered[slot], load, util, fairness);
+        }
+
+        // The clients with the most denials
+        Integer[] order = new Integer[totals.clientCount];
+        for (int c = 0; c < order.length; c++) {
+            order[c] = c;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(totals.denied[b], totals.denied[a]));
+        System.out.println();
+        System.out.println("Client           Load   Requests  Denied  Server latency (ms)  Client latency (ms)  Uplink+skew (ms)");
+        System.out.println("                                          mean       max        mean       max        mean");
+        for (int i = 0; i < Math.min(topClients, order.length); i++) {
+            int c = order[i];
+            System.out.format("%-15s %5d %10d %6.2f%% %8.1f %9d %11s %9s %11s%n",
+                    Ipv4.toInetAddress((int) (totals.keys[c] >>> 16)).getHostAddress(), totals.keys[c] & 0xFFFF,
+                    totals.requests[c],
+                    totals.answered[c] == 0 ? 0.0 : 100.0 * totals.denied[c] / totals.answered[c],
+                    totals.answered[c] == 0 ? 0.0 : (double) totals.latencySum[c] / totals.answered[c],
+                    totals.latencyMax[c],
+                    totals.clientAnswered[c] == 0 ? "-"
+                            : String.format("%.1f", (double) totals.clientLatencySum[c] / totals.clientAnswered[c]),
+                    totals.clientAnswered[c] == 0 ? "-" : Long.toString(totals.clientLatencyMax[c]),
+                    totals.uplinkCount[c] == 0 ? "-"
+                            : String.format("%.1f", (double) totals.uplinkSum[c] / totals.uplinkCount[c]));
+        }
+    }
+
+    private static void printLatency(String label, LatencyHistogram histogram) {
+        System.out.format("%s p50/p90/p99/max: %d/%d/%d/%d ms%n", label, histogram.percentile(50),
+                histogram.percentile(90), histogram.percentile(99), histogram.max());
+    }
+}
@@ -0,0 +1,100 @@
+package njit.smartgrid;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Streams binary PowerLog segments (see BinaryLogWriter) back out in the CSV layout
+// of the text log.
+//
+// Usage: java njit.smartgrid.PowerLogReader [-o <output file>] <segment files...>
+public class PowerLogReader {
+
+    private final StringBuilder line = new StringBuilder(128);
+
+    public static void main(String[] args) throws IOException {
+        int first = 0;
+        Writer out;
+        if (args.length >= 2 && args[0].equals("-o")) {
+            out = new BufferedWriter(new FileWriter(args[1]));
+            first = 2;
+        } else {
+            out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        }
+        if (args.length <= first) {
+            System.out.println("Usage: java njit.smartgrid.PowerLogReader [-o <output file>] <segment files...>");
+            System.exit(0);
+        }
+        PowerLogReader reader = new PowerLogReader();
+        try {
+            for (int i = first; i < args.length; i++) {
+                reader.toCsv(args[i], out);
+            }
+        } finally {
+            out.flush();
+            if (first > 0) {
+                out.close();
+            }
+        }
+    }
+
+    // Append the records of one segment file to out as CSV lines
+    public void toCsv(String segmentFile, Writer out) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(segmentFile), StandardOpenOption.READ)) {
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (segment.remaining() < BinaryLogWriter.HEADER_SIZE || segment.getInt() != BinaryLogWriter.MAGIC) {
+                throw new IOException(segmentFile + " is not a PowerLog segment");
+            }
+            short version = segment.getShort();
+            if (version < 1 || version > BinaryLogWriter.VERSION) {
+                throw new IOException(segmentFile + ": unsupported segment version " + version);
+            }
+            boolean isServer = (segment.getShort() & BinaryLogWriter.FLAG_SERVER) != 0;
+            long baseTime = segment.getLong();
+            CsvLogFormat csv = new CsvLogFormat(isServer);
+            byte[] text = new byte[0];
+            while (segment.remaining() >= BinaryLogWriter.RECORD_SIZE) {
+                int start = segment.position();
+                int type = segment.get();
+                if (type == 0) {
+                    break;      // End of the data written to this segment
+                }
+                byte flags = segment.get();
+                int watts = segment.getShort();
+                long localTime = baseTime + segment.getInt();
+                int peerDelta = segment.getInt();
+                long peerTime = peerDelta == BinaryLogWriter.NO_PEER_TIME ? 0 : localTime + peerDelta;
+                int address = segment.getInt();
+                int loadId = 0;
+                String msg = null;
+                if (type == PowerLog.TYPE_MESSAGE) {
+                    int length = watts & 0xFFFF;
+                    if (text.length < length) {
+                        text = new byte[length];
+                    }
+                    segment.get(text, 0, length);
+                    msg = new String(text, 0, length, StandardCharsets.UTF_8);
+                    segment.position(start + BinaryLogWriter.RECORD_SIZE
+                            + (length + BinaryLogWriter.RECORD_SIZE - 1) / BinaryLogWriter.RECORD_SIZE * BinaryLogWriter.RECORD_SIZE);
+                } else if ((flags & (BinaryLogWriter.FLAG_PEER_TIME_FOLLOWS | BinaryLogWriter.FLAG_LOAD_ID_FOLLOWS)) != 0) {
+                    long continuedPeerTime = segment.getLong();
+                    if ((flags & BinaryLogWriter.FLAG_PEER_TIME_FOLLOWS) != 0) {
+                        peerTime = continuedPeerTime;
+                    }
+                    if ((flags & BinaryLogWriter.FLAG_LOAD_ID_FOLLOWS) != 0) {
+                        loadId = segment.getShort() & 0xFFFF;
+                    }
+                    segment.position(start + 2 * BinaryLogWriter.RECORD_SIZE);
+                }
+                csv.format(line, type, localTime, peerTime, address, loadId, watts, msg);
+                out.append(line).write('\n');
+            }
+        }
+    }
+}
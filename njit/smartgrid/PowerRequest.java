@@ -6,6 +6,25 @@ public class PowerRequest {
     static final int POWER_LOW = 40;
     static final int POWER_BOTH = POWER_HIGH + POWER_LOW;
 
+    // Set in the power field of a request packet to ask the server for a full (keyframe)
+    // grant tick. Sent on its own with no power, it is not a request for power.
+    static final int KEYFRAME_REQUEST = 1 << 30;
+
+    // Multi-load request packet, sent by a PowerGateway for the loads behind it:
+    //
+    //   long  client timestamp (ms)
+    //   short flags (MULTI_LOAD always set, MULTI_LOAD_KEYFRAME)
+    //   short number of loads in this packet
+    //
+    // followed by 4-byte entries of load ID (short) and power requested (short, watts).
+    // The MULTI_LOAD flag sits where the high half of a single request's power field
+    // is, which is never negative, so the two kinds of packet can't be confused.
+    static final int MULTI_LOAD_HEADER_SIZE = 12;
+    static final int MULTI_LOAD_ENTRY_SIZE = 4;
+    static final int MULTI_LOAD = 0x8000;
+    static final int MULTI_LOAD_KEYFRAME = 1;       // Same as KEYFRAME_REQUEST, for the whole gateway
+    static final int MAX_LOADS_PER_PACKET = (PowerGrantPacket.PKT_SIZE - MULTI_LOAD_HEADER_SIZE) / MULTI_LOAD_ENTRY_SIZE;
+
     private int powerRequested;
     private int powerGranted;
 
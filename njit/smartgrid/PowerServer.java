@@ -1,24 +1,122 @@
 package njit.smartgrid;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.sql.Time;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
+// Threads: one or more ingest threads decode request packets and queue them
+// (RequestQueue). The tick thread drains the queue at the start of each tick and is the
+// only thread that reads or writes the client table and the allocator; it also sends
+// slot acknowledgements and picks up capacity assigned by a federation parent. The
+// sender thread broadcasts ticks the tick thread has encoded, through a ring of grant
+// buffers handed over by blocking queues.
 public class PowerServer {
 
     static final int SERVER_PORT = 1234;                // Port on which to listen for requests / destination port for grants
     static final int REQUEST_PACKET_LENGTH = 12;        // Size of the request packet in bytes
+    static final int MAX_DATAGRAM_LENGTH = 1472;        // Receive buffer size for the NIO engine (oversized packets are rejected)
+
+    // -Dsmartgrid.nio=true selects the non-blocking DatagramChannel ingest engine
+    private static final boolean NIO_INGEST = Boolean.getBoolean("smartgrid.nio");
+    // -Dsmartgrid.keyframeInterval=N broadcasts only changed grants, with a full keyframe
+    // every N ticks (and whenever a client asks for one). 0 sends a full tick every time.
+    private static final int KEYFRAME_INTERVAL = Integer.getInteger("smartgrid.keyframeInterval", 0);
+    // -Dsmartgrid.shards=N splits the clients and the capacity into N shards allocated in parallel
+    private static final int SHARDS = Integer.getInteger("smartgrid.shards", 1);
+    // -Dsmartgrid.slaMillis=N counts grants that took longer than N ms from request arrival
+    // (default: two grant periods)
+    private static final String SLA_MILLIS = "smartgrid.slaMillis";
+    // -Dsmartgrid.tick.spinMicros=N busy-waits the last N microseconds before each grant
+    // broadcast instead of sleeping, for tighter broadcast timing
+    private static final long SPIN_NANOS = Long.getLong("smartgrid.tick.spinMicros", 200) * 1000;
+    // -Dsmartgrid.checkpoint=<base name> checkpoints the allocation state every tick and
+    // resumes from the latest checkpoint on startup, if it is no older than
+    // -Dsmartgrid.checkpoint.maxAgeMillis=N (default 5000)
+    private static final String CHECKPOINT = System.getProperty("smartgrid.checkpoint");
+    private static final long CHECKPOINT_MAX_AGE_MILLIS = Long.getLong("smartgrid.checkpoint.maxAgeMillis", 5000);
+    // -Dsmartgrid.parent=<host>[:port] makes this a leaf of a FederationServer, which
+    // assigns the capacity we grant against
+    private static final String PARENT = System.getProperty("smartgrid.parent");
+    // -Dsmartgrid.bindServerAddress=true listens for requests on the server address only,
+    // so several servers can run on one host (e.g. a federation on loopback)
+    private static final boolean BIND_SERVER_ADDRESS = Boolean.getBoolean("smartgrid.bindServerAddress");
+    // -Dsmartgrid.slots=true sends slot ticks: a 2-bit grant code per client, indexed by
+    // the slot ID each client is sent after its first request (see PowerGrantPacket)
+    private static final boolean SLOT_GRANTS = Boolean.getBoolean("smartgrid.slots");
+    // -Dsmartgrid.ingestThreads=N receives requests on N threads, each with its own
+    // socket on the request port (SO_REUSEPORT), for hosts where one can't keep up
+    private static final int INGEST_THREADS = Integer.getInteger("smartgrid.ingestThreads", 1);
+    // -Dsmartgrid.ingestQueue=N holds up to N requests between two ticks; more are dropped
+    private static final int INGEST_QUEUE = Integer.getInteger("smartgrid.ingestQueue", 1 << 16);
+    // -Dsmartgrid.ingress.clientRate=N lets each client (address and load ID) send N
+    // requests per grant period, in bursts of up to -Dsmartgrid.ingress.clientBurst=B;
+    // more are dropped (0 for no limit). Clients are hashed into
+    // -Dsmartgrid.ingress.buckets=M rate buckets.
+    private static final int CLIENT_RATE = Integer.getInteger("smartgrid.ingress.clientRate", 4);
+    private static final int CLIENT_BURST = Integer.getInteger("smartgrid.ingress.clientBurst", 8);
+    private static final int RATE_BUCKETS = Integer.getInteger("smartgrid.ingress.buckets", 1 << 16);
+    // -Dsmartgrid.ingress.budget=N takes at most N requests between two ticks, from all
+    // clients together; more are dropped (default 0: as many as the ingest queue holds)
+    private static final int INGRESS_BUDGET = Integer.getInteger("smartgrid.ingress.budget", 0);
+    // -Dsmartgrid.immediateGrants=true grants new requests on arrival, with a unicast
+    // grant, when spare capacity covers them and no other request is waiting (see GrantReserve)
+    private static final boolean IMMEDIATE_GRANTS = Boolean.getBoolean("smartgrid.immediateGrants");
+    // -Dsmartgrid.quiet=true turns off the per-tick console output (the load is in the
+    // MXBean either way)
+    private static final boolean QUIET = Boolean.getBoolean("smartgrid.quiet");
+    private static final int GRANT_BUFFERS = 2;     // One being sent while the next one is computed
 
     private InetAddress myAddr = null;
     private InetAddress destAddr = null;
-    private int currentLoadWatts = 0;
     private final int maxLoadWatts;
     private int grantPeriod;    // How often to send grant packets (milliseconds)
-    private Map<InetAddress, List<PowerRequest>> clientMap;
-    private int priorityClientIndex = 0;
-    private InetAddress priorityClient;
+    private final ClientTable clients;
+    private final ShardedAllocator allocator;
+    private int tick = 0;
+    private int grantSequence = 0;  // Tick sequence number carried by every grant segment
+    private final TickScheduler scheduler;
+    // Requests from the ingest threads, drained by the tick thread
+    private final GrantReserve reserve = IMMEDIATE_GRANTS ? new GrantReserve() : null;
+    private final RequestQueue requests = new RequestQueue(INGEST_QUEUE, reserve);
+    private final IngressLimiter ingress;
+    private volatile int assignedCapacityWatts = -1;    // From the federation parent, until the tick thread applies it
+    // Grant ticks are encoded by the tick thread and broadcast by the sender thread.
+    // Buffers go round free -> computed -> ready -> sent -> free.
+    private final PowerGrantPacket[] grantPackets = new PowerGrantPacket[GRANT_BUFFERS];
+    private final GrantGroups[] grantGroups;    // Per-group packets instead, when multicasting
+    private final int[] grantLoadWatts = new int[GRANT_BUFFERS];
+    private final int[] grantDemandWatts = new int[GRANT_BUFFERS];
+    private final int[] grantCapacityWatts = new int[GRANT_BUFFERS];
+    private final int[] grantSequences = new int[GRANT_BUFFERS];
+    private final BlockingQueue<Integer> freeGrantPackets = new ArrayBlockingQueue<>(GRANT_BUFFERS);
+    private final BlockingQueue<Integer> readyGrantPackets = new ArrayBlockingQueue<>(GRANT_BUFFERS);
+    // The computed tick waiting for its release time (tick thread only)
+    private int computedPacket = -1;
+    private int computedSequence;
+    private int computedClients;
+    private long computeStart;
+    private long computeEnd;
+    private volatile boolean keyframeRequested = false;
     private PowerLog log;
+    private final ServerStats stats;
+    private final ServerCheckpoint checkpoint;
+    private ServerCheckpoint.Restored restored = null;
+    private long restoreNanos;
+    private final FederationLink federation;
+    private boolean holdTick = false;   // Rebroadcast the restored grants as they are on the first tick
+    // Slot ticks: a client's slot is its client number, good until we restart
+    private final int slotEpoch = ThreadLocalRandom.current().nextInt();
+    private SlotAck slotAck = null;     // Tick thread only
 
     /**
      * @param args the command line arguments
@@ -29,6 +127,29 @@ public class PowerServer {
             if (System.getProperty("os.name").contains("Linux")) {
                 System.out.println("IMPORTANT: export _JAVA_OPTIONS=\"-Djava.net.preferIPv4Stack=true\"");
             }
+            System.out.println("Options: -Dsmartgrid.nio=true (non-blocking request ingest)");
+            System.out.println("         -Dsmartgrid.keyframeInterval=<ticks> (delta grant broadcasts)");
+            System.out.println("         -Dsmartgrid.shards=<n> (parallel sharded allocation)");
+            System.out.println("         -Dsmartgrid.slaMillis=<ms> (request-to-grant SLA, default two grant periods)");
+            System.out.println("         -Dsmartgrid.tick.spinMicros=<us> (busy-wait before each broadcast, default 200)");
+            System.out.println("         -Dsmartgrid.checkpoint=<base name> (checkpoint every tick, resume on restart)");
+            System.out.println("         -Dsmartgrid.checkpoint.maxAgeMillis=<ms> (oldest checkpoint to resume from, default 5000)");
+            System.out.println("         -Dsmartgrid.parent=<host>[:port] (federation leaf, capacity assigned by a FederationServer)");
+            System.out.println("         -Dsmartgrid.bindServerAddress=true (listen on the server address only)");
+            System.out.println("         -Dsmartgrid.multicast.groups=<k> (multicast grants to k groups instead of broadcasting)");
+            System.out.println("         -Dsmartgrid.multicast.address=<address> (first group, default 239.192.12.0)");
+            System.out.println("         -Dsmartgrid.multicast.zonePrefix=<bits> (group clients by network, default 32: by address)");
+            System.out.println("         -Dsmartgrid.multicast.ttl=<hops> (default 1)");
+            System.out.println("         -Dsmartgrid.multicast.interface=<name> (default: the server address's)");
+            System.out.println("         -Dsmartgrid.slots=true (2-bit grant codes indexed by slot ID, up to 65536 clients)");
+            System.out.println("         -Dsmartgrid.ingestThreads=<n> (request receive threads, default 1)");
+            System.out.println("         -Dsmartgrid.ingestQueue=<n> (requests queued between ticks, default 65536)");
+            System.out.println("         -Dsmartgrid.ingress.clientRate=<n> (requests per client per grant period, default 4, 0: no limit)");
+            System.out.println("         -Dsmartgrid.ingress.clientBurst=<n> (default 8)");
+            System.out.println("         -Dsmartgrid.ingress.buckets=<n> (client rate buckets, default 65536)");
+            System.out.println("         -Dsmartgrid.ingress.budget=<n> (requests from all clients between ticks, default 0: no limit)");
+            System.out.println("         -Dsmartgrid.immediateGrants=true (grant new requests on arrival from spare capacity)");
+            System.out.println("         -Dsmartgrid.quiet=true (no per-tick console output)");
             System.exit(0);
         }
         final InetAddress myAddr = InetAddress.getByName(args[0]);
@@ -37,9 +158,22 @@ public class PowerServer {
             System.err.println("Invalid server address or broadcast address.");
             System.exit(1);
         }
+        if (SLOT_GRANTS && GrantGroups.enabled()) {
+            System.err.println("Slot grants can't be multicast: every group would need every slot.");
+            System.exit(1);
+        }
+        if (SLOT_GRANTS && IMMEDIATE_GRANTS) {
+            System.err.println("Slot grants can't be combined with immediate grants: a client granted on arrival might find no slot left.");
+            System.exit(1);
+        }
         final int grantPeriod = Integer.parseInt(args[2]);
         final int maxLoad = Integer.parseInt(args[3]);
-        System.out.println("Broadcasting to " + destAddr.getHostAddress());
+        if (GrantGroups.enabled()) {
+            System.out.println("Multicasting to " + GrantGroups.COUNT + " groups from "
+                    + GrantGroups.address(0).getHostAddress());
+        } else {
+            System.out.println("Broadcasting to " + destAddr.getHostAddress());
+        }
         System.out.println("Capacity: " + maxLoad + "W");
 
         PowerServer powerServer = new PowerServer(myAddr, destAddr, grantPeriod, maxLoad);
@@ -50,57 +184,181 @@ public class PowerServer {
         this.myAddr = myAddr;
         this.destAddr = destAddr;
         this.grantPeriod = grantPeriod;
+        this.ingress = new IngressLimiter(RATE_BUCKETS, grantPeriod * 1_000_000L, CLIENT_RATE, CLIENT_BURST,
+                INGRESS_BUDGET);
         this.maxLoadWatts = maxLoadWatts;
 
         this.log = new PowerLog(true);
-        this.clientMap = new LinkedHashMap<>(); // LinkedHashMap preserves insertion order & prevents duplicates
+        this.clients = new ClientTable();   // Preserves insertion order & prevents duplicates
+        this.allocator = new ShardedAllocator(clients, maxLoadWatts, SHARDS, log);
+        this.checkpoint = CHECKPOINT != null ? new ServerCheckpoint(CHECKPOINT) : null;
+        if (checkpoint != null) {
+            restoreCheckpoint();
+        }
+        FederationLink link = null;
+        if (PARENT != null) {
+            try {
+                link = new FederationLink(FederationLink.parseAddress(PARENT), this::setCapacity);
+            } catch (IOException e) {
+                System.err.println("IOException: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        this.federation = link;
+        if (SLOT_GRANTS) {
+            try {
+                slotAck = new SlotAck(DatagramChannel.open(StandardProtocolFamily.INET), slotEpoch);
+            } catch (IOException e) {
+                System.err.println("IOException: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        this.grantGroups = GrantGroups.enabled() ? new GrantGroups[GRANT_BUFFERS] : null;
+        for (int i = 0; i < GRANT_BUFFERS; i++) {
+            if (grantGroups != null) {
+                grantGroups[i] = new GrantGroups();
+            } else {
+                grantPackets[i] = new PowerGrantPacket(destAddr);
+            }
+            freeGrantPackets.add(i);
+        }
+        this.scheduler = new TickScheduler("Grant tick", grantPeriod * 1_000_000L, SPIN_NANOS, new TickScheduler.Task() {
+            @Override
+            public void compute(int tick, long releaseNanos) {
+                computeGrants(releaseNanos);
+            }
+
+            @Override
+            public void release(int tick, long lateNanos) {
+                releaseGrants(lateNanos);
+            }
+
+            @Override
+            public void overrun(int tick, long lateNanos, int skippedTicks) {
+                stats.overrun(skippedTicks);
+                log.logString(String.format("Tick overrun: %.3fms late, %d ticks skipped", lateNanos / 1e6, skippedTicks));
+            }
+        });
+        this.stats = new ServerStats(log, Long.getLong(SLA_MILLIS, 2L * grantPeriod) * 1_000_000L);
     }
 
     public void start() {
-        log.logString(String.format("Server: %s:%d, Broadcast: %s:%d", myAddr.getHostAddress(), SERVER_PORT,
-                destAddr.getHostAddress(), PowerGrantPacket.CLIENT_PORT));
+        if (grantGroups != null) {
+            log.logString(String.format("Server: %s:%d, Multicast: %d groups from %s:%d", myAddr.getHostAddress(),
+                    SERVER_PORT, GrantGroups.COUNT, GrantGroups.address(0).getHostAddress(), PowerGrantPacket.CLIENT_PORT));
+        } else {
+            log.logString(String.format("Server: %s:%d, Broadcast: %s:%d", myAddr.getHostAddress(), SERVER_PORT,
+                    destAddr.getHostAddress(), PowerGrantPacket.CLIENT_PORT));
+        }
         log.logString(String.format("Grant period: %dms", grantPeriod));
         log.logString(String.format("Capacity: %dW, Available power levels: %dW/%dW/%dW", maxLoadWatts, PowerRequest.POWER_BOTH,
                 PowerRequest.POWER_HIGH, PowerRequest.POWER_LOW));
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName("njit.smartgrid:type=PowerServer"));
+        } catch (JMException e) {
+            System.err.println("Stats not available over JMX: " + e.getMessage());
+        }
         // Sends a grant packet every grantPeriod (ms) comprised of all
         // requests since last grand packet was sent
-        new Timer().schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if (!clientMap.isEmpty()) {
-                    checkForInactiveClients();
-                    grantPower();       // Grant more requests, if the capacity exists
-                    removeDeniedRequests();
-                }
-                sendGrantPacket();  // Send grant broadcast
+        if (restored != null) {
+            if (restored.expired) {
+                log.logString(String.format("Checkpoint %s is %dms old, starting empty", CHECKPOINT, restored.ageMillis));
+            } else {
+                log.logString(String.format("Resumed from checkpoint %s (%dms old): %d clients, sequence %d in %.3fms%s",
+                        CHECKPOINT, restored.ageMillis, restored.clients, restored.grantSequence, restoreNanos / 1e6,
+                        restored.exact ? "" : ", capacity or shards changed"));
             }
-        }, grantPeriod, grantPeriod);
-        listenForRequest();
+        }
+        if (checkpoint != null) {
+            checkpoint.start();
+        }
+        if (federation != null) {
+            log.logString("Federation parent: " + PARENT);
+            federation.start();
+        }
+        Thread sender = new Thread(this::sendGrantPackets, "Grant sender");
+        sender.setDaemon(true);
+        sender.start();
+        scheduler.start();
+        if (allocator.shardCount() > 1) {
+            log.logString(String.format("Shards: %d", allocator.shardCount()));
+        }
+        if (SLOT_GRANTS) {
+            log.logString(String.format("Slot grants, epoch %08x", slotEpoch));
+        } else if (KEYFRAME_INTERVAL > 0) {
+            log.logString(String.format("Delta grants, keyframe every %d ticks", KEYFRAME_INTERVAL));
+        }
+        log.logString(String.format("Ingest: %s, %d thread(s), queue %d", NIO_INGEST ? "NIO" : "blocking",
+                INGEST_THREADS, requests.capacity()));
+        if (reserve != null) {
+            log.logString("Immediate grants from spare capacity");
+        }
+        log.logString(String.format("Ingress limits: %s per client, %s per tick",
+                CLIENT_RATE > 0 ? CLIENT_RATE + " (burst " + CLIENT_BURST + ") requests per period" : "none",
+                INGRESS_BUDGET > 0 ? INGRESS_BUDGET + " requests" : "queue capacity"));
+        for (int i = 1; i < INGEST_THREADS; i++) {
+            Thread ingest = new Thread(this::listen, "Request ingest " + i);
+            ingest.setDaemon(true);
+            ingest.start();
+        }
+        listen();
+    }
+
+    private void listen() {
+        if (NIO_INGEST) {
+            listenForRequestNio();
+        } else {
+            listenForRequest();
+        }
+    }
+
+    // Pick up the clients and grants of the last checkpoint, so the clients keep their
+    // power across a restart
+    private void restoreCheckpoint() {
+        long start = System.nanoTime();
+        try {
+            restored = checkpoint.restore(clients, allocator, CHECKPOINT_MAX_AGE_MILLIS);
+        } catch (IOException e) {
+            System.err.println("Checkpoint not restored: " + e.getMessage());
+            return;
+        }
+        restoreNanos = System.nanoTime() - start;
+        if (restored != null && !restored.expired) {
+            grantSequence = restored.grantSequence;
+            tick = restored.tick;
+            // Clients applying delta grants may have missed ticks while we were down
+            keyframeRequested = true;
+            // The clients couldn't send follow-up requests while we were down, so a normal
+            // first tick would expire every grant. Send them back unchanged first, and the
+            // requests that answer them keep the grants going from the tick after.
+            holdTick = true;
+        }
     }
 
     // Wait for an authorization request from a client
     public void listenForRequest() {
-        try (DatagramSocket receiveSocket = new DatagramSocket(SERVER_PORT)) {
+        final int myAddrInt = Ipv4.toInt(myAddr);
+        try (DatagramSocket receiveSocket = new DatagramSocket(null)) {
+            if (INGEST_THREADS > 1) {
+                receiveSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            receiveSocket.bind(listenAddress());
+            ImmediateGrant immediate = newImmediateGrant();
+            // One receive buffer for the life of the thread
+            byte[] packetDataArray = new byte[MAX_DATAGRAM_LENGTH];
+            DatagramPacket packet = new DatagramPacket(packetDataArray, MAX_DATAGRAM_LENGTH);
+            ByteBuffer packetData = ByteBuffer.wrap(packetDataArray);
             while (true) {
-                byte[] packetDataArray = new byte[REQUEST_PACKET_LENGTH];
                 try {
-                    DatagramPacket packet = new DatagramPacket(packetDataArray, REQUEST_PACKET_LENGTH);
+                    packet.setLength(MAX_DATAGRAM_LENGTH);  // receive() shrinks it to the datagram
                     receiveSocket.receive(packet);
-                    InetAddress clientAddr = packet.getAddress();
+                    int clientAddr = Ipv4.toIntNoCopy(packet.getAddress());
                     // If we sent the packet, ignore it!
-                    if (clientAddr.equals(myAddr)) {
+                    if (clientAddr == myAddrInt) {
                         continue;
                     }
-                    if (packet.getLength() == REQUEST_PACKET_LENGTH) {
-                        ByteBuffer packetData = ByteBuffer.wrap(packet.getData());
-                        long clientTime = packetData.getLong();
-                        int powerRequested = packetData.getInt();
-//                        printTimestamp();
-//                        System.out.format("Request: %s @ %dW\n", clientAddr.toString(), powerRequested);
-                        addRequest(clientAddr, powerRequested);
-                        log.logRequest(clientAddr, powerRequested, clientTime);
-                    }
-                    else {
+                    if (!handlePacket(clientAddr, packetData, packet.getLength(), immediate)) {
+                        stats.invalidPacket();
                         System.err.println("Invalid request packet of length " + packet.getLength());
                     }
                 } catch (IOException e) {
@@ -111,99 +369,347 @@ public class PowerServer {
         } catch (SocketException e) {
             System.err.println("SocketException: " + e.getMessage());
             System.exit(1);
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getMessage());
+            System.exit(1);
         }
     }
-    
-    // Decide if we want to authorize a power request
-    private void addRequest(InetAddress clientAddr, int powerRequested) {
-        // If the client already exists and has an active grant, then add this request automatically
-        // FIXME: non-empty request list does not guarantee an active grant. should check powergranted value also.
-        if (clientMap.containsKey(clientAddr) && !clientMap.get(clientAddr).isEmpty()) {
-            PowerRequest newPowerRequest = new PowerRequest(powerRequested);
-            // FIXME: what if powerRequested of this request != powerGranted of last request?
-            newPowerRequest.setPowerGranted(clientMap.get(clientAddr).get(0).getPowerGranted());
-            clientMap.get(clientAddr).add(newPowerRequest);
-        } else {
-            List<PowerRequest> requestList = new LinkedList<>();
-            PowerRequest powerRequest = new PowerRequest(powerRequested);
-            requestList.add(powerRequest);
-            clientMap.put(clientAddr, requestList);
-        }
-    }
-
-    // Iterate over the client map, removing inactive clients from the current load total
-    private void checkForInactiveClients() {
-        for (Map.Entry<InetAddress, List<PowerRequest>> client : clientMap.entrySet()) {
-            if (!client.getValue().isEmpty()) {
-                PowerRequest powerRequest = client.getValue().get(0);
-                if (powerRequest.getPowerGranted() > 0) {
-                    // If the request has been granted, remove it from the list
-                    int powerGranted = powerRequest.getPowerGranted();
-                    client.getValue().remove(0);
-                    // And if this satisfies the current request, update the load total
-                    if (client.getValue().isEmpty() || client.getValue().get(0).getPowerGranted() == 0) {
-                        currentLoadWatts -= powerGranted;
-                        if (client.getKey() == priorityClient) {
-                            System.out.println("Changing priority");
-                            incrementPriorityClient();
-                        }
+
+    // Each ingest thread sends its own immediate grants, if any
+    private ImmediateGrant newImmediateGrant() throws IOException {
+        return reserve != null ? new ImmediateGrant(DatagramChannel.open(StandardProtocolFamily.INET)) : null;
+    }
+
+    private InetSocketAddress listenAddress() {
+        return BIND_SERVER_ADDRESS ? new InetSocketAddress(myAddr, SERVER_PORT) : new InetSocketAddress(SERVER_PORT);
+    }
+
+    // Same as listenForRequest(), but on a non-blocking channel with one reused direct
+    // buffer. Every datagram queued on the socket is drained on each selector wakeup,
+    // and source addresses are compared as ints so nothing is allocated per packet.
+    public void listenForRequestNio() {
+        final int myAddrInt = Ipv4.toInt(myAddr);
+        try (Selector selector = Selector.open();
+             DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            if (INGEST_THREADS > 1) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(listenAddress());
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            ByteBuffer packetData = ByteBuffer.allocateDirect(MAX_DATAGRAM_LENGTH);
+            ImmediateGrant immediate = newImmediateGrant();
+            while (true) {
+                selector.select();
+                selector.selectedKeys().clear();
+                SocketAddress source;
+                int datagrams = 0;
+                while ((source = channel.receive(packetData)) != null) {
+                    datagrams++;
+                    int length = packetData.position();
+                    int clientAddr = Ipv4.toIntNoCopy(((InetSocketAddress) source).getAddress());
+                    // If we sent the packet, ignore it!
+                    if (clientAddr == myAddrInt) {
+                        packetData.clear();
+                        continue;
+                    }
+                    if (!handlePacket(clientAddr, packetData, length, immediate)) {
+                        stats.invalidPacket();
+                        System.err.println("Invalid request packet of length " + length);
                     }
+                    packetData.clear();
                 }
+                stats.receiveBatch(datagrams);
+            }
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    // Queue the requests of a single or multi-load request packet (see PowerRequest), and
+    // send the grants of any granted on arrival. Returns false if the packet is malformed,
+    // or has requests we refused.
+    private boolean handlePacket(int clientAddr, ByteBuffer packetData, int length, ImmediateGrant immediate) {
+        if (length < REQUEST_PACKET_LENGTH) {
+            return false;
+        }
+        long clientTime = packetData.getLong(0);
+        int flags = packetData.getShort(8) & 0xFFFF;
+        boolean valid = true;
+        if ((flags & PowerRequest.MULTI_LOAD) == 0) {
+            if (length != REQUEST_PACKET_LENGTH) {
+                return false;
+            }
+            valid = handleRequest(clientAddr, 0, packetData.getInt(8), clientTime, immediate);
+        } else {
+            int loads = packetData.getShort(10) & 0xFFFF;
+            if (length != PowerRequest.MULTI_LOAD_HEADER_SIZE + loads * PowerRequest.MULTI_LOAD_ENTRY_SIZE) {
+                return false;
+            }
+            if ((flags & PowerRequest.MULTI_LOAD_KEYFRAME) != 0) {
+                keyframeRequested = true;
+                querySlots(clientAddr);
+            }
+            int offset = PowerRequest.MULTI_LOAD_HEADER_SIZE;
+            for (int i = 0; i < loads; i++, offset += PowerRequest.MULTI_LOAD_ENTRY_SIZE) {
+                valid &= handleRequest(clientAddr, packetData.getShort(offset) & 0xFFFF,
+                        packetData.getShort(offset + 2) & 0xFFFF, clientTime, immediate);
             }
         }
+        if (immediate != null) {
+            try {
+                immediate.flush();
+            } catch (IOException e) {
+                System.err.println("IOException: " + e.getMessage());  // The next tick grants it anyway
+            }
+        }
+        return valid;
     }
 
-    public void grantPower() {
-        // Start iterating through the client list, beginning with the current priority client
-        Iterator<Map.Entry<InetAddress, List<PowerRequest>>> it  = clientMap.entrySet().iterator();
-        // Here we need to fast-forward the iterator to get to the priority client
-        for (int i = 0; i < priorityClientIndex; i++) {
-            it.next();
-        }
-        for (int i = 0; i < clientMap.size(); i++) {
-            Map.Entry<InetAddress, List<PowerRequest>> client = it.next();
-            // Is this the priority client?
-            if (i == 0) {
-                priorityClient = client.getKey();
-            }
-            int powerGranted = 0;
-            if (!client.getValue().isEmpty()) {
-                PowerRequest powerRequest = client.getValue().get(0);
-                int powerRequested = powerRequest.getPowerRequested();
-                powerGranted = powerRequest.getPowerGranted();
-                // We have to ignore any power this client may already be using
-                currentLoadWatts -= powerGranted;
-                if ((powerRequested == PowerRequest.POWER_BOTH) && (currentLoadWatts + PowerRequest.POWER_BOTH <= maxLoadWatts)) {
-                    powerGranted = PowerRequest.POWER_BOTH;
-                } else if ((powerRequested >= PowerRequest.POWER_HIGH) && (currentLoadWatts + PowerRequest.POWER_HIGH <= maxLoadWatts)) {
-                    powerGranted = PowerRequest.POWER_HIGH;
-                } else if (currentLoadWatts + PowerRequest.POWER_LOW <= maxLoadWatts) {
-                    powerGranted = PowerRequest.POWER_LOW;
-                }
-                if (powerGranted > 0) {
-                    currentLoadWatts += powerGranted;
-                    powerRequest.setPowerGranted(powerGranted);
+    // Pick keyframe requests out of a request and queue the rest, within the client's
+    // rate and this tick's budget, granting new ones on the spot if the reserve covers
+    // them. With slot ticks, requests we have no grant code for are refused (false).
+    private boolean handleRequest(int clientAddr, int loadId, int powerRequested, long clientTime,
+                                  ImmediateGrant immediate) {
+        long key = ClientTable.key(clientAddr, loadId);
+        long now = System.nanoTime();
+        if (!ingress.allowClient(key, now)) {
+            stats.requestRateLimited();
+            return true;
+        }
+        if ((powerRequested & PowerRequest.KEYFRAME_REQUEST) != 0) {
+            keyframeRequested = true;
+            powerRequested &= ~PowerRequest.KEYFRAME_REQUEST;
+            querySlots(clientAddr);     // The client may have lost its slot
+            if (powerRequested == 0) {
+                return true;
+            }
+        }
+        if (SLOT_GRANTS && PowerGrantPacket.grantCode(powerRequested) <= 0) {
+            return false;
+        }
+        stats.request();
+        if (!ingress.admit()) {
+            stats.requestOverBudget();
+            return true;
+        }
+        int powerGranted = requests.offerRequest(key, powerRequested, clientTime, now);
+        if (powerGranted < 0) {
+            stats.requestDropped();
+            return true;
+        }
+        log.logRequest(clientAddr, loadId, powerRequested, clientTime);
+        if (powerGranted > 0) {
+            try {
+                immediate.add(clientAddr, loadId, powerGranted);
+            } catch (IOException e) {
+                System.err.println("IOException: " + e.getMessage());  // The next tick grants it anyway
+            }
+            stats.grantedNow(System.nanoTime() - now, clientTime);
+        }
+        return true;
+    }
+
+    private void querySlots(int clientAddr) {
+        if (SLOT_GRANTS && !requests.offerSlotQuery(clientAddr)) {
+            stats.requestDropped();
+        }
+    }
+
+    // The tick thread's side of the request queue
+    private final RequestQueue.Consumer requestConsumer = new RequestQueue.Consumer() {
+        @Override
+        public void request(long key, int powerRequested, int powerGranted, long clientTime, long arrivalNanos) {
+            boolean newClient = clients.indexOf(key) < 0;
+            if (newClient && slotAck != null && clients.size() >= PowerGrantPacket.MAX_SLOTS) {
+                stats.invalidPacket();      // No slot left to give it
+                return;
+            }
+            int client = addRequest(key, powerRequested, powerGranted, clientTime, arrivalNanos);
+            if (newClient && slotAck != null) {
+                ackSlot(clients.address(client), clients.loadId(client), client);
+            }
+        }
+
+        // Tell the client at address (every load of a gateway) its slot
+        @Override
+        public void slotQuery(int address) {
+            if (slotAck == null) {
+                return;
+            }
+            for (int rank = clients.rankOf(ClientTable.key(address, 0)); rank < clients.size(); rank++) {
+                int client = clients.byAddress(rank);
+                if (clients.address(client) != address) {
+                    break;
                 }
+                ackSlot(address, clients.loadId(client), client);
             }
-            // If we're at the end of the list, wrap around to the beginning
-            if (!it.hasNext()) {
-                it = clientMap.entrySet().iterator();
+        }
+    };
+
+    private void ackSlot(int address, int loadId, int slot) {
+        try {
+            slotAck.add(address, loadId, slot);
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getMessage());   // The client asks again
+        }
+    }
+
+    // Apply everything the other threads have handed us since the last tick (tick thread)
+    private void drainRequests() {
+        int watts = assignedCapacityWatts;
+        if (watts >= 0 && watts != allocator.getMaxLoadWatts()) {
+            allocator.setMaxLoadWatts(watts);
+        }
+        ingress.newTick();
+        requests.drain(requestConsumer);
+        if (slotAck != null) {
+            try {
+                slotAck.flush();
+            } catch (IOException e) {
+                System.err.println("IOException: " + e.getMessage());
             }
-            log.logGrant(client.getKey(), powerGranted, 0);
         }
     }
-    
-    // Send a broadcast packet with client addresses and authorization amounts
-    public void sendGrantPacket() {
-        // Create new output socket with dynamically assigned port
+
+    // Send everything on keyframe ticks, otherwise only the grants that changed
+    private boolean isKeyframe(int sequence) {
+        if (KEYFRAME_INTERVAL <= 0 || keyframeRequested || Math.floorMod(sequence, KEYFRAME_INTERVAL) == 0) {
+            keyframeRequested = false;
+            return true;
+        }
+        return false;
+    }
+
+    // Decide if we want to authorize a power request
+    private int addRequest(long key, int powerRequested, int powerGranted, long clientTime, long arrivalNanos) {
+        int numClients = clients.size();
+        int client = clients.add(key);
+        if (clients.size() > numClients) {
+            allocator.addClient(client);
+        }
+        if (allocator.coalesces(client, tick)) {
+            stats.requestCoalesced();
+        }
+        boolean started = allocator.queueRequest(client, powerRequested, tick);
+        if (powerGranted > 0) {
+            allocator.grantNow(client, powerGranted);
+        } else if (started) {
+            clients.setRequestTime(client, arrivalNanos, clientTime);
+        }
+        return client;
+    }
+
+    // New capacity assigned by the federation parent (federation thread). The tick
+    // thread applies it at the start of the next tick.
+    private void setCapacity(int watts) {
+        assignedCapacityWatts = watts;
+    }
+
+    // Allocate and encode the next grant tick into a free buffer (tick thread, ahead of
+    // the tick's release time)
+    private void computeGrants(long releaseNanos) {
+        int packet;
+        try {
+            packet = freeGrantPackets.take();   // Only waits if the sender is a whole tick behind
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        computeStart = System.nanoTime();
+        drainRequests();
+        tick++;
+        if (holdTick) {
+            holdTick = false;
+        } else if (!clients.isEmpty()) {
+            allocator.tick();   // Grant more requests, if the capacity exists
+        }
+        if (SLOT_GRANTS) {
+            grantPackets[packet].encodeSlots(grantSequence, clients, slotEpoch);
+        } else if (grantGroups != null) {
+            grantGroups[packet].encode(grantSequence, clients, isKeyframe(grantSequence));
+        } else {
+            grantPackets[packet].encode(grantSequence, clients, isKeyframe(grantSequence));
+        }
+        grantLoadWatts[packet] = allocator.getLoadWatts();
+        grantDemandWatts[packet] = grantLoadWatts[packet] + allocator.getUnmetWatts();
+        grantCapacityWatts[packet] = allocator.getMaxLoadWatts();
+        grantSequences[packet] = grantSequence;
+        long releaseTime = System.currentTimeMillis() + (releaseNanos - System.nanoTime()) / 1_000_000;
+        stats.grantsSent(clients, releaseNanos, releaseTime);
+        computedSequence = grantSequence;
+        computedClients = clients.size();
+        if (reserve != null) {
+            // Requests denied or cut short come first at the next tick
+            reserve.open(allocator.getUnmetWatts() > 0 ? 0 : allocator.getSpareWatts(), clients, allocator, grantSequence);
+        }
+        grantSequence++;
+        if (checkpoint != null) {
+            checkpoint.capture(clients, allocator, grantSequence, tick);
+        }
+        computeEnd = System.nanoTime();
+        computedPacket = packet;
+    }
+
+    // Queue a request as if an ingest thread had just received it (benchmarks; not with
+    // immediate grants, which need a channel to answer on)
+    void receiveRequest(int clientAddr, int loadId, int powerRequested, long clientTime) {
+        handleRequest(clientAddr, loadId, powerRequested, clientTime, null);
+    }
+
+    // Compute the next tick as the tick thread does and free its buffer again instead of
+    // broadcasting it (benchmarks)
+    void computeTick() {
+        computeGrants(System.nanoTime());
+        freeGrantPackets.add(computedPacket);
+        computedPacket = -1;
+    }
+
+    // The tick's time has come: hand it to the sender
+    private void releaseGrants(long lateNanos) {
+        if (computedPacket < 0) {
+            return;
+        }
+        int packet = computedPacket;
+        computedPacket = -1;
+        readyGrantPackets.add(packet);
+        int segments = grantGroups != null ? grantGroups[packet].getPacketCount() : grantPackets[packet].getPacketCount();
+        stats.tick(computedSequence, computedClients, segments, grantLoadWatts[packet], grantCapacityWatts[packet],
+                computeStart, computeEnd, lateNanos);
+    }
+
+    // Sender thread: broadcast each released grant tick on one long-lived socket
+    private void sendGrantPackets() {
         try (DatagramSocket sendSocket = new DatagramSocket()) {
-            PowerGrantPacket packet = new PowerGrantPacket(destAddr, clientMap);
-            sendSocket.send(packet.getPacket());
-            printTimestamp();
-            System.out.format("Load: %dW (max %dW)\n", currentLoadWatts, maxLoadWatts);
-        } catch (UnknownHostException e) {
-            System.err.println("UnknownHostException: " + e.getMessage());
-            System.exit(1);
+            if (grantGroups != null) {
+                GrantGroups.configureSender(sendSocket, myAddr);
+            }
+            while (true) {
+                int packet = readyGrantPackets.take();
+                if (grantGroups != null) {
+                    for (int group = 0; group < GrantGroups.COUNT; group++) {
+                        sendSegments(sendSocket, grantGroups[packet].packet(group));
+                    }
+                } else {
+                    sendSegments(sendSocket, grantPackets[packet]);
+                }
+                int loadWatts = grantLoadWatts[packet];
+                int capacityWatts = grantCapacityWatts[packet];
+                if (federation != null) {
+                    federation.report(grantSequences[packet], grantDemandWatts[packet], loadWatts, capacityWatts);
+                }
+                if (reserve != null) {
+                    reserve.sent(grantSequences[packet]);
+                }
+                freeGrantPackets.add(packet);
+                if (!QUIET) {
+                    printTimestamp();
+                    System.out.format("Load: %dW (max %dW)\n", loadWatts, capacityWatts);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (SocketException e) {
             System.err.println("SocketException: " + e.getMessage());
             System.exit(1);
@@ -213,22 +719,12 @@ public class PowerServer {
         }
     }
 
-    public void removeDeniedRequests() {
-        for (Map.Entry<InetAddress, List<PowerRequest>> client : clientMap.entrySet()) {
-            if (!client.getValue().isEmpty()) {
-                PowerRequest powerRequest = client.getValue().get(0);
-                if (powerRequest != null && powerRequest.getPowerGranted() == 0) {
-                    // If the request hasn't been granted, remove it from the list
-                    client.getValue().remove(0);
-                }
-            }
+    private static void sendSegments(DatagramSocket sendSocket, PowerGrantPacket grantPacket) throws IOException {
+        for (int segment = 0; segment < grantPacket.getPacketCount(); segment++) {
+            sendSocket.send(grantPacket.getPacket(segment));
         }
     }
 
-    private void incrementPriorityClient() {
-        priorityClientIndex = (priorityClientIndex + 1) % clientMap.size();
-    }
-
     private void printTimestamp() {
         Time time = new Time(System.currentTimeMillis());
         System.out.print("[" + time.toString() + "] ");
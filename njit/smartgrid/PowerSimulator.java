@@ -0,0 +1,345 @@
+package njit.smartgrid;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Offline discrete-event simulator for capacity planning. Runs the server's real
+// allocator (ShardedAllocator and its GrantShard passes) on a virtual clock, one grant
+// tick after another with no waiting, against either:
+//
+//   markov: simulated clients running PowerClient's Markov ON/OFF model, deciding on
+//           their next request after every tick as PowerLoadGenerator's do, or
+//   replay: the requests of a server PowerLog, each queued for the tick its arrival
+//           time falls in (open loop: replayed clients don't react to their grants)
+//
+// Every combination of the capacities and grant periods given is a scenario, and the
+// scenarios run in parallel, one per core. Markov scenarios all use the same random
+// seed, so they see the same client behavior and differ only in the policy.
+//
+// Per scenario: utilization (load against capacity, per tick), denial rate (requests
+// still not granted after their tick), how long a client that turned on waited for its
+// first grant, the share of those that gave up after UNANSWERED_TICKS, and Jain's
+// fairness index over the fraction of each client's requests that were granted, for the
+// whole run and the worst window.
+//
+// Usage: java njit.smartgrid.PowerSimulator [options] markov <clients> <rho> <cycle length> <ticks> <capacities> [grant periods (ms)]
+//        java njit.smartgrid.PowerSimulator [options] replay <server log> <capacities> <grant periods (ms)>
+public class PowerSimulator {
+
+    private static final int UNANSWERED_TICKS = 2;  // As PowerLoadGenerator: a request waiting longer is dropped
+
+    private final int threads;
+    private final long seed;
+    private final int shards;
+    private final int windowTicks;      // Fairness window
+
+    // Replayed requests, in time order: arrival (ms since the first), client, watts
+    private long[] replayTime;
+    private int[] replayClient;
+    private int[] replayWatts;
+    private int replayCount;
+    private int replayClients;
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = 1;
+        int shards = 1;
+        int window = 1000;
+        int first = 0;
+        try {
+            for (; first + 1 < args.length && args[first].startsWith("-"); first += 2) {
+                long value = Long.parseLong(args[first + 1]);
+                switch (args[first]) {
+                    case "-t": threads = (int) value; break;
+                    case "-s": seed = value; break;
+                    case "-shards": shards = (int) value; break;
+                    case "-w": window = (int) value; break;
+                    default: throw new IllegalArgumentException(args[first]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            first = args.length;
+        }
+        String mode = first < args.length ? args[first] : "";
+        int remaining = args.length - first - 1;
+        if (!(mode.equals("markov") && remaining >= 5) && !(mode.equals("replay") && remaining >= 3)) {
+            System.out.println("Usage: java njit.smartgrid.PowerSimulator [options] markov <clients> <rho> <cycle length> <ticks> <capacities> [grant periods (ms)]");
+            System.out.println("       java njit.smartgrid.PowerSimulator [options] replay <server log> <capacities> <grant periods (ms)>");
+            System.out.println("Capacities and grant periods are comma-separated lists; each combination is a scenario.");
+            System.out.println("Options: -t <threads> (scenarios run in parallel, default: one per core)");
+            System.out.println("         -s <seed> (Markov clients, default 1)");
+            System.out.println("         -shards <n> (allocator shards, default 1)");
+            System.out.println("         -w <ticks> (fairness window, default 1000)");
+            System.exit(0);
+        }
+        PowerSimulator simulator = new PowerSimulator(threads, seed, shards, window);
+        List<Scenario> scenarios = new ArrayList<>();
+        if (mode.equals("markov")) {
+            int clients = Integer.parseInt(args[first + 1]);
+            MarkovModel model = new MarkovModel(Double.parseDouble(args[first + 2]), Integer.parseInt(args[first + 3]));
+            int ticks = Integer.parseInt(args[first + 4]);
+            int[] periods = remaining > 5 ? parseList(args[first + 6]) : new int[] { 500 };
+            for (int capacity : parseList(args[first + 5])) {
+                for (int period : periods) {
+                    scenarios.add(new Scenario(capacity, period, ticks, clients, model));
+                }
+            }
+        } else {
+            simulator.loadReplay(args[first + 1]);
+            for (int capacity : parseList(args[first + 2])) {
+                for (int period : parseList(args[first + 3])) {
+                    int ticks = simulator.replayCount == 0 ? 0
+                            : (int) (simulator.replayTime[simulator.replayCount - 1] / period) + 1;
+                    scenarios.add(new Scenario(capacity, period, ticks, 0, null));
+                }
+            }
+        }
+        simulator.run(scenarios);
+    }
+
+    private static int[] parseList(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    PowerSimulator(int threads, long seed, int shards, int windowTicks) {
+        this.threads = Math.max(1, threads);
+        this.seed = seed;
+        this.shards = shards;
+        this.windowTicks = Math.max(1, windowTicks);
+    }
+
+    // One policy to try: capacity and grant period, and the Markov clients (model null: replay)
+    static final class Scenario {
+        final int capacityWatts;
+        final int periodMillis;
+        final int ticks;
+        final int clients;
+        final MarkovModel model;
+
+        // Results
+        long requests, denied, waits, drops;
+        long loadSum;
+        final LatencyHistogram utilization = new LatencyHistogram();   // Per mille of capacity, per tick
+        final LatencyHistogram wait = new LatencyHistogram();          // Ticks until the first grant
+        double fairness;
+        double worstWindowFairness = 1;
+
+        Scenario(int capacityWatts, int periodMillis, int ticks, int clients, MarkovModel model) {
+            this.capacityWatts = capacityWatts;
+            this.periodMillis = periodMillis;
+            this.ticks = ticks;
+            this.clients = clients;
+            this.model = model;
+        }
+    }
+
+    // Read the requests out of a server log
+    void loadReplay(String serverLog) throws IOException {
+        replayTime = new long[1024];
+        replayClient = new int[1024];
+        replayWatts = new int[1024];
+        PowerLogAnalyzer.TimeParser time = new PowerLogAnalyzer.TimeParser();
+        ClientTable addresses = new ClientTable();
+        long start = Long.MIN_VALUE;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(serverLog), StandardCharsets.ISO_8859_1)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // REQ,<local time>,<client time>,<client address>,<load ID>,<watts>
+                if (!line.startsWith("REQ,")) {
+                    continue;
+                }
+                int localEnd = line.indexOf(',', 4);
+                int clientEnd = line.indexOf(',', localEnd + 1);
+                int addrEnd = line.indexOf(',', clientEnd + 1);
+                if (addrEnd < 0) {
+                    continue;
+                }
+                int loadEnd = line.indexOf(',', addrEnd + 1);
+                int loadId = 0;
+                if (loadEnd >= 0) {
+                    loadId = Integer.parseInt(line.substring(addrEnd + 1, loadEnd));
+                } else {
+                    loadEnd = addrEnd;      // A log from before load IDs were logged
+                }
+                long local = time.parse(ByteBuffer.wrap(line.getBytes(StandardCharsets.ISO_8859_1)), 4, localEnd);
+                if (start == Long.MIN_VALUE) {
+                    start = local;
+                }
+                if (replayCount == replayTime.length) {
+                    replayTime = Arrays.copyOf(replayTime, replayCount * 2);
+                    replayClient = Arrays.copyOf(replayClient, replayCount * 2);
+                    replayWatts = Arrays.copyOf(replayWatts, replayCount * 2);
+                }
+                int addr = Ipv4.toInt(InetAddress.getByName(line.substring(clientEnd + 1, addrEnd)));
+                replayTime[replayCount] = Math.max(0, local - start);
+                replayClient[replayCount] = addresses.add(ClientTable.key(addr, loadId));
+                replayWatts[replayCount] = Integer.parseInt(line.substring(loadEnd + 1).trim());
+                replayCount++;
+            }
+        }
+        replayClients = addresses.size();
+        System.out.format("Replaying %d requests from %d clients over %.1fs%n", replayCount, replayClients,
+                replayCount == 0 ? 0.0 : replayTime[replayCount - 1] / 1000.0);
+    }
+
+    void run(List<Scenario> scenarios) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (Scenario scenario : scenarios) {
+                results.add(pool.submit(() -> simulate(scenario)));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Scenario failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        long ticks = 0;
+        for (Scenario s : scenarios) {
+            ticks += s.ticks;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.format("%d scenarios, %d ticks in %.2fs (%.0f ticks/s, %d threads)%n%n", scenarios.size(), ticks,
+                seconds, ticks / seconds, threads);
+        System.out.println("Capacity  Period     Ticks   Requests  Denied    Util mean/p50/p99    Wait p50/p99 (ms)  Dropped  Fairness (worst window)");
+        for (Scenario s : scenarios) {
+            System.out.format("%7dW %5dms %9d %10d %6.2f%%   %5.1f%%/%5.1f%%/%5.1f%%   %8d/%-8d %6.2f%%    %.3f (%.3f)%n",
+                    s.capacityWatts, s.periodMillis, s.ticks, s.requests,
+                    s.requests == 0 ? 0.0 : 100.0 * s.denied / s.requests,
+                    s.ticks == 0 || s.capacityWatts == 0 ? 0.0 : 100.0 * s.loadSum / s.ticks / s.capacityWatts,
+                    s.utilization.percentile(50) / 10.0, s.utilization.percentile(99) / 10.0,
+                    s.wait.percentile(50) * s.periodMillis, s.wait.percentile(99) * s.periodMillis,
+                    s.waits == 0 ? 0.0 : 100.0 * s.drops / s.waits, s.fairness, s.worstWindowFairness);
+        }
+    }
+
+    private void simulate(Scenario s) {
+        boolean replay = s.model == null;
+        int clientCount = replay ? replayClients : s.clients;
+        ClientTable table = new ClientTable(clientCount);
+        ShardedAllocator allocator = new ShardedAllocator(table, s.capacityWatts, shards, PowerLog.discarding());
+        for (int i = 0; i < clientCount; i++) {
+            allocator.addClient(table.add(i));
+        }
+        SplittableRandom rand = new SplittableRandom(seed);
+        int[] powerRequested = new int[clientCount];
+        int[] waitingSince = new int[clientCount];      // Tick a waiting client first asked, -1 if not waiting
+        Arrays.fill(waitingSince, -1);
+        boolean[] on = new boolean[clientCount];
+        long[] asked = new long[clientCount], granted = new long[clientCount];
+        long[] windowAsked = new long[clientCount], windowGranted = new long[clientCount];
+        int[] requesting = new int[clientCount];        // Clients that asked this tick
+        int[] lastAsked = new int[clientCount];         // Last tick + 1 a client asked in
+        int next = 0;                                   // Next replayed request
+
+        for (int tick = 0; tick < s.ticks; tick++) {
+            // Requests for this tick
+            int count = 0;
+            if (replay) {
+                long end = (long) (tick + 1) * s.periodMillis;
+                for (; next < replayCount && replayTime[next] < end; next++) {
+                    int client = replayClient[next];
+                    if (lastAsked[client] != tick + 1) {
+                        lastAsked[client] = tick + 1;
+                        requesting[count++] = client;
+                    }
+                    request(s, allocator, client, replayWatts[next], tick, waitingSince, on);
+                }
+            } else {
+                for (int client = 0; client < clientCount; client++) {
+                    if (waitingSince[client] >= 0 && tick - waitingSince[client] > UNANSWERED_TICKS) {
+                        s.drops++;      // Gave up waiting
+                        waitingSince[client] = -1;
+                    }
+                    int power = s.model.nextRequest(on[client], powerRequested[client], rand.nextDouble(), rand.nextDouble());
+                    if (power == 0) {
+                        continue;
+                    }
+                    powerRequested[client] = power;
+                    requesting[count++] = client;
+                    request(s, allocator, client, power, tick, waitingSince, on);
+                }
+            }
+            allocator.tick();
+
+            // What the clients got
+            int load = allocator.getLoadWatts();
+            s.loadSum += load;
+            s.utilization.record(s.capacityWatts == 0 ? 0 : 1000L * load / s.capacityWatts);
+            for (int i = 0; i < count; i++) {
+                int client = requesting[i];
+                boolean grantedNow = table.granted(client) > 0;
+                asked[client]++;
+                windowAsked[client]++;
+                if (grantedNow) {
+                    granted[client]++;
+                    windowGranted[client]++;
+                } else {
+                    s.denied++;
+                }
+            }
+            for (int client = 0; client < clientCount; client++) {
+                on[client] = table.granted(client) > 0;
+                if (on[client] && waitingSince[client] >= 0) {
+                    s.wait.record(tick - waitingSince[client] + 1);
+                    waitingSince[client] = -1;
+                }
+            }
+            if ((tick + 1) % windowTicks == 0) {
+                s.worstWindowFairness = Math.min(s.worstWindowFairness, jain(windowAsked, windowGranted));
+                Arrays.fill(windowAsked, 0);
+                Arrays.fill(windowGranted, 0);
+            }
+        }
+        if (s.ticks % windowTicks != 0) {
+            s.worstWindowFairness = Math.min(s.worstWindowFairness, jain(windowAsked, windowGranted));    // The last, partial window
+        }
+        s.fairness = jain(asked, granted);
+    }
+
+    // Queue a request, as PowerServer.addRequest does
+    private static void request(Scenario s, ShardedAllocator allocator, int client, int power, int tick,
+            int[] waitingSince, boolean[] on) {
+        s.requests++;
+        allocator.queueRequest(client, power, tick);
+        if (!on[client] && waitingSince[client] < 0) {
+            waitingSince[client] = tick;
+            s.waits++;
+        }
+    }
+
+    // Jain's fairness index over the fraction of each client's requests that were granted
+    // (clients that asked for nothing don't count); 1 if nobody asked
+    private static double jain(long[] asked, long[] granted) {
+        double sum = 0, squares = 0;
+        int n = 0;
+        for (int i = 0; i < asked.length; i++) {
+            if (asked[i] > 0) {
+                double x = (double) granted[i] / asked[i];
+                sum += x;
+                squares += x * x;
+                n++;
+            }
+        }
+        return squares == 0 ? (n == 0 ? 1 : 0) : sum * sum / (n * squares);
+    }
+}
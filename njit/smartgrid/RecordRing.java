@@ -0,0 +1,105 @@
+package njit.smartgrid;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded multi-producer, single-consumer ring of fixed-width records.
+//
+// Every record is a preallocated row of longs (plus one optional object reference), so
+// producers never allocate. A producer claims a sequence number with tryClaim(), fills
+// in the fields and calls publish(). The consumer reads published records in order with
+// drain(). Slot hand-off follows the usual per-slot sequence scheme: a slot is free for
+// sequence s when its marker is s, and holds a published record when its marker is s + 1.
+final class RecordRing {
+
+    interface Handler {
+        void onRecord(RecordRing ring, long sequence);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final int width;
+    private final long[] fields;
+    private final Object[] refs;
+    private final AtomicLongArray markers;
+    private final AtomicLong tail = new AtomicLong();  // Next sequence to claim
+    private volatile long head = 0;                    // Next sequence to consume (consumer only)
+
+    RecordRing(int minCapacity, int width) {
+        int capacity = 1;
+        while (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.width = width;
+        this.fields = new long[capacity * width];
+        this.refs = new Object[capacity];
+        this.markers = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            markers.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    // Number of records claimed but not yet consumed
+    int size() {
+        return (int) (tail.get() - head);
+    }
+
+    // Sequence number of a free record, or -1 if the ring is full
+    long tryClaim() {
+        while (true) {
+            long sequence = tail.get();
+            long marker = markers.get((int) sequence & mask);
+            if (marker < sequence) {
+                return -1;  // Consumer hasn't released this slot from the previous lap yet
+            }
+            if (marker == sequence && tail.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    void put(long sequence, int field, long value) {
+        fields[((int) sequence & mask) * width + field] = value;
+    }
+
+    void putRef(long sequence, Object ref) {
+        refs[(int) sequence & mask] = ref;
+    }
+
+    void publish(long sequence) {
+        markers.lazySet((int) sequence & mask, sequence + 1);
+    }
+
+    long get(long sequence, int field) {
+        return fields[((int) sequence & mask) * width + field];
+    }
+
+    Object getRef(long sequence) {
+        return refs[(int) sequence & mask];
+    }
+
+    // Hand up to limit published records to the handler, oldest first. Returns how many
+    // were consumed. Only one thread may call this.
+    int drain(Handler handler, int limit) {
+        long sequence = head;
+        int count = 0;
+        while (count < limit) {
+            int slot = (int) sequence & mask;
+            if (markers.get(slot) != sequence + 1) {
+                break;
+            }
+            handler.onRecord(this, sequence);
+            refs[slot] = null;
+            markers.lazySet(slot, sequence + capacity);
+            sequence++;
+            count++;
+        }
+        head = sequence;
+        return count;
+    }
+}
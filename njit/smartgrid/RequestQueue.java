@@ -0,0 +1,145 @@
+package njit.smartgrid;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Requests on their way from the server's ingest threads to its tick thread.
+//
+// Any number of ingest threads decode request packets and offer them here; the tick
+// thread drains everything queued at the start of each tick and is the only thread that
+// touches the client table and the allocator. Nothing is locked and nothing is
+// allocated per request. When the queue is full, requests are dropped and counted
+// rather than blocking the socket.
+//
+// Each ingest thread's requests are drained in the order it offered them.
+//
+// With immediate grants, requests are granted out of a GrantReserve on their way in,
+// and a drain first closes the reserve and then goes on until every request granted on
+// arrival has been handed over (see GrantReserve).
+final class RequestQueue {
+
+    interface Consumer {
+        // A request for power from client key, and the power an ingest thread already
+        // granted it (see GrantReserve), or 0
+        void request(long key, int powerRequested, int powerGranted, long clientTime, long arrivalNanos);
+
+        // The client(s) at address asked for their slots again (slot grants)
+        void slotQuery(int address);
+    }
+
+    private static final int TYPE_REQUEST = 0;
+    private static final int TYPE_SLOT_QUERY = 1;
+
+    private static final int FIELD_TYPE = 0;
+    private static final int FIELD_KEY = 1;         // Key, or address for a slot query
+    private static final int FIELD_POWER = 2;
+    private static final int FIELD_CLIENT_TIME = 3;
+    private static final int FIELD_ARRIVAL = 4;
+    private static final int FIELD_GRANTED = 5;
+    private static final int RECORD_WIDTH = 6;
+
+    private final RecordRing ring;
+    private final GrantReserve reserve;     // null without immediate grants
+    private final AtomicLong dropped = new AtomicLong();
+    private Consumer consumer;      // Drain only
+    private final RecordRing.Handler handler = this::onRecord;
+
+    RequestQueue(int capacity) {
+        this(capacity, null);
+    }
+
+    RequestQueue(int capacity, GrantReserve reserve) {
+        ring = new RecordRing(capacity, RECORD_WIDTH);
+        this.reserve = reserve;
+    }
+
+    int capacity() {
+        return ring.capacity();
+    }
+
+    // Requests waiting for the next drain
+    int size() {
+        return ring.size();
+    }
+
+    // Requests dropped because the queue was full
+    long dropped() {
+        return dropped.get();
+    }
+
+    // Queue a request (ingest threads), granting it on the spot if the reserve covers it.
+    // Returns the watts granted on arrival, which the caller sends to the client, or -1
+    // if the request was dropped.
+    int offerRequest(long key, int powerRequested, long clientTime, long arrivalNanos) {
+        int powerGranted = reserve != null ? reserve.take(key, powerRequested) : 0;
+        if (!offer(key, powerRequested, powerGranted, clientTime, arrivalNanos)) {
+            if (powerGranted > 0) {
+                reserve.done(powerGranted);
+            }
+            return -1;
+        }
+        if (powerGranted > 0) {
+            reserve.done(0);
+        }
+        return powerGranted;
+    }
+
+    private boolean offer(long key, int powerRequested, int powerGranted, long clientTime, long arrivalNanos) {
+        long sequence = ring.tryClaim();
+        if (sequence < 0) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        ring.put(sequence, FIELD_TYPE, TYPE_REQUEST);
+        ring.put(sequence, FIELD_KEY, key);
+        ring.put(sequence, FIELD_POWER, powerRequested);
+        ring.put(sequence, FIELD_CLIENT_TIME, clientTime);
+        ring.put(sequence, FIELD_ARRIVAL, arrivalNanos);
+        ring.put(sequence, FIELD_GRANTED, powerGranted);
+        ring.publish(sequence);
+        return true;
+    }
+
+    // Queue a slot query (ingest threads). Returns false if it was dropped.
+    boolean offerSlotQuery(int address) {
+        long sequence = ring.tryClaim();
+        if (sequence < 0) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        ring.put(sequence, FIELD_TYPE, TYPE_SLOT_QUERY);
+        ring.put(sequence, FIELD_KEY, address);
+        ring.publish(sequence);
+        return true;
+    }
+
+    // Hand everything queued so far to the consumer, oldest first (tick thread). Returns
+    // how many records were drained. A drain stops at a record an ingest thread is still
+    // writing, and after at most the capacity, so what comes in meanwhile waits for the
+    // next tick. With a reserve, it is closed first, and the drain goes on past a record
+    // still being written until every request granted on arrival has been handed over.
+    int drain(Consumer consumer) {
+        this.consumer = consumer;
+        if (reserve != null) {
+            reserve.close();
+        }
+        int count = ring.drain(handler, ring.capacity());
+        while (reserve != null && !reserve.settled()) {
+            // A request granted on arrival is queued behind one still being written
+            Thread.yield();
+            count += ring.drain(handler, ring.capacity());
+        }
+        return count;
+    }
+
+    private void onRecord(RecordRing r, long sequence) {
+        if (r.get(sequence, FIELD_TYPE) == TYPE_REQUEST) {
+            int powerGranted = (int) r.get(sequence, FIELD_GRANTED);
+            if (powerGranted > 0) {
+                reserve.applied();
+            }
+            consumer.request(r.get(sequence, FIELD_KEY), (int) r.get(sequence, FIELD_POWER), powerGranted,
+                    r.get(sequence, FIELD_CLIENT_TIME), r.get(sequence, FIELD_ARRIVAL));
+        } else {
+            consumer.slotQuery((int) r.get(sequence, FIELD_KEY));
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package njit.smartgrid;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+// Checkpoints the server's allocation state to memory-mapped files so a restarted
+// server picks up where it left off: same clients, same grants, same load and the same
+// place in the priority rotation. Clients keep their power and nobody has to re-request.
+//
+// The tick thread, which owns the allocation state, copies it into a staging snapshot
+// (only the clients that changed since the last one), and a writer thread encodes it into
+// the mapped file. If the writer is still busy with the previous snapshot the tick is
+// simply not checkpointed, so the tick never waits on it.
+//
+// Snapshots alternate between two slot files, <base>_0.ckpt and <base>_1.ckpt, so the
+// previous snapshot stays intact while the next one is written. A slot is committed by
+// writing its sequence number last; on startup the valid slot (magic, version and CRC32C
+// check out) with the highest sequence wins. The files are not forced to disk after each
+// write: the page cache survives a crash or restart of the server, not a power cut.
+//
+// Slot header (HEADER_SIZE bytes):
+//   int   MAGIC
+//   short VERSION
+//   short unused
+//   long  sequence (0 while the slot is being written)
+//   long  wall clock time of the snapshot (ms)
+//   int   payload length in bytes
+//   int   CRC32C of the payload
+//
+// Payload:
+//   int   grant sequence of the next tick
+//   int   tick
+//   int   capacity (watts)
+//   int   shard count
+//   int   client count
+//   shard count x (int capacity, int load, int priority index)
+//   client count x (long key, int requested, int granted, int pending, int last seen)
+//
+// Clients are stored in client number order, so adding them back in that order gives
+// every client the same number and the same place in its shard.
+final class ServerCheckpoint {
+
+    static final int MAGIC = 0x53474350;    // "SGCP"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int SHARD_SIZE = 12;
+    static final int CLIENT_SIZE = 24;
+    private static final int PAYLOAD_HEADER_SIZE = 20;
+    private static final int SEQUENCE_OFFSET = 8;
+
+    private final String baseName;
+    private final RandomAccessFile[] files = new RandomAccessFile[2];
+    private final MappedByteBuffer[] slots = new MappedByteBuffer[2];
+    private final CRC32C crc = new CRC32C();
+    private long sequence = 0;      // Of the last snapshot written
+    private Thread writer = null;
+    private volatile boolean running = true;
+
+    // Staging snapshot, filled by the tick thread while staged is false and written out
+    // by the writer thread while it is true
+    private volatile boolean staged = false;
+    private long stagedTime;
+    private int stagedGrantSequence, stagedTick, stagedCapacity, stagedShards, stagedClients;
+    private int[] shardCapacity = new int[0], shardLoad = new int[0], shardPriority = new int[0];
+    private long[] key = new long[0];
+    private int[] requested = new int[0], granted = new int[0], pending = new int[0], lastSeen = new int[0];
+    private long skipped = 0;
+
+    ServerCheckpoint(String baseName) {
+        this.baseName = baseName;
+    }
+
+    static String slotName(String baseName, int slot) {
+        return String.format("%s_%d.ckpt", baseName, slot);
+    }
+
+    // What restore() found
+    static final class Restored {
+        final int grantSequence;
+        final int tick;
+        final int clients;
+        final long ageMillis;
+        final boolean expired;  // Too old to use, nothing was restored
+        final boolean exact;    // Same capacity and shard count, so the shard state was restored as is
+
+        Restored(int grantSequence, int tick, int clients, long ageMillis, boolean expired, boolean exact) {
+            this.grantSequence = grantSequence;
+            this.tick = tick;
+            this.clients = clients;
+            this.ageMillis = ageMillis;
+            this.expired = expired;
+            this.exact = exact;
+        }
+    }
+
+    // Load the latest valid snapshot into an empty client table and allocator. Returns
+    // null if there is none. A snapshot older than maxAgeMillis is not loaded: the
+    // clients have long since dropped those grants, and handing them all back at once
+    // would switch everything on together.
+    Restored restore(ClientTable clients, ShardedAllocator allocator, long maxAgeMillis) throws IOException {
+        MappedByteBuffer best = null;
+        long bestSequence = 0;
+        for (int slot = 0; slot < 2; slot++) {
+            MappedByteBuffer buffer = readSlot(slotName(baseName, slot));
+            if (buffer != null && buffer.getLong(SEQUENCE_OFFSET) > bestSequence) {
+                best = buffer;
+                bestSequence = buffer.getLong(SEQUENCE_OFFSET);
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        sequence = bestSequence;
+        long ageMillis = System.currentTimeMillis() - best.getLong(16);
+        if (ageMillis > maxAgeMillis) {
+            return new Restored(0, 0, 0, ageMillis, true, false);
+        }
+        best.position(HEADER_SIZE);
+        int grantSequence = best.getInt();
+        int tick = best.getInt();
+        int capacity = best.getInt();
+        int shardCount = best.getInt();
+        int clientCount = best.getInt();
+        int[] capacities = new int[shardCount];
+        int[] loads = new int[shardCount];
+        int[] priorities = new int[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            capacities[i] = best.getInt();
+            loads[i] = best.getInt();
+            priorities[i] = best.getInt();
+        }
+        for (int i = 0; i < clientCount; i++) {
+            int client = clients.add(best.getLong());
+            allocator.addClient(client);
+            clients.setRequested(client, best.getInt());
+            clients.setGranted(client, best.getInt());
+            clients.setPending(client, best.getInt());
+            clients.setLastSeen(client, best.getInt());
+            if (clients.pending(client) > 0) {
+                allocator.requestArrived(client);
+            }
+        }
+        boolean exact = capacity == allocator.getMaxLoadWatts() && shardCount == allocator.shardCount();
+        if (exact) {
+            for (int i = 0; i < shardCount; i++) {
+                allocator.shard(i).restore(capacities[i], loads[i], priorities[i]);
+            }
+        } else {
+            // Different configuration: keep the default capacity split and count the
+            // restored grants against it
+            for (int i = 0; i < allocator.shardCount(); i++) {
+                GrantShard shard = allocator.shard(i);
+                shard.restore(shard.capacityWatts(), shard.grantedWatts(), 0);
+            }
+        }
+        return new Restored(grantSequence, tick, clientCount, ageMillis, false, exact);
+    }
+
+    // The mapped slot file, or null if it is missing, torn or from another version
+    private static MappedByteBuffer readSlot(String name) throws IOException {
+        if (!Files.exists(Paths.get(name))) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(name), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int length = buffer.getInt(24);
+            if (buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION || buffer.getLong(SEQUENCE_OFFSET) <= 0
+                    || length < PAYLOAD_HEADER_SIZE || length > buffer.capacity() - HEADER_SIZE) {
+                return null;
+            }
+            CRC32C check = new CRC32C();
+            check.update(buffer.slice(HEADER_SIZE, length));
+            return (int) check.getValue() == buffer.getInt(28) ? buffer : null;
+        }
+    }
+
+    void start() {
+        writer = new Thread(this::writeLoop, "Checkpoint writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // Let the writer finish the snapshot it is on
+            running = false;
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+    }
+
+    // Snapshots the writer had no time for
+    long getSkipped() {
+        return skipped;
+    }
+
+    // Copy the allocation state for the writer (tick thread).
+    // Skipped if the writer hasn't finished with the previous snapshot.
+    void capture(ClientTable clients, ShardedAllocator allocator, int grantSequence, int tick) {
+        if (staged) {
+            skipped++;
+            return;
+        }
+        stagedTime = System.currentTimeMillis();
+        stagedGrantSequence = grantSequence;
+        stagedTick = tick;
+        stagedCapacity = allocator.getMaxLoadWatts();
+        stagedShards = allocator.shardCount();
+        if (shardCapacity.length < stagedShards) {
+            shardCapacity = new int[stagedShards];
+            shardLoad = new int[stagedShards];
+            shardPriority = new int[stagedShards];
+        }
+        for (int i = 0; i < stagedShards; i++) {
+            GrantShard shard = allocator.shard(i);
+            shardCapacity[i] = shard.capacityWatts();
+            shardLoad[i] = shard.loadWatts();
+            shardPriority[i] = shard.priorityClientIndex();
+        }
+        stagedClients = clients.size();
+        if (key.length < stagedClients) {
+            int length = Math.max(stagedClients, key.length * 2);
+            key = Arrays.copyOf(key, length);
+            requested = Arrays.copyOf(requested, length);
+            granted = Arrays.copyOf(granted, length);
+            pending = Arrays.copyOf(pending, length);
+            lastSeen = Arrays.copyOf(lastSeen, length);
+        }
+        clients.copyChangedState(key, requested, granted, pending, lastSeen);
+        staged = true;
+        LockSupport.unpark(writer);
+    }
+
+    private void writeLoop() {
+        while (true) {
+            if (staged) {
+                try {
+                    write();
+                } catch (IOException e) {
+                    System.err.println("Checkpoint failed: " + e.getMessage());
+                }
+                staged = false;
+            } else if (!running) {
+                break;
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    private void write() throws IOException {
+        int slot = (int) (sequence & 1);    // The slot that doesn't hold the latest snapshot
+        int length = PAYLOAD_HEADER_SIZE + stagedShards * SHARD_SIZE + stagedClients * CLIENT_SIZE;
+        MappedByteBuffer buffer = map(slot, HEADER_SIZE + length);
+        buffer.putLong(SEQUENCE_OFFSET, 0);     // Invalidate the slot while we write it
+        buffer.position(HEADER_SIZE);
+        buffer.putInt(stagedGrantSequence);
+        buffer.putInt(stagedTick);
+        buffer.putInt(stagedCapacity);
+        buffer.putInt(stagedShards);
+        buffer.putInt(stagedClients);
+        for (int i = 0; i < stagedShards; i++) {
+            buffer.putInt(shardCapacity[i]);
+            buffer.putInt(shardLoad[i]);
+            buffer.putInt(shardPriority[i]);
+        }
+        for (int i = 0; i < stagedClients; i++) {
+            buffer.putLong(key[i]);
+            buffer.putInt(requested[i]);
+            buffer.putInt(granted[i]);
+            buffer.putInt(pending[i]);
+            buffer.putInt(lastSeen[i]);
+        }
+        crc.reset();
+        crc.update(buffer.slice(HEADER_SIZE, length));
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, VERSION);
+        buffer.putShort(6, (short) 0);
+        buffer.putLong(16, stagedTime);
+        buffer.putInt(24, length);
+        buffer.putInt(28, (int) crc.getValue());
+        // Commit
+        buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+    }
+
+    // The mapping of a slot file, grown (to the next power of two) if size doesn't fit
+    private MappedByteBuffer map(int slot, int size) throws IOException {
+        if (slots[slot] != null && slots[slot].capacity() >= size) {
+            return slots[slot];
+        }
+        if (files[slot] == null) {
+            files[slot] = new RandomAccessFile(slotName(baseName, slot), "rw");
+        }
+        long length = Math.max(files[slot].length(), Integer.highestOneBit(size - 1) << 1);
+        files[slot].setLength(length);
+        slots[slot] = files[slot].getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        return slots[slot];
+    }
+}
@@ -0,0 +1,318 @@
+package njit.smartgrid;
+import java.util.concurrent.atomic.AtomicLong;
+import jdk.jfr.EventType;
+
+// Server instrumentation: request-to-grant latency, tick compute time and broadcast jitter,
+// receive queue depth, invalid packets. Exposed through JMX (ServerStatsMXBean) and
+// JFR (GrantTickEvent, SlaBreachEvent).
+//
+// Recording is histogram and counter updates only. JFR events are only created while
+// a recording has them enabled.
+//
+// The tick thread records into histograms of its own, without taking a lock, as it sends
+// each grant. Ingest threads record under a lock of their own, which the tick thread
+// only takes to copy their histograms. The MXBean reads snapshots of the histograms
+// that the tick thread publishes at most every SNAPSHOT_NANOS, so a reader never holds
+// up a tick; the counters are always current.
+final class ServerStats implements ServerStatsMXBean {
+
+    private static final EventType TICK_EVENT = EventType.getEventType(GrantTickEvent.class);
+    private static final EventType SLA_EVENT = EventType.getEventType(SlaBreachEvent.class);
+    static final long SNAPSHOT_NANOS = 1_000_000_000L;
+
+    private final PowerLog log;
+    private final long slaNanos;
+
+    // Tick thread only
+    private final Histograms recorded = new Histograms();
+    private long publishedNanos = System.nanoTime() - SNAPSHOT_NANOS;
+
+    // Guarded by ingest: grants on arrival and receive wakeups
+    private final Object ingest = new Object();
+    private final Histograms ingestRecorded = new Histograms();
+
+    private volatile Histograms snapshot = new Histograms();
+    private volatile boolean resetRequested = false;
+
+    // Written by the tick thread only
+    private volatile long ticks = 0;
+    private volatile long grants = 0;
+    private volatile long slaBreaches = 0;
+    private volatile long overruns = 0;
+    private volatile long skippedTicks = 0;
+    private volatile int loadWatts = 0;
+    private volatile int capacityWatts = 0;
+
+    private final AtomicLong immediateGrants = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong invalidPackets = new AtomicLong();
+    private final AtomicLong droppedRequests = new AtomicLong();
+    private final AtomicLong rateLimitedRequests = new AtomicLong();
+    private final AtomicLong overBudgetRequests = new AtomicLong();
+    private final AtomicLong coalescedRequests = new AtomicLong();
+
+    private static final class Histograms {
+        final LatencyHistogram requestToGrant = new LatencyHistogram();
+        final LatencyHistogram clientToGrant = new LatencyHistogram();
+        final LatencyHistogram tickCompute = new LatencyHistogram();
+        final LatencyHistogram tickJitter = new LatencyHistogram();
+        final LatencyHistogram receiveQueueDepth = new LatencyHistogram();
+
+        void add(Histograms other) {
+            requestToGrant.add(other.requestToGrant);
+            clientToGrant.add(other.clientToGrant);
+            tickCompute.add(other.tickCompute);
+            tickJitter.add(other.tickJitter);
+            receiveQueueDepth.add(other.receiveQueueDepth);
+        }
+
+        void reset() {
+            requestToGrant.reset();
+            clientToGrant.reset();
+            tickCompute.reset();
+            tickJitter.reset();
+            receiveQueueDepth.reset();
+        }
+    }
+
+    ServerStats(PowerLog log, long slaNanos) {
+        this.log = log;
+        this.slaNanos = slaNanos;
+    }
+
+    void request() {
+        requests.incrementAndGet();
+    }
+
+    void invalidPacket() {
+        invalidPackets.incrementAndGet();
+    }
+
+    // A request the ingest queue had no room for
+    void requestDropped() {
+        droppedRequests.incrementAndGet();
+    }
+
+    // A request over its client's rate
+    void requestRateLimited() {
+        rateLimitedRequests.incrementAndGet();
+    }
+
+    // A request over the tick's ingress budget
+    void requestOverBudget() {
+        overBudgetRequests.incrementAndGet();
+    }
+
+    // A request that replaced one its client had already queued for the tick
+    void requestCoalesced() {
+        coalescedRequests.incrementAndGet();
+    }
+
+    // A request granted on arrival (ingest threads), latencyNanos after it arrived
+    void grantedNow(long latencyNanos, long clientTime) {
+        immediateGrants.incrementAndGet();
+        synchronized (ingest) {
+            ingestRecorded.requestToGrant.record(latencyNanos);
+            ingestRecorded.clientToGrant.record((System.currentTimeMillis() - clientTime) * 1_000_000L);
+        }
+    }
+
+    // Datagrams drained from the socket in one receive wakeup
+    void receiveBatch(int datagrams) {
+        synchronized (ingest) {
+            ingestRecorded.receiveQueueDepth.record(datagrams);
+        }
+    }
+
+    // Record the latency of every waiting request that was granted in this tick, and
+    // forget the ones that were denied (tick thread)
+    void grantsSent(ClientTable clients, long nowNanos, long serverTime) {
+        long granted = 0;
+        long breaches = 0;
+        for (int client = clients.nextWaiting(0); client >= 0; client = clients.nextWaiting(client + 1)) {
+            long requestNanos = clients.requestNanos(client);
+            int powerGranted = clients.granted(client);
+            if (powerGranted > 0) {
+                long latency = nowNanos - requestNanos;
+                recorded.requestToGrant.record(latency);
+                recorded.clientToGrant.record((serverTime - clients.requestClientTime(client)) * 1_000_000L);
+                granted++;
+                if (latency > slaNanos) {
+                    breaches++;
+                    if (SLA_EVENT.isEnabled()) {
+                        SlaBreachEvent event = new SlaBreachEvent();
+                        event.client = Ipv4.toInetAddress(clients.address(client)).getHostAddress();
+                        event.loadId = clients.loadId(client);
+                        event.watts = powerGranted;
+                        event.latency = latency;
+                        event.commit();
+                    }
+                }
+                clients.setRequestTime(client, 0, 0);
+            } else if (clients.pending(client) == 0) {
+                clients.setRequestTime(client, 0, 0);
+            }
+        }
+        if (granted > 0) {
+            grants += granted;
+            slaBreaches += breaches;
+        }
+    }
+
+    // Tick thread
+    void overrun(int skipped) {
+        overruns++;
+        skippedTicks += skipped;
+    }
+
+    // A tick was released (tick thread)
+    void tick(int sequence, int numClients, int segments, int loadWatts, int capacityWatts,
+              long startNanos, long endNanos, long jitterNanos) {
+        if (resetRequested) {
+            resetRequested = false;
+            recorded.reset();
+            ticks = 0;
+            grants = 0;
+            slaBreaches = 0;
+            overruns = 0;
+            skippedTicks = 0;
+            publishedNanos = endNanos - SNAPSHOT_NANOS;
+        }
+        ticks++;
+        this.loadWatts = loadWatts;
+        this.capacityWatts = capacityWatts;
+        recorded.tickCompute.record(endNanos - startNanos);
+        recorded.tickJitter.record(Math.abs(jitterNanos));
+        if (TICK_EVENT.isEnabled()) {
+            GrantTickEvent event = new GrantTickEvent();
+            event.sequence = sequence;
+            event.clients = numClients;
+            event.segments = segments;
+            event.loadWatts = loadWatts;
+            event.compute = endNanos - startNanos;
+            event.jitter = jitterNanos;
+            event.commit();
+        }
+        if (endNanos - publishedNanos >= SNAPSHOT_NANOS) {
+            publishedNanos = endNanos;
+            Histograms next = new Histograms();
+            next.add(recorded);
+            synchronized (ingest) {
+                next.add(ingestRecorded);
+            }
+            snapshot = next;
+        }
+    }
+
+    @Override
+    public long getTicks() { return ticks; }
+
+    @Override
+    public long getRequests() { return requests.get(); }
+
+    @Override
+    public long getGrants() { return grants + immediateGrants.get(); }
+
+    @Override
+    public double getRequestToGrantP50Millis() { return millis(snapshot.requestToGrant.percentile(50)); }
+
+    @Override
+    public double getRequestToGrantP99Millis() { return millis(snapshot.requestToGrant.percentile(99)); }
+
+    @Override
+    public double getRequestToGrantMaxMillis() { return millis(snapshot.requestToGrant.max()); }
+
+    @Override
+    public double getClientToGrantP50Millis() { return millis(snapshot.clientToGrant.percentile(50)); }
+
+    @Override
+    public double getClientToGrantP99Millis() { return millis(snapshot.clientToGrant.percentile(99)); }
+
+    @Override
+    public double getClientToGrantMaxMillis() { return millis(snapshot.clientToGrant.max()); }
+
+    @Override
+    public long getImmediateGrants() { return immediateGrants.get(); }
+
+    @Override
+    public long getSlaBreaches() { return slaBreaches; }
+
+    @Override
+    public double getSlaMillis() { return millis(slaNanos); }
+
+    @Override
+    public int getLoadWatts() { return loadWatts; }
+
+    @Override
+    public int getCapacityWatts() { return capacityWatts; }
+
+    @Override
+    public double getTickComputeP50Millis() { return millis(snapshot.tickCompute.percentile(50)); }
+
+    @Override
+    public double getTickComputeP99Millis() { return millis(snapshot.tickCompute.percentile(99)); }
+
+    @Override
+    public double getTickComputeMaxMillis() { return millis(snapshot.tickCompute.max()); }
+
+    @Override
+    public long getTickOverruns() { return overruns; }
+
+    @Override
+    public long getSkippedTicks() { return skippedTicks; }
+
+    @Override
+    public double getTickJitterP99Millis() { return millis(snapshot.tickJitter.percentile(99)); }
+
+    @Override
+    public double getTickJitterMaxMillis() { return millis(snapshot.tickJitter.max()); }
+
+    @Override
+    public long getReceiveQueueDepthP99() { return snapshot.receiveQueueDepth.percentile(99); }
+
+    @Override
+    public long getReceiveQueueDepthMax() { return snapshot.receiveQueueDepth.max(); }
+
+    @Override
+    public long getInvalidPackets() { return invalidPackets.get(); }
+
+    @Override
+    public long getDroppedRequests() { return droppedRequests.get(); }
+
+    @Override
+    public long getRateLimitedRequests() { return rateLimitedRequests.get(); }
+
+    @Override
+    public long getOverBudgetRequests() { return overBudgetRequests.get(); }
+
+    @Override
+    public long getCoalescedRequests() { return coalescedRequests.get(); }
+
+    @Override
+    public int getQueuedLogRecords() { return log.getQueuedRecords(); }
+
+    @Override
+    public long getDroppedLogRecords() { return log.getDroppedRecords(); }
+
+    // The histograms read empty at once; the tick thread clears its own counts at the
+    // next tick
+    @Override
+    public void reset() {
+        synchronized (ingest) {
+            ingestRecorded.reset();
+        }
+        resetRequested = true;
+        snapshot = new Histograms();
+        immediateGrants.set(0);
+        requests.set(0);
+        invalidPackets.set(0);
+        droppedRequests.set(0);
+        rateLimitedRequests.set(0);
+        overBudgetRequests.set(0);
+        coalescedRequests.set(0);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,82 @@
+package njit.smartgrid;
+
+// JMX view of ServerStats, registered as njit.smartgrid:type=PowerServer.
+// Latencies and times are in milliseconds, since the server started or the last reset().
+// Percentiles and maxima are refreshed about once a second, counters on every tick.
+public interface ServerStatsMXBean {
+
+    long getTicks();
+
+    long getRequests();
+
+    long getGrants();
+
+    // Grants sent on arrival (smartgrid.immediateGrants), included in getGrants()
+    long getImmediateGrants();
+
+    // Request arrival at the server to the broadcast that granted it
+    double getRequestToGrantP50Millis();
+
+    double getRequestToGrantP99Millis();
+
+    double getRequestToGrantMaxMillis();
+
+    // Client timestamp of the request to the server timestamp of the grant (includes clock skew)
+    double getClientToGrantP50Millis();
+
+    double getClientToGrantP99Millis();
+
+    double getClientToGrantMaxMillis();
+
+    // Grants that took longer than the SLA, request arrival to grant
+    long getSlaBreaches();
+
+    double getSlaMillis();
+
+    // Load granted by the last tick and the capacity it was granted against, in watts
+    int getLoadWatts();
+
+    int getCapacityWatts();
+
+    // Allocation and encoding time of a tick
+    double getTickComputeP50Millis();
+
+    double getTickComputeP99Millis();
+
+    double getTickComputeMaxMillis();
+
+    // Ticks whose compute ran past their broadcast time, and ticks skipped to catch up
+    long getTickOverruns();
+
+    long getSkippedTicks();
+
+    // How far grant broadcasts are from their scheduled time
+    double getTickJitterP99Millis();
+
+    double getTickJitterMaxMillis();
+
+    // Datagrams waiting on the socket per receive wakeup (NIO ingest only)
+    long getReceiveQueueDepthP99();
+
+    long getReceiveQueueDepthMax();
+
+    long getInvalidPackets();
+
+    // Requests dropped because the ingest queue was full
+    long getDroppedRequests();
+
+    // Requests dropped because their client was over its rate (smartgrid.ingress.clientRate)
+    long getRateLimitedRequests();
+
+    // Requests dropped because the tick's ingress budget was spent (smartgrid.ingress.budget)
+    long getOverBudgetRequests();
+
+    // Requests that replaced one their client had already queued for the same tick
+    long getCoalescedRequests();
+
+    int getQueuedLogRecords();
+
+    long getDroppedLogRecords();
+
+    void reset();
+}
@@ -0,0 +1,295 @@
+package njit.smartgrid;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs the grant tick over N shards of the client table.
+//
+// Clients are hash-partitioned by key into shards when they are first seen. Each
+// shard owns a slice of the capacity and runs the usual allocation passes over its own
+// clients, in parallel on a fixed pool. After the grant pass, rebalance() moves spare
+// capacity from shards with no unmet demand to shards that had to deny or downgrade
+// requests, and those shards grant again with it before any denied request is dropped.
+// Capacity that is in use is never taken away, so the total load stays within
+// maxLoadWatts.
+//
+// Fairness: within a shard the rotating priority is exactly the single-shard one. When
+// the capacity covers every request, every request is granted in the same tick, as with
+// one global pass. When it doesn't, the short shards take turns at being topped up first,
+// and which requests are denied can differ from a global pass. With one shard (the
+// default) the allocation is identical to the unsharded server.
+final class ShardedAllocator {
+
+    private final ClientTable clients;
+    private final GrantShard[] shards;
+    private final ExecutorService pool;
+    private final List<Callable<Void>> allocateTasks;
+    private final List<Callable<Void>> finishTasks;
+    private int maxLoadWatts;
+
+    // rebalance() scratch, by shard
+    private final int[] needed;
+    private final int[] given;
+    private final boolean[] received;
+    private int firstShort = 0;     // Short shard topped up first, rotating
+
+    // Shard of each client and its index in the shard, by client number
+    private int[] clientShard = new int[64];
+    private int[] clientIndex = new int[64];
+
+    ShardedAllocator(ClientTable clients, int maxLoadWatts, int shardCount, PowerLog log) {
+        this.clients = clients;
+        this.maxLoadWatts = maxLoadWatts;
+        shards = new GrantShard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            int share = maxLoadWatts / shards.length + (i == 0 ? maxLoadWatts % shards.length : 0);
+            shards[i] = new GrantShard(clients, share, log);
+        }
+        needed = new int[shards.length];
+        given = new int[shards.length];
+        received = new boolean[shards.length];
+        if (shards.length > 1) {
+            int threads = Math.min(shards.length, Runtime.getRuntime().availableProcessors());
+            pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "Grant shard");
+                t.setDaemon(true);
+                return t;
+            });
+            allocateTasks = new ArrayList<>(shards.length);
+            finishTasks = new ArrayList<>(shards.length);
+            for (int i = 0; i < shards.length; i++) {
+                GrantShard shard = shards[i];
+                int index = i;
+                allocateTasks.add(() -> {
+                    shard.allocate();
+                    return null;
+                });
+                finishTasks.add(() -> {
+                    shard.finishTick(received[index]);
+                    return null;
+                });
+            }
+        } else {
+            pool = null;
+            allocateTasks = null;
+            finishTasks = null;
+        }
+    }
+
+    int shardCount() {
+        return shards.length;
+    }
+
+    GrantShard shard(int i) {
+        return shards[i];
+    }
+
+    // Assign a newly added client to its shard
+    void addClient(int client) {
+        if (client >= clientShard.length) {
+            clientShard = Arrays.copyOf(clientShard, Math.max(client + 1, clientShard.length * 2));
+            clientIndex = Arrays.copyOf(clientIndex, clientShard.length);
+        }
+        int shard = shardOf(clients.key(client));
+        clientShard[client] = shard;
+        clientIndex[client] = shards[shard].addClient(client);
+    }
+
+    // Queue a request from client for the next tick. Returns true if it starts a new
+    // request, false if it was queued behind one in progress.
+    //
+    // Requests arriving between two ticks are coalesced: a client holds at most one
+    // queued request per tick, carrying the latest power level it asked for, so a client
+    // that repeats itself can't stretch its grant over more ticks or make a tick cost more.
+    boolean queueRequest(int client, int powerRequested, int tick) {
+        boolean started;
+        // If the client already has a request in progress, queue this one behind it.
+        // Queued requests keep the grant of the one in progress.
+        // FIXME: pending requests do not guarantee an active grant. should check powergranted value also.
+        if (coalesces(client, tick)) {
+            started = false;
+        } else if (clients.pending(client) > 0) {
+            clients.setPending(client, clients.pending(client) + 1);
+            started = false;
+        } else {
+            clients.setPending(client, 1);
+            clients.setGranted(client, 0);
+            started = true;
+        }
+        clients.setRequested(client, powerRequested);
+        clients.setLastSeen(client, tick);
+        requestArrived(client);
+        return started;
+    }
+
+    // True if a request from client queued in this tick would replace one already queued
+    boolean coalesces(int client, int tick) {
+        return clients.pending(client) > 0 && clients.lastSeen(client) == tick;
+    }
+
+    // The request just queued for client was granted watts on arrival (see GrantReserve).
+    // Count the grant in its shard's load, moving spare capacity over from the other
+    // shards if that shard is short, and hold the request through the coming tick as if
+    // that tick had granted it, so the tick sends the same grant. That goes for a request
+    // it replaced as well: one queued earlier in this tick without a grant (it arrived
+    // while the reserve was closed or before the tick was sent) would otherwise be
+    // consumed as granted by the tick and revoke the grant just sent.
+    void grantNow(int client, int watts) {
+        if (clients.granted(client) == 0) {
+            clients.setPending(client, clients.pending(client) + 1);
+        }
+        GrantShard shard = shards[clientShard[client]];
+        shard.grantNow(client, watts);
+        int missing = shard.loadWatts() - shard.capacityWatts();
+        for (int i = 0; i < shards.length && missing > 0; i++) {
+            int spare = Math.min(missing, shards[i].capacityWatts() - shards[i].loadWatts());
+            if (shards[i] != shard && spare > 0) {
+                shards[i].setCapacityWatts(shards[i].capacityWatts() - spare);
+                shard.setCapacityWatts(shard.capacityWatts() + spare);
+                missing -= spare;
+            }
+        }
+    }
+
+    // A request from client was queued, so its shard has to look at it next tick
+    void requestArrived(int client) {
+        shards[clientShard[client]].activate(clientIndex[client]);
+    }
+
+    int shardOf(long key) {
+        return Math.floorMod(ClientTable.hash(key), shards.length);
+    }
+
+    int getLoadWatts() {
+        int load = 0;
+        for (GrantShard shard : shards) {
+            load += shard.loadWatts();
+        }
+        return load;
+    }
+
+    int getMaxLoadWatts() {
+        return maxLoadWatts;
+    }
+
+    // Capacity not granted to anyone, across all shards
+    int getSpareWatts() {
+        return Math.max(0, maxLoadWatts - getLoadWatts());
+    }
+
+    // Power requested but not granted in the last tick
+    int getUnmetWatts() {
+        int unmet = 0;
+        for (GrantShard shard : shards) {
+            unmet += shard.unmetWatts();
+        }
+        return unmet;
+    }
+
+    // Change the total capacity (e.g. as assigned by a FederationServer). A raise is
+    // split evenly between the shards. A cut comes out of spare capacity first, and only
+    // then out of capacity in use, which the next tick takes back: the clients are
+    // granted again within what is left, so some get a lower level or nothing.
+    void setMaxLoadWatts(int watts) {
+        int delta = watts - maxLoadWatts;
+        maxLoadWatts = watts;
+        if (delta >= 0) {
+            for (int i = 0; i < shards.length; i++) {
+                int share = delta / shards.length + (i == 0 ? delta % shards.length : 0);
+                shards[i].setCapacityWatts(shards[i].capacityWatts() + share);
+            }
+            return;
+        }
+        int cut = -delta;
+        for (int i = 0; i < shards.length && cut > 0; i++) {
+            int spare = Math.min(cut, Math.max(0, shards[i].capacityWatts() - shards[i].loadWatts()));
+            shards[i].setCapacityWatts(shards[i].capacityWatts() - spare);
+            cut -= spare;
+        }
+        for (int i = 0; i < shards.length && cut > 0; i++) {
+            int taken = Math.min(cut, shards[i].capacityWatts());
+            shards[i].setCapacityWatts(shards[i].capacityWatts() - taken);
+            cut -= taken;
+        }
+    }
+
+    // Run one grant tick over every shard: grant out of each shard's own capacity, move
+    // spare capacity to the shards that are short, let those grant again, and only then
+    // drop the requests that are still denied
+    void tick() {
+        if (pool == null) {
+            shards[0].runTick();
+            return;
+        }
+        if (runShards(allocateTasks)) {
+            rebalance();
+            runShards(finishTasks);
+        }
+    }
+
+    private boolean runShards(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Grant shard failed", e.getCause());
+        }
+    }
+
+    // Give each shard that denied or downgraded requests as much capacity as it is short
+    // of granting them all, out of the spare capacity of the shards that aren't short
+    private void rebalance() {
+        int neededTotal = 0;
+        for (int i = 0; i < shards.length; i++) {
+            GrantShard shard = shards[i];
+            received[i] = false;
+            needed[i] = shard.unmetWatts() > 0
+                    ? Math.max(0, shard.unmetWatts() - (shard.capacityWatts() - shard.loadWatts())) : 0;
+            neededTotal += needed[i];
+        }
+        if (neededTotal == 0) {
+            return;
+        }
+        // Collect all the spare capacity of the shards with no unmet demand of their own
+        int pooled = 0;
+        for (int i = 0; i < shards.length; i++) {
+            GrantShard shard = shards[i];
+            given[i] = 0;
+            if (shard.unmetWatts() == 0) {
+                int spare = shard.capacityWatts() - shard.loadWatts();
+                if (spare > 0) {
+                    shard.setCapacityWatts(shard.capacityWatts() - spare);
+                    given[i] = spare;
+                    pooled += spare;
+                }
+            }
+        }
+        // Hand it out to the short shards in turn, starting with a different one each tick
+        for (int n = 0; n < shards.length && pooled > 0; n++) {
+            int i = (firstShort + n) % shards.length;
+            int share = Math.min(needed[i], pooled);
+            if (share > 0) {
+                shards[i].setCapacityWatts(shards[i].capacityWatts() + share);
+                received[i] = true;
+                pooled -= share;
+            }
+        }
+        firstShort = (firstShort + 1) % shards.length;
+        // Whatever nobody needed goes back where it came from
+        for (int i = 0; i < shards.length && pooled > 0; i++) {
+            int back = Math.min(pooled, given[i]);
+            shards[i].setCapacityWatts(shards[i].capacityWatts() + back);
+            pooled -= back;
+        }
+    }
+}
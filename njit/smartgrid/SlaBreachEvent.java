@@ -0,0 +1,23 @@
+package njit.smartgrid;
+import jdk.jfr.*;
+
+// JFR event for a request that took longer than the SLA to be granted
+@Name("njit.smartgrid.SlaBreach")
+@Label("Grant SLA Breach")
+@Category("Smart Grid")
+@StackTrace(false)
+class SlaBreachEvent extends Event {
+
+    @Label("Client Address")
+    String client;
+
+    @Label("Load ID")
+    int loadId;
+
+    @Label("Watts")
+    int watts;
+
+    @Label("Request To Grant")
+    @Timespan(Timespan.NANOSECONDS)
+    long latency;
+}
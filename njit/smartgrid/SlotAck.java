@@ -0,0 +1,73 @@
+package njit.smartgrid;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+// Slot acknowledgements, sent by the server's tick thread when it sends slot ticks (see
+// PowerGrantPacket). One acknowledgement carries the slot IDs of any number of clients
+// at one address, so a gateway's new loads are acknowledged together:
+//
+//   the grant segment header: sequence 0, segment 0 of 1, entry count n, flags
+//   FLAG_SLOTS | FLAG_ACK
+//   int   slot epoch
+//
+// followed by n 8-byte entries:
+//
+//   int   IPv4 address
+//   short load ID
+//   short slot ID
+//
+// It goes to the client's grant port rather than to the port the request came from, so
+// it arrives on the socket the client reads its grants from.
+final class SlotAck {
+
+    static final int MAX_ENTRIES = (PowerGrantPacket.PKT_SIZE - PowerGrantPacket.SLOT_HEADER_SIZE) / PowerGrantPacket.ENTRY_SIZE;
+
+    private final ByteBuffer data = ByteBuffer.allocateDirect(PowerGrantPacket.PKT_SIZE);
+    private final DatagramChannel channel;
+    private final int epoch;
+    private int address;
+    private int count = 0;
+
+    SlotAck(DatagramChannel channel, int epoch) {
+        this.channel = channel;
+        this.epoch = epoch;
+    }
+
+    // Add a client's slot. Consecutive clients at one address share an acknowledgement.
+    void add(int address, int loadId, int slot) throws IOException {
+        if (count == MAX_ENTRIES || (count > 0 && address != this.address)) {
+            flush();
+        }
+        this.address = address;
+        int offset = PowerGrantPacket.SLOT_HEADER_SIZE + count * PowerGrantPacket.ENTRY_SIZE;
+        data.putInt(offset, address);
+        data.putShort(offset + 4, (short) loadId);
+        data.putShort(offset + 6, (short) slot);
+        count++;
+    }
+
+    // Send what has been added since the last flush, if anything
+    void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        data.clear();
+        data.putLong(System.currentTimeMillis());
+        data.putInt(0);
+        data.putShort((short) 0);
+        data.putShort((short) 1);
+        data.putShort((short) count);
+        data.putShort((short) (PowerGrantPacket.FLAG_SLOTS | PowerGrantPacket.FLAG_ACK));
+        data.putInt(epoch);
+        int length = PowerGrantPacket.SLOT_HEADER_SIZE + count * PowerGrantPacket.ENTRY_SIZE;
+        data.position(0).limit(length);
+        count = 0;
+        try {
+            channel.send(data, new InetSocketAddress(Ipv4.toInetAddress(address), PowerGrantPacket.CLIENT_PORT));
+        } finally {
+            data.clear();   // add() writes past the end of the datagram just sent
+        }
+    }
+}
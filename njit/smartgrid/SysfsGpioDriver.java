@@ -0,0 +1,72 @@
+package njit.smartgrid;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// GPIO through the kernel's sysfs interface (/sys/class/gpio). Pins are exported and set
+// to outputs once, and their value files are kept open, so a write is one pwrite() of
+// a single byte. A pin that is already in the requested state isn't written.
+final class SysfsGpioDriver implements GpioDriver {
+
+    static final String GPIO_DIR = "/sys/class/gpio/";
+    private static final int EXPORT_WAIT_MILLIS = 2000;    // For udev to hand the new pin files to the gpio group
+
+    private final FileChannel highValue;
+    private final FileChannel lowValue;
+    private final ByteBuffer on = ByteBuffer.wrap(new byte[] { '1' });
+    private final ByteBuffer off = ByteBuffer.wrap(new byte[] { '0' });
+    private int highState = -1;     // Last value written, -1 if unknown
+    private int lowState = -1;
+
+    SysfsGpioDriver(int highPin, int lowPin) throws IOException {
+        highValue = openOutput(highPin);
+        lowValue = openOutput(lowPin);
+    }
+
+    @Override
+    public void write(boolean highPower, boolean lowPower) throws IOException {
+        highState = set(highValue, highState, highPower);
+        lowState = set(lowValue, lowState, lowPower);
+    }
+
+    private int set(FileChannel value, int state, boolean output) throws IOException {
+        int newState = output ? 1 : 0;
+        if (newState != state) {
+            ByteBuffer buf = output ? on : off;
+            buf.rewind();
+            value.write(buf, 0);
+        }
+        return newState;
+    }
+
+    @Override
+    public void close() throws IOException {
+        highValue.close();
+        lowValue.close();
+    }
+
+    private static FileChannel openOutput(int pin) throws IOException {
+        Path pinDir = Paths.get(GPIO_DIR + "gpio" + pin);
+        Path direction = pinDir.resolve("direction");
+        if (!Files.exists(pinDir)) {
+            Files.write(Paths.get(GPIO_DIR + "export"), Integer.toString(pin).getBytes(StandardCharsets.US_ASCII));
+        }
+        // Freshly exported pins are only writable by root until udev fixes up the permissions
+        long deadline = System.currentTimeMillis() + EXPORT_WAIT_MILLIS;
+        while (!Files.isWritable(direction) && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        Files.write(direction, "out".getBytes(StandardCharsets.US_ASCII));
+        return FileChannel.open(pinDir.resolve("value"), StandardOpenOption.WRITE);
+    }
+}
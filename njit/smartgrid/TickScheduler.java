@@ -0,0 +1,101 @@
+package njit.smartgrid;
+import java.util.concurrent.locks.LockSupport;
+
+// Fixed-rate tick scheduler on the monotonic clock (System.nanoTime).
+//
+// Tick k is released at start + k * period, no matter how long earlier ticks took, so
+// ticks don't drift. Each tick is computed shortly ahead of its release time (the lead
+// follows the recent compute times), then the thread waits for the release time,
+// parking until just before it and spinning the rest of the way, and releases it. The
+// release is meant to be cheap (hand the result to another thread), so the next tick's
+// compute can overlap whatever the release started.
+//
+// A tick whose compute runs past its release time is an overrun; it is released late.
+// If the thread falls more than a whole period behind, the missed ticks are skipped
+// rather than run back to back.
+final class TickScheduler {
+
+    interface Task {
+        // Prepare tick number tick, to be released at releaseNanos
+        void compute(int tick, long releaseNanos);
+
+        // The tick's release time has come. lateNanos is how far past it we are.
+        void release(int tick, long lateNanos);
+
+        // Tick number tick overran its release time by lateNanos, skipping skippedTicks ticks
+        void overrun(int tick, long lateNanos, int skippedTicks);
+    }
+
+    private static final long MIN_LEAD_NANOS = 500_000;
+
+    private final long periodNanos;
+    private final long spinNanos;
+    private final Task task;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Slowly decaying maximum of recent compute times
+    private long recentComputeNanos = 0;
+
+    TickScheduler(String name, long periodNanos, long spinNanos, Task task) {
+        this.periodNanos = periodNanos;
+        this.spinNanos = spinNanos;
+        this.task = task;
+        thread = new Thread(this::run, name);
+        thread.setPriority(Thread.MAX_PRIORITY);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        int tick = 0;
+        long release = System.nanoTime() + periodNanos;
+        while (running) {
+            waitUntil(release - leadNanos(), 0);
+            long now = System.nanoTime();
+            if (now - release >= periodNanos) {
+                // Too far behind to make up: skip to the next release time still ahead of us
+                int skipped = (int) ((now - release) / periodNanos);
+                task.overrun(tick, now - release, skipped);
+                tick += skipped;
+                release += skipped * periodNanos;
+            }
+            long computeStart = System.nanoTime();
+            task.compute(tick, release);
+            long computeEnd = System.nanoTime();
+            long computeNanos = computeEnd - computeStart;
+            recentComputeNanos = Math.max(computeNanos, recentComputeNanos - (recentComputeNanos >> 4));
+            if (computeEnd > release) {
+                task.overrun(tick, computeEnd - release, 0);
+            }
+            waitUntil(release, spinNanos);
+            task.release(tick, System.nanoTime() - release);
+            tick++;
+            release += periodNanos;
+        }
+    }
+
+    // How long before the release time to start computing a tick
+    private long leadNanos() {
+        return Math.min(periodNanos / 2, 2 * recentComputeNanos + MIN_LEAD_NANOS);
+    }
+
+    // Park until spinNanos before deadline, then spin
+    private void waitUntil(long deadline, long spinNanos) {
+        long remaining;
+        while (running && (remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > spinNanos) {
+                LockSupport.parkNanos(remaining - spinNanos);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+}